@@ -0,0 +1,285 @@
+package com.example.demo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Decides whether a conversion may start, based on an estimate of how much
+ * heap it will need and how much of the in-flight heap budget is already
+ * taken.
+ *
+ * A job that fits the budget runs normally, with the PDF opened in the
+ * {@link PdfLoader}'s configured mode. A job that doesn't fit is routed to
+ * low-memory mode (all PDF scratch data in temp files) if that fits, otherwise it waits in a bounded queue. When the queue is full, or the
+ * wait times out, the job is rejected so the caller can answer 429.
+ *
+ * Waiting jobs park on a {@link ReentrantLock} condition rather than an
+ * object monitor, so queued virtual threads do not pin their carriers.
+ */
+@Component
+public final class AdmissionController {
+
+    public enum Mode {
+        NORMAL, LOW_MEMORY
+    }
+
+    // Fixed overhead of a conversion that keeps the PDF in temp files
+    private static final long LOW_MEMORY_BASE_BYTES = 16L * 1024 * 1024;
+
+    private final PdfLoader pdfLoader;
+    private final ParallelTextExtractor textExtractor;
+    private final long heapBudgetBytes;
+    private final long bytesPerPage;
+    private final int maxQueued;
+    private final long queueTimeoutMillis;
+    private final int retryAfterSeconds;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private long inFlightBytes; // guarded by lock
+    private int queued; // guarded by lock
+
+    private final Counter rejections;
+    private final Counter admittedNormal;
+    private final Counter admittedLowMemory;
+
+    public AdmissionController(MeterRegistry registry, PdfLoader pdfLoader, ParallelTextExtractor textExtractor,
+            @Value("${epub.admission.heap-budget-mb:0}") long heapBudgetMb,
+            @Value("${epub.admission.bytes-per-page:524288}") long bytesPerPage,
+            @Value("${epub.admission.max-queued:20}") int maxQueued,
+            @Value("${epub.admission.queue-timeout-seconds:30}") long queueTimeoutSeconds,
+            @Value("${epub.admission.retry-after-seconds:30}") int retryAfterSeconds) {
+        this.pdfLoader = pdfLoader;
+        this.textExtractor = textExtractor;
+        // 0 or less means half of the maximum heap
+        this.heapBudgetBytes = heapBudgetMb > 0 ? heapBudgetMb * 1024 * 1024 : Runtime.getRuntime().maxMemory() / 2;
+        this.bytesPerPage = bytesPerPage;
+        this.maxQueued = maxQueued;
+        this.queueTimeoutMillis = TimeUnit.SECONDS.toMillis(queueTimeoutSeconds);
+        this.retryAfterSeconds = retryAfterSeconds;
+
+        this.rejections = Counter.builder("epub.admission.rejections")
+                .description("Conversions rejected because the heap budget and queue were exhausted")
+                .register(registry);
+        this.admittedNormal = Counter.builder("epub.admission.admitted").tag("mode", "normal").register(registry);
+        this.admittedLowMemory = Counter.builder("epub.admission.admitted").tag("mode", "low-memory").register(registry);
+        Gauge.builder("epub.admission.queue.depth", this, AdmissionController::getQueued)
+                .description("Conversions waiting for heap budget")
+                .register(registry);
+        Gauge.builder("epub.admission.inflight.bytes", this, AdmissionController::getInFlightBytes)
+                .description("Estimated heap reserved by running conversions")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    /**
+     * Estimates the cost of converting a PDF that has been saved to disk. Only
+     * the cross-reference table and page tree are read, with the document
+     * kept in temp files, so this is cheap even for very large PDFs.
+     *
+     * @param pdfFile The PDF file.
+     * @return The estimated cost.
+     * @throws IOException If the PDF cannot be read.
+     */
+    public JobCost estimate(File pdfFile) throws IOException {
+        try (PDDocument document = pdfLoader.load(pdfFile, true)) {
+            return estimate(pdfFile.length(), document.getNumberOfPages());
+        }
+    }
+
+    public JobCost estimate(long fileSize, int pageCount) {
+        long pagesBytes = pageCount * bytesPerPage;
+        // Every text extraction worker opens its own copy of the document; low-memory conversions are not split
+        int documents = 1 + textExtractor.getShardWorkers(pageCount);
+        return new JobCost(fileSize, pageCount, documents * pdfLoader.estimateDocumentHeapBytes(fileSize) + pagesBytes,
+                LOW_MEMORY_BASE_BYTES + pagesBytes);
+    }
+
+    /**
+     * Admits a conversion for a waiting HTTP request: it may be queued for a
+     * while, and is rejected if the queue is full or the wait times out.
+     *
+     * @param cost The estimated cost of the job.
+     * @return A ticket that must be closed when the conversion ends.
+     * @throws AdmissionRejectedException If the job cannot be admitted.
+     * @throws InterruptedException       If the thread is interrupted while queued.
+     */
+    public Ticket admit(JobCost cost) throws AdmissionRejectedException, InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            Ticket ticket = tryReserve(cost);
+            if (ticket != null) {
+                return ticket;
+            }
+            if (queued >= maxQueued) {
+                rejections.increment();
+                throw new AdmissionRejectedException("Too many conversions in progress", retryAfterSeconds);
+            }
+
+            queued++;
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+                while (true) {
+                    if (remaining <= 0) {
+                        rejections.increment();
+                        throw new AdmissionRejectedException("Timed out waiting for a conversion slot",
+                                retryAfterSeconds);
+                    }
+                    remaining = released.awaitNanos(remaining);
+                    ticket = tryReserve(cost);
+                    if (ticket != null) {
+                        return ticket;
+                    }
+                }
+            } finally {
+                queued--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Admits a conversion for a background job, waiting as long as needed.
+     * Background jobs are already bounded by their own queue, so they are
+     * never rejected here.
+     *
+     * @param cost The estimated cost of the job.
+     * @return A ticket that must be closed when the conversion ends.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public Ticket admitWhenAvailable(JobCost cost) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            Ticket ticket = tryReserve(cost);
+            if (ticket != null) {
+                return ticket;
+            }
+            queued++;
+            try {
+                while ((ticket = tryReserve(cost)) == null) {
+                    released.await();
+                }
+                return ticket;
+            } finally {
+                queued--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Ticket tryReserve(JobCost cost) {
+        // A job that could never fit the budget in heap goes straight to low-memory mode
+        if (cost.getHeapBytes() <= heapBudgetBytes && inFlightBytes + cost.getHeapBytes() <= heapBudgetBytes) {
+            inFlightBytes += cost.getHeapBytes();
+            admittedNormal.increment();
+            return new Ticket(Mode.NORMAL, cost.getHeapBytes());
+        }
+        // Nothing else running means the job must be allowed to start, however big it is
+        if (inFlightBytes == 0 || inFlightBytes + cost.getLowMemoryHeapBytes() <= heapBudgetBytes) {
+            inFlightBytes += cost.getLowMemoryHeapBytes();
+            admittedLowMemory.increment();
+            return new Ticket(Mode.LOW_MEMORY, cost.getLowMemoryHeapBytes());
+        }
+        return null;
+    }
+
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getInFlightBytes() {
+        lock.lock();
+        try {
+            return inFlightBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHeapBudgetBytes() {
+        return heapBudgetBytes;
+    }
+
+    /**
+     * Estimated heap needed to convert one PDF, in normal and low-memory mode.
+     */
+    public static class JobCost {
+        private final long fileSize;
+        private final int pageCount;
+        private final long heapBytes;
+        private final long lowMemoryHeapBytes;
+
+        JobCost(long fileSize, int pageCount, long heapBytes, long lowMemoryHeapBytes) {
+            this.fileSize = fileSize;
+            this.pageCount = pageCount;
+            this.heapBytes = heapBytes;
+            this.lowMemoryHeapBytes = lowMemoryHeapBytes;
+        }
+
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        public int getPageCount() {
+            return pageCount;
+        }
+
+        public long getHeapBytes() {
+            return heapBytes;
+        }
+
+        public long getLowMemoryHeapBytes() {
+            return lowMemoryHeapBytes;
+        }
+    }
+
+    /**
+     * A reservation of heap budget for one running conversion.
+     */
+    public class Ticket implements AutoCloseable {
+        private final Mode mode;
+        private final long bytes;
+        private boolean closed; // guarded by lock
+
+        private Ticket(Mode mode, long bytes) {
+            this.mode = mode;
+            this.bytes = bytes;
+        }
+
+        public Mode getMode() {
+            return mode;
+        }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                if (!closed) {
+                    closed = true;
+                    inFlightBytes -= bytes;
+                    released.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
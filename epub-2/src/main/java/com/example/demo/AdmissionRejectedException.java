@@ -0,0 +1,23 @@
+package com.example.demo;
+
+/**
+ * Thrown when the server is too busy to accept another conversion.
+ */
+public class AdmissionRejectedException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int retryAfterSeconds;
+
+    public AdmissionRejectedException(String message, int retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * @return How long the client should wait before trying again, for the Retry-After header.
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,318 @@
+package com.example.demo;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Turns the lines of a PDF, delivered page by page, into the XHTML body of
+ * the book: sections and headings, paragraphs joined across lines, bulleted
+ * lists, tables, formulas and figures, plus the table of contents entries.
+ *
+ * All of the state that used to be local to {@code Service11.extractContent}
+ * lives here, so the text can be fed in from a single pass over the document.
+ * The markup is written to a {@link Writer} at the end of every page, so only
+ * the current page (and a paragraph running on from the previous one) is held
+ * in memory. One instance is used for one conversion.
+ */
+public class BookContentAssembler {
+
+    private final Writer out;
+    // Markup of the current page, written out when the page ends
+    private final StringBuilder xmlContent = new StringBuilder();
+    private int sectionCount = 0;
+    private int paraCount = 0;
+    private int formulaCount = 0;
+    private int listItemCount = 0;
+    private boolean insideList = false;
+    private boolean insideTable = false;
+
+    // Paragraphs may continue across lines and pages
+    private final StringBuilder paragraph = new StringBuilder();
+
+    // TOC builders
+    private final StringBuilder tocSections = new StringBuilder();
+    private final StringBuilder tocTables = new StringBuilder();
+    private final StringBuilder tocPages = new StringBuilder();
+
+    // Stack to keep track of current section levels
+    private final Deque<Integer> sectionStack = new ArrayDeque<>();
+
+    /**
+     * @param out Receives the body markup of the book, page by page.
+     */
+    public BookContentAssembler(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * Opens a page.
+     *
+     * @param pageNumber The 1-based page number.
+     */
+    public void startPage(int pageNumber) {
+        xmlContent.append("<page id=\"page-").append(pageNumber).append("\">\n");
+
+        // Add TOC entry for the page
+        tocPages.append("<li><a href=\"#page-")
+                .append(pageNumber)
+                .append("\">Page ")
+                .append(pageNumber)
+                .append("</a></li>\n");
+    }
+
+    /**
+     * Classifies one line of the current page and appends its markup.
+     *
+     * @param line The raw line of text.
+     */
+    public void addLine(String line) {
+        addLine(LineClassifier.classify(line));
+    }
+
+    /**
+     * Appends the markup for a line of the current page.
+     *
+     * @param line The line, as returned by {@link LineClassifier#classify(String)}.
+     */
+    public void addLine(ClassifiedLine line) {
+        ClassifiedLine.Kind kind = line.getKind();
+        if (kind == ClassifiedLine.Kind.HEADING) {
+            // Flush any paragraph before starting a new section
+            flushParagraph();
+            // Close any open table or list
+            if (insideTable) {
+                xmlContent.append("</table>\n");
+                insideTable = false;
+            }
+            if (insideList) {
+                xmlContent.append("</ul>\n");
+                insideList = false;
+            }
+
+            // Manage section hierarchy based on heading level
+            manageSectionHierarchy(line.getHeadingLevel());
+
+            // Increment section count if it's a top-level section
+            if (line.getHeadingLevel() == 1) {
+                sectionCount++;
+            }
+
+            // Append the heading with appropriate tag and attributes
+            xmlContent.append("<").append("h").append(line.getHeadingLevel()).append(" ")
+                      .append(getHeadingAttributes(line)).append(">")
+                      .append(line.getContent())
+                      .append("</").append("h").append(line.getHeadingLevel()).append(">\n");
+
+            // Add TOC entry for the section
+            tocSections.append("<li class=\"level").append(line.getHeadingLevel()).append("\">")
+                       .append("<a href=\"#").append(line.getHeadingId()).append("\">")
+                       .append(line.getContent())
+                       .append("</a></li>\n");
+        }
+        // Detect if the line starts a table
+        else if (kind == ClassifiedLine.Kind.TABLE_START) {
+            // Start a new table with borders
+            if (!insideTable) {
+                xmlContent.append("<table id=\"table-")
+                          .append(sectionCount)
+                          .append("\" style=\"border-collapse: collapse; width: 100%; border: 1px solid black;\">\n");
+                insideTable = true;
+
+                // Add TOC entry for the table
+                tocTables.append("<li><a href=\"#table-")
+                         .append(sectionCount)
+                         .append("\">Table in Section ")
+                         .append(sectionCount)
+                         .append("</a></li>\n");
+            }
+            // Here you can add your logic to parse table rows and columns
+        } else if (insideTable) {
+            // Handle table rows with borders
+            xmlContent.append("<tr style=\"border: 1px solid black;\">\n");
+            String[] columns = line.getText().split("\\s+"); // Split columns based on whitespace
+            for (String column : columns) {
+                xmlContent.append("<td style=\"border: 1px solid black; padding: 8px;\">")
+                          .append(column)
+                          .append("</td>\n"); // Add each column in a table cell with borders and padding
+            }
+            xmlContent.append("</tr>\n");
+        }
+        // Detect if the line is a bulleted list item
+        else if (kind == ClassifiedLine.Kind.BULLET) {
+            listItemCount++;
+            if (!insideList) {
+                flushParagraph();
+                xmlContent.append("<ul id=\"list-")
+                          .append(listItemCount)
+                          .append("\" style=\"list-style-type: disc; margin-left: 20px;\">\n");
+                insideList = true;
+            }
+            // Add the list item with count and style
+            xmlContent.append("<li id=\"li-").append(String.format("%04d", listItemCount)).append("\">")
+            .append(line.getContent()).append("</li>\n");
+        } else {
+            // If we were inside a bulleted list, close it
+            if (insideList) {
+                xmlContent.append("</ul>\n");
+                insideList = false;
+            }
+
+            if (kind == ClassifiedLine.Kind.BLOCK_FORMULA) {
+                flushParagraph();
+                formulaCount++;
+                xmlContent.append("<p class=\"noindentt\" id=\"formula-")
+                          .append(String.format("%04d", formulaCount))
+                          .append("\">")
+                          .append(getMathMLBlockFormula(line.getText()))
+                          .append("</p>\n");
+            } else if (kind == ClassifiedLine.Kind.TEXT) {
+                // Handle regular paragraph text (concatenating lines)
+                if (paragraph.length() > 0) {
+                    paragraph.append(" "); // Add space between concatenated lines
+                }
+                paragraph.append(line.getContent());
+
+                if (line.endsParagraph()) {
+                    flushParagraph();
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends the page's figures and closes the page.
+     *
+     * @param pageNumber     The 1-based page number.
+     * @param imageFileNames The images extracted from the page, in order.
+     * @throws IOException If the page's markup cannot be written.
+     */
+    public void endPage(int pageNumber, List<String> imageFileNames) throws IOException {
+        for (String imageFileName : imageFileNames) {
+            // Assuming images are placed after the text content of the page
+            int figNumber = imageFileNames.indexOf(imageFileName) + 1;
+            String figureId = "fig" + pageNumber + "_" + figNumber;
+
+            xmlContent.append("<figure id=\"").append(figureId).append("\">\n");
+            xmlContent.append("    <img class=\"image\" src=\"../images/").append(imageFileName).append("\" alt=\"\"/>\n");
+            xmlContent.append("    <figcaption>\n");
+            xmlContent.append("        <p class=\"figcaption\"><span epub:type=\"label\">Fig.</span> ")
+                      .append("<span epub:type=\"ordinal\">").append(pageNumber).append("_").append(figNumber).append("</span> ")
+                      .append("Description of the image.</p>\n"); // You can customize the caption as needed
+            xmlContent.append("    </figcaption>\n");
+            xmlContent.append("</figure>\n");
+        }
+
+        // Close any open structures at the end of the page
+        if (insideList) {
+            xmlContent.append("</ul>\n");
+            insideList = false;
+        }
+        if (insideTable) {
+            xmlContent.append("</table>\n");
+            insideTable = false;
+        }
+
+        xmlContent.append("</page>\n");
+        writePage();
+    }
+
+    /**
+     * Flushes the last paragraph. Call once after the last page.
+     *
+     * @throws IOException If the markup cannot be written.
+     */
+    public void finish() throws IOException {
+        flushParagraph();
+        writePage();
+    }
+
+    /**
+     * @return The table of contents markup for sections, tables and pages.
+     */
+    public String getTocContent() {
+        StringBuilder tocContent = new StringBuilder();
+        tocContent.append("<nav id=\"toc\">\n");
+        tocContent.append("<h2>Table of Contents</h2>\n");
+        tocContent.append("<ul>\n");
+        tocContent.append("<li>Sections\n<ul>\n").append(tocSections).append("</ul></li>\n");
+        tocContent.append("<li>Tables\n<ul>\n").append(tocTables).append("</ul></li>\n");
+        tocContent.append("<li>Pages\n<ul>\n").append(tocPages).append("</ul></li>\n");
+        tocContent.append("</ul>\n");
+        tocContent.append("</nav>\n");
+        return tocContent.toString();
+    }
+
+    /**
+     * Manages the section hierarchy based on the current heading level.
+     *
+     * @param level The heading level of the current section.
+     */
+    private void manageSectionHierarchy(int level) {
+        while (!sectionStack.isEmpty() && sectionStack.peek() >= level) {
+            xmlContent.append("</section>\n");
+            sectionStack.pop();
+        }
+        xmlContent.append("<section aria-labelledby=\"").append("sec-").append(sectionCount).append("\">\n");
+        sectionStack.push(level);
+    }
+
+    /**
+     * Retrieves the necessary attributes for a heading tag based on its level.
+     *
+     * @param heading The classified heading line.
+     * @return A string of attributes for the heading tag.
+     */
+    private String getHeadingAttributes(ClassifiedLine heading) {
+        StringBuilder attributes = new StringBuilder();
+        switch (heading.getHeadingLevel()) {
+            case 1:
+                attributes.append("epub:type=\"chapter\" role=\"doc-chapter\"");
+                break;
+            case 2:
+                attributes.append("aria-labelledby=\"").append(heading.getHeadingId()).append("\"");
+                break;
+            case 3:
+            case 4:
+                attributes.append("aria-labelledby=\"").append(heading.getHeadingId()).append("\"");
+                break;
+            default:
+                break;
+        }
+        return attributes.toString();
+    }
+
+    /**
+     * Generates the MathML representation for a block display formula.
+     * Modify this method to parse and convert the formula content as needed.
+     *
+     * @param line The line containing the formula.
+     * @return A string containing the MathML for the block formula.
+     */
+    private String getMathMLBlockFormula(String line) {
+        // For demonstration, returning a static MathML. Replace this with actual parsing if needed.
+        // Ideally, you would convert the content between [formula] and [/formula] from LaTeX or another format to MathML here.
+        return "<math display='block' xmlns='http://www.w3.org/1998/Math/MathML'>"
+               + "<mtext>Thus</mtext><mo>:</mo><msub><mi>T</mi><mi>e</mi></msub><mo>=</mo>"
+               + "<msqrt><mrow><mrow><mo>(</mo><mrow><msubsup><mi>T</mi><mi>i</mi><mn>2</mn></msubsup>"
+               + "<mo>+</mo><msubsup><mi>T</mi><mi>u</mi><mn>2</mn></msubsup><mo>+</mo>"
+               + "<msubsup><mi>T</mi><mi>s</mi><mn>2</mn></msubsup></mrow><mo>)</mo></mrow></mrow></msqrt>"
+               + "</math>";
+    }
+
+    private void writePage() throws IOException {
+        out.append(xmlContent);
+        xmlContent.setLength(0);
+    }
+
+    private void flushParagraph() {
+        if (paragraph.length() > 0) {
+            paraCount++;
+            xmlContent.append("<p id=\"para-").append(String.format("%04d", paraCount)).append("\">")
+                      .append(paragraph.toString().trim()).append("</p>\n");
+            paragraph.setLength(0); // Reset the paragraph
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.demo;
+
+/**
+ * The result of {@link LineClassifier#classify(String)}: what a line is, on
+ * its own, before the lines around it are taken into account.
+ */
+public final class ClassifiedLine {
+
+    public enum Kind {
+        HEADING,
+        TABLE_START,
+        BULLET,
+        BLOCK_FORMULA,
+        TEXT,
+        EMPTY
+    }
+
+    private final Kind kind;
+    // The trimmed line with non-ASCII characters removed; table rows are built from this
+    private final String text;
+    // Heading text, bullet text without its marker, or formatted paragraph text
+    private final String content;
+    private final int headingLevel;
+    private final String headingId;
+    private final boolean endsParagraph;
+
+    ClassifiedLine(Kind kind, String text, String content, int headingLevel, String headingId, boolean endsParagraph) {
+        this.kind = kind;
+        this.text = text;
+        this.content = content;
+        this.headingLevel = headingLevel;
+        this.headingId = headingId;
+        this.endsParagraph = endsParagraph;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    public int getHeadingLevel() {
+        return headingLevel;
+    }
+
+    public String getHeadingId() {
+        return headingId;
+    }
+
+    public boolean endsParagraph() {
+        return endsParagraph;
+    }
+}
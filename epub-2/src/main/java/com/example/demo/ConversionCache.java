@@ -0,0 +1,172 @@
+package com.example.demo;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Answers a PDF that has been converted before from the {@link ResultStore},
+ * without running the conversion again.
+ *
+ * Results are keyed by the SHA-256 of the uploaded PDF plus a fingerprint of
+ * the converter version and the settings that change its output, so a new
+ * converter never serves books made by an old one; results made under other
+ * settings are simply never asked for again and leave the store with age.
+ * With the cache off every result is stored under a key of its own.
+ *
+ * Identical PDFs uploaded while one of them is still converting are not
+ * converted again: they wait for the conversion in flight and receive its
+ * result, or its failure. This holds even when the cache itself is off.
+ */
+@Component
+public class ConversionCache {
+
+    // Bump whenever a change to the converter changes the EPUBs it produces
+    static final String CONVERTER_VERSION = "1";
+
+    private final ResultStore resultStore;
+    private final boolean enabled;
+    private final String fingerprint;
+
+    // One future per key whose conversion or lookup is running
+    private final ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter coalesced;
+
+    public ConversionCache(MeterRegistry registry, ImageExporter imageExporter, ResultStore resultStore,
+                           @Value("${epub.cache.enabled:true}") boolean enabled) {
+        this.resultStore = resultStore;
+        this.enabled = enabled;
+        this.fingerprint = fingerprint("converter=" + CONVERTER_VERSION
+                + ";max-dimension=" + imageExporter.getMaxDimension());
+
+        this.hits = Counter.builder("epub.cache.requests").tag("result", "hit")
+                .description("Conversions answered from the result cache")
+                .register(registry);
+        this.misses = Counter.builder("epub.cache.requests").tag("result", "miss")
+                .description("Conversions that had to run because the result cache had no entry")
+                .register(registry);
+        this.coalesced = Counter.builder("epub.cache.requests").tag("result", "coalesced")
+                .description("Conversions that waited for an identical conversion already running")
+                .register(registry);
+    }
+
+    /**
+     * Produces the EPUB for a PDF.
+     */
+    @FunctionalInterface
+    public interface Conversion {
+        /**
+         * @return The path of the generated EPUB file.
+         */
+        String convert() throws Exception;
+    }
+
+    /**
+     * Returns the cached EPUB for an upload, or runs the conversion and
+     * stores its result. The key comes from the hash taken while spooling.
+     *
+     * @param pdf        The spooled upload.
+     * @param conversion Converts the PDF on a cache miss.
+     * @return The path of the EPUB in the result store.
+     * @throws Exception If the conversion fails, here or in the request it waited for.
+     */
+    public String getOrConvert(SpooledPdf pdf, Conversion conversion) throws Exception {
+        return getOrConvert(keyOf(pdf.getSha256()), conversion);
+    }
+
+    private String getOrConvert(String key, Conversion conversion) throws Exception {
+        CompletableFuture<String> mine = new CompletableFuture<>();
+        CompletableFuture<String> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            coalesced.increment();
+            return await(running);
+        }
+        try {
+            String epubPath = lookupOrConvert(key, conversion);
+            mine.complete(epubPath);
+            return epubPath;
+        } catch (Throwable t) {
+            mine.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private String lookupOrConvert(String key, Conversion conversion) throws Exception {
+        if (!enabled) {
+            return resultStore.put(ResultStore.newKey(), Paths.get(conversion.convert())).toString();
+        }
+        Path cached = lookup(key);
+        if (cached != null) {
+            return cached.toString();
+        }
+        return resultStore.put(key, Paths.get(conversion.convert())).toString();
+    }
+
+    private static String await(CompletableFuture<String> running) throws Exception {
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception exception) {
+                throw exception;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * Builds the cache key for a PDF whose SHA-256 is already known.
+     *
+     * @param pdfSha256 The SHA-256 of the PDF.
+     * @return The hex SHA-256 followed by the converter fingerprint.
+     */
+    public String keyOf(byte[] pdfSha256) {
+        return HexFormat.of().formatHex(pdfSha256) + "-" + fingerprint;
+    }
+
+    /**
+     * Looks up a cached EPUB and marks it as recently used.
+     *
+     * @param key The cache key.
+     * @return The cached EPUB, or null on a miss.
+     */
+    public Path lookup(String key) {
+        Path cached = resultStore.get(key);
+        (cached != null ? hits : misses).increment();
+        return cached;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private static String fingerprint(String settings) {
+        byte[] hash = sha256().digest(settings.getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(hash, 0, 6);
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
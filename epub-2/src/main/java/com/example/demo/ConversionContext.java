@@ -0,0 +1,195 @@
+package com.example.demo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Workspace for a single PDF to EPUB conversion.
+ *
+ * Holds the temporary directory tree that used to live in instance fields on
+ * {@link Service11}. A new context is created for every conversion and passed
+ * through the whole pipeline, so overlapping uploads never write into each
+ * other's temp trees.
+ *
+ * A context created with {@link #createDirect(Path, ConversionProgressListener)}
+ * has no directory tree; the book XHTML and images go straight into an
+ * {@link EpubArchive} instead. One created with
+ * {@link #createStreaming(Path, ConversionProgressListener, OutputStream)}
+ * points that archive at a stream rather than a file.
+ */
+public class ConversionContext {
+
+    // Base directory for temporary EPUB creation
+    private final String epubBaseDir;
+    private final String oebpsDir;
+    private final String metaInfDir;
+    private final String imagesDir;
+    private final String stylesDir;
+    private final String xhtmlDir;
+    private final ConversionProgressListener progressListener;
+    // Only set when entries are written straight into the EPUB
+    private final EpubArchive archive;
+    // Images already stored for this conversion, so repeated images are written once
+    private final ImageRegistry imageRegistry = new ImageRegistry(this::writeImage);
+    // Known once the PDF is loaded
+    private int pageCount;
+
+    private ConversionContext(String epubBaseDir, ConversionProgressListener progressListener, EpubArchive archive) {
+        this.epubBaseDir = epubBaseDir;
+        this.progressListener = progressListener;
+        this.archive = archive;
+        this.oebpsDir = Paths.get(epubBaseDir, "OEBPS").toString();
+        this.metaInfDir = Paths.get(epubBaseDir, "META-INF").toString();
+        this.imagesDir = Paths.get(oebpsDir, "images").toString();
+        this.stylesDir = Paths.get(oebpsDir, "styles").toString();
+        this.xhtmlDir = Paths.get(oebpsDir, "xhtml").toString();
+    }
+
+    /**
+     * Creates a fresh temporary directory tree for one conversion.
+     *
+     * @return A context whose directories all exist.
+     * @throws IOException If the directories cannot be created.
+     */
+    public static ConversionContext create() throws IOException {
+        return create(Files.createTempDirectory("epub"), ConversionProgressListener.NONE);
+    }
+
+    /**
+     * Creates the directory tree for one conversion that reports its progress
+     * to the given listener.
+     *
+     * @param baseDir          An empty directory the tree is created in.
+     * @param progressListener Receives page progress for this conversion.
+     * @return A context whose directories all exist.
+     * @throws IOException If the directories cannot be created.
+     */
+    public static ConversionContext create(Path baseDir, ConversionProgressListener progressListener)
+            throws IOException {
+        ConversionContext context = new ConversionContext(baseDir.toString(), progressListener, null);
+        Files.createDirectories(Paths.get(context.metaInfDir));
+        Files.createDirectories(Paths.get(context.oebpsDir));
+        Files.createDirectories(Paths.get(context.imagesDir));
+        Files.createDirectories(Paths.get(context.stylesDir));
+        Files.createDirectories(Paths.get(context.xhtmlDir));
+        return context;
+    }
+
+    /**
+     * Creates a context that writes the EPUB directly, without a staging tree.
+     * The base directory only holds the image spool file. The EPUB is created
+     * next to it and already contains its {@code mimetype} entry.
+     *
+     * @param baseDir          An empty directory for the image spool file.
+     * @param progressListener Receives page progress for this conversion.
+     * @return A context with an open archive.
+     * @throws IOException If the EPUB or spool file cannot be created.
+     */
+    public static ConversionContext createDirect(Path baseDir, ConversionProgressListener progressListener)
+            throws IOException {
+        String epubBaseDir = baseDir.toString();
+        EpubArchive archive = new EpubArchive(Paths.get(epubBaseDir + ".epub"), baseDir);
+        return new ConversionContext(epubBaseDir, progressListener, archive);
+    }
+
+    /**
+     * Creates a context that writes the EPUB to a stream as it is produced.
+     * The base directory only holds the image spool file.
+     *
+     * @param baseDir          An empty directory for the image spool file.
+     * @param progressListener Receives page progress for this conversion.
+     * @param out              The stream the EPUB is written to; finishing the archive closes it.
+     * @return A context with an open archive, whose {@code mimetype} entry is already written.
+     * @throws IOException If the spool file cannot be created or the stream cannot be written.
+     */
+    public static ConversionContext createStreaming(Path baseDir, ConversionProgressListener progressListener,
+            OutputStream out) throws IOException {
+        EpubArchive archive = new EpubArchive(out, baseDir);
+        return new ConversionContext(baseDir.toString(), progressListener, archive);
+    }
+
+    /**
+     * Opens a writer for an XHTML file of the book: a file in the xhtml
+     * directory, or an {@code OEBPS/xhtml/} entry when writing directly.
+     *
+     * @param fileName The XHTML file name.
+     * @return A buffered UTF-8 writer; closing it completes the file.
+     * @throws IOException If the file or entry cannot be created.
+     */
+    public Writer openXhtml(String fileName) throws IOException {
+        if (archive != null) {
+            return archive.openEntry("OEBPS/xhtml/" + fileName);
+        }
+        return Files.newBufferedWriter(Paths.get(xhtmlDir, fileName), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Stores an encoded image: a file in the images directory, or a spooled
+     * archive entry when writing directly. Safe to call from several threads.
+     *
+     * @param pageIndex  The 0-based page the image belongs to.
+     * @param imageIndex The position of the image among the images of its page.
+     * @param fileName   The image file name.
+     * @param data       The encoded image.
+     * @throws IOException If the image cannot be written.
+     */
+    public void writeImage(int pageIndex, int imageIndex, String fileName, byte[] data) throws IOException {
+        if (archive != null) {
+            archive.addImage(pageIndex, imageIndex, fileName, data);
+        } else {
+            Files.write(Paths.get(imagesDir, fileName), data);
+        }
+    }
+
+    public String getEpubBaseDir() {
+        return epubBaseDir;
+    }
+
+    public String getOebpsDir() {
+        return oebpsDir;
+    }
+
+    public String getMetaInfDir() {
+        return metaInfDir;
+    }
+
+    public String getImagesDir() {
+        return imagesDir;
+    }
+
+    public String getStylesDir() {
+        return stylesDir;
+    }
+
+    public String getXhtmlDir() {
+        return xhtmlDir;
+    }
+
+    public ConversionProgressListener getProgressListener() {
+        return progressListener;
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    public void setPageCount(int pageCount) {
+        this.pageCount = pageCount;
+    }
+
+    public ImageRegistry getImageRegistry() {
+        return imageRegistry;
+    }
+
+    /**
+     * @return The archive entries are written to, or null when the conversion uses a staging tree.
+     */
+    public EpubArchive getArchive() {
+        return archive;
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.demo;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for the conversion pipeline.
+ *
+ * They show up in the "EPUB" category of a recording next to the JVM's own
+ * GC, allocation and I/O events, so a slow conversion can be traced to the
+ * stage it spent its time in. The events are enabled by default and carry
+ * no stack trace; when no recording is running they cost next to nothing.
+ * A continuous recording is started with, for example,
+ * {@code -XX:StartFlightRecording=maxage=1h,settings=default}.
+ */
+final class ConversionEvents {
+
+    private ConversionEvents() {
+    }
+
+    @Name("com.example.demo.Conversion")
+    @Label("Conversion")
+    @Description("One PDF converted to an EPUB, from loading the PDF to the finished EPUB")
+    @Category("EPUB")
+    @StackTrace(false)
+    static class Conversion extends Event {
+        @Label("Mode")
+        @Description("direct, staged or stream")
+        String mode;
+
+        @Label("PDF Size")
+        @DataAmount
+        long pdfBytes;
+
+        @Label("Pages")
+        int pages;
+
+        @Label("EPUB Size")
+        @DataAmount
+        long epubBytes;
+
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    @Name("com.example.demo.PageExtraction")
+    @Label("Page Extraction")
+    @Description("Text stripping, line classification and image extraction of one page")
+    @Category("EPUB")
+    @StackTrace(false)
+    static class PageExtraction extends Event {
+        @Label("Page")
+        int page;
+
+        @Label("Lines")
+        int lines;
+
+        @Label("Images")
+        int images;
+    }
+
+    @Name("com.example.demo.ImageEncode")
+    @Label("Image Encode")
+    @Description("One image decoded and encoded, or its JPEG bytes copied as they are")
+    @Category("EPUB")
+    @StackTrace(false)
+    static class ImageEncode extends Event {
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+
+        @Label("Format")
+        String format;
+
+        @Label("Pass-Through")
+        @Description("The JPEG stream was copied without decoding it")
+        boolean passThrough;
+
+        @Label("Downscaled")
+        boolean downscaled;
+
+        @Label("Encoded Size")
+        @DataAmount
+        long encodedBytes;
+    }
+
+    @Name("com.example.demo.Packaging")
+    @Label("Packaging")
+    @Description("Images and the package document written into the EPUB, and the ZIP finished")
+    @Category("EPUB")
+    @StackTrace(false)
+    static class Packaging extends Event {
+        @Label("Direct")
+        @Description("Entries were written straight into the archive instead of zipping a staged tree")
+        boolean direct;
+
+        @Label("Images")
+        int images;
+    }
+}
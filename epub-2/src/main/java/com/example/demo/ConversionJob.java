@@ -0,0 +1,107 @@
+package com.example.demo;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.UUID;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * A PDF to EPUB conversion running in the background. Instances are serialized
+ * as-is by {@link ConversionJobController} to report the job's status.
+ */
+public class ConversionJob implements ConversionProgressListener {
+
+    public enum State {
+        QUEUED, RUNNING, COMPLETED, FAILED
+    }
+
+    private final String id = UUID.randomUUID().toString();
+    private final String fileName;
+    private final Instant createdAt = Instant.now();
+    private volatile State state = State.QUEUED;
+    private volatile int totalPages;
+    private volatile int pagesDone;
+    private volatile String epubPath;
+    private volatile String error;
+    private volatile Instant finishedAt;
+
+    public ConversionJob(String fileName) {
+        this.fileName = fileName;
+    }
+
+    @Override
+    public void onStart(int totalPages) {
+        this.totalPages = totalPages;
+    }
+
+    @Override
+    public void onPageDone(int pagesDone) {
+        this.pagesDone = pagesDone;
+    }
+
+    void markRunning() {
+        state = State.RUNNING;
+    }
+
+    void markCompleted(String epubPath) {
+        this.epubPath = epubPath;
+        this.finishedAt = Instant.now();
+        this.state = State.COMPLETED;
+    }
+
+    void markFailed(String error) {
+        this.error = error;
+        this.finishedAt = Instant.now();
+        this.state = State.FAILED;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public int getTotalPages() {
+        return totalPages;
+    }
+
+    public int getPagesDone() {
+        return pagesDone;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return The link to fetch the finished EPUB, or null while the job is not completed.
+     */
+    public String getDownloadUrl() {
+        if (state != State.COMPLETED) {
+            return null;
+        }
+        return "/download?path=" + URLEncoder.encode(epubPath, StandardCharsets.UTF_8);
+    }
+
+    @JsonIgnore
+    public String getEpubPath() {
+        return epubPath;
+    }
+
+    @JsonIgnore
+    public Instant getFinishedAt() {
+        return finishedAt;
+    }
+}
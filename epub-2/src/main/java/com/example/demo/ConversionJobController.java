@@ -0,0 +1,64 @@
+package com.example.demo;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+
+@RestController
+@RequestMapping("/jobs")
+public class ConversionJobController {
+
+    @Autowired
+    private ConversionJobService jobService;
+
+    /**
+     * Accepts a PDF upload and queues it for conversion.
+     *
+     * @param file The uploaded PDF file.
+     * @return 202 with the job status, or an error if the upload is invalid or the queue is full.
+     */
+    @PostMapping
+    public ResponseEntity<?> submitJob(@RequestParam("file") MultipartFile file) {
+        if (file.isEmpty()) {
+            return ResponseEntity.badRequest().body(Map.of("message", "Please select a PDF file to upload."));
+        }
+        if (!"application/pdf".equalsIgnoreCase(file.getContentType())) {
+            return ResponseEntity.badRequest().body(Map.of("message", "Invalid file type. Please upload a PDF file."));
+        }
+
+        try {
+            ConversionJob job = jobService.submit(file);
+            return ResponseEntity.accepted()
+                    .location(URI.create("/jobs/" + job.getId()))
+                    .body(job);
+        } catch (RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .body(Map.of("message", "Too many conversions queued. Please try again later."));
+        } catch (Exception e) {
+            e.printStackTrace();
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("message", "An error occurred while queueing the conversion: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Reports the state, page progress and download link of a job.
+     *
+     * @param id The job id returned by {@link #submitJob(MultipartFile)}.
+     * @return The job status, or 404 if the job is unknown.
+     */
+    @GetMapping("/{id}")
+    public ResponseEntity<ConversionJob> getJob(@PathVariable("id") String id) {
+        ConversionJob job = jobService.getJob(id);
+        if (job == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(job);
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.demo;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Runs conversions in the background so that request threads are released
+ * as soon as the upload has been received. Each job gets a thread of its
+ * own, a virtual thread by default, and at most {@code workers} jobs run at
+ * once; the rest wait in a bounded queue. The CPU-heavy parts of each
+ * conversion are throttled separately by {@link CpuBudget}.
+ */
+@Service
+public class ConversionJobService {
+    private static final Logger logger = LoggerFactory.getLogger(ConversionJobService.class);
+
+    @Autowired
+    private Service11 epubService;
+
+    @Autowired
+    private AdmissionController admissionController;
+
+    @Autowired
+    private PdfLoader pdfLoader;
+
+    @Autowired
+    private ConversionCache conversionCache;
+
+    @Value("${epub.jobs.workers:8}")
+    private int workers;
+
+    @Value("${epub.jobs.queue-capacity:50}")
+    private int queueCapacity;
+
+    @Value("${epub.jobs.retention-minutes:60}")
+    private long retentionMinutes;
+
+    @Value("${epub.jobs.eviction-interval-seconds:60}")
+    private long evictionIntervalSeconds;
+
+    @Value("${epub.jobs.virtual-threads:true}")
+    private boolean virtualThreads;
+
+    private final Map<String, ConversionJob> jobs = new ConcurrentHashMap<>();
+    private BlockingQueue<Runnable> pending;
+    private Semaphore running;
+    private ExecutorService executor;
+    private ScheduledThreadPoolExecutor evictor;
+
+    @PostConstruct
+    void startExecutor() {
+        ThreadFactory threadFactory;
+        if (virtualThreads) {
+            threadFactory = Thread.ofVirtual().name("conversion-", 1).factory();
+        } else {
+            threadFactory = Thread.ofPlatform().name("conversion-", 1).daemon(true).factory();
+        }
+        // Virtual threads are cheap to create and must not be pooled, so jobs are limited by permits instead
+        executor = Executors.newThreadPerTaskExecutor(threadFactory);
+        pending = new ArrayBlockingQueue<>(queueCapacity);
+        running = new Semaphore(workers);
+
+        evictor = new ScheduledThreadPoolExecutor(1, Thread.ofPlatform().name("job-evictor").daemon(true).factory());
+        // 0 or less means finished jobs are only dropped when a job is submitted
+        if (evictionIntervalSeconds > 0) {
+            evictor.scheduleWithFixedDelay(this::evictExpiredJobs,
+                    evictionIntervalSeconds, evictionIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    void stopExecutor() {
+        evictor.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Saves the upload to a temporary file and queues it for conversion.
+     *
+     * @param file The uploaded PDF file.
+     * @return The queued job.
+     * @throws IOException                If the upload cannot be saved.
+     * @throws RejectedExecutionException If the job queue is full.
+     */
+    public ConversionJob submit(MultipartFile file) throws IOException {
+        evictExpiredJobs();
+
+        // The multipart upload is deleted when the request ends, so keep our own copy
+        SpooledPdf pdf = pdfLoader.spool(file);
+
+        ConversionJob job = new ConversionJob(file.getOriginalFilename());
+        jobs.put(job.getId(), job);
+        if (!pending.offer(() -> run(job, pdf))) {
+            jobs.remove(job.getId());
+            pdf.close();
+            throw new RejectedExecutionException("Job queue is full");
+        }
+        startPending();
+        return job;
+    }
+
+    /**
+     * Starts queued jobs while there are free worker permits. Called after a
+     * job is queued and after one finishes, so no queued job is left behind
+     * while a permit is free.
+     */
+    private void startPending() {
+        while (!pending.isEmpty() && running.tryAcquire()) {
+            Runnable task = pending.poll();
+            if (task == null) {
+                running.release();
+                continue;
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        running.release();
+                        startPending();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Shutting down
+                running.release();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @param id The job id.
+     * @return The job, or null if it is unknown or has expired.
+     */
+    public ConversionJob getJob(String id) {
+        return jobs.get(id);
+    }
+
+    private void run(ConversionJob job, SpooledPdf pdf) {
+        // Jobs answered from the cache or by an identical running conversion run too
+        job.markRunning();
+        try {
+            job.markCompleted(conversionCache.getOrConvert(pdf, () -> {
+                AdmissionController.JobCost cost = admissionController.estimate(pdf.getFile());
+                try (AdmissionController.Ticket ticket = admissionController.admitWhenAvailable(cost)) {
+                    return epubService.createEpubFromPdf(pdf.getFile(), job,
+                            ticket.getMode() == AdmissionController.Mode.LOW_MEMORY);
+                }
+            }));
+        } catch (Exception e) {
+            logger.error("Conversion job {} failed: {}", job.getId(), e.getMessage());
+            job.markFailed(e.getMessage());
+        } finally {
+            try {
+                pdf.close();
+            } catch (IOException e) {
+                logger.warn("Could not delete uploaded file {}: {}", pdf.getFile(), e.getMessage());
+            }
+        }
+    }
+
+    void evictExpiredJobs() {
+        Instant cutoff = Instant.now().minus(Duration.ofMinutes(retentionMinutes));
+        jobs.values().removeIf(job -> job.getFinishedAt() != null && job.getFinishedAt().isBefore(cutoff));
+    }
+}
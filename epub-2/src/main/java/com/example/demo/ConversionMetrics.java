@@ -0,0 +1,141 @@
+package com.example.demo;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * The meters of the conversion pipeline: how long each stage takes, how many
+ * pages, images and bytes go through it, and how many conversions are
+ * running right now.
+ *
+ * Stages are timed with {@code epub.conversion.stage}, tagged with the
+ * stage; the text and classification stages are recorded once per page, the
+ * others once per conversion. Callers take {@link System#nanoTime()} when a
+ * stage starts and pass it to {@link #recordStage(Stage, long)} when it ends.
+ */
+@Component
+public class ConversionMetrics {
+
+    /**
+     * The stages of a conversion, in the order they run.
+     */
+    public enum Stage {
+        LOAD("load"),
+        TEXT("text"),
+        CLASSIFY("classify"),
+        IMAGES("images"),
+        STYLESHEET("stylesheet"),
+        CONTENT_OPF("content-opf"),
+        NAV("nav"),
+        PACKAGE("package"),
+        CLEANUP("cleanup");
+
+        private final String tag;
+
+        Stage(String tag) {
+            this.tag = tag;
+        }
+
+        public String getTag() {
+            return tag;
+        }
+    }
+
+    private final Map<Stage, Timer> stageTimers = new EnumMap<>(Stage.class);
+    private final Timer succeeded;
+    private final Timer failed;
+    private final Counter pages;
+    private final Counter images;
+    private final Counter bytesIn;
+    private final Counter bytesOut;
+    private final AtomicInteger active = new AtomicInteger();
+
+    public ConversionMetrics(MeterRegistry registry) {
+        for (Stage stage : Stage.values()) {
+            stageTimers.put(stage, Timer.builder("epub.conversion.stage").tag("stage", stage.getTag())
+                    .description("Time spent in one stage of a conversion")
+                    .register(registry));
+        }
+        this.succeeded = Timer.builder("epub.conversion.duration").tag("outcome", "success")
+                .description("Time to convert one PDF, from loading it to the finished EPUB")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.failed = Timer.builder("epub.conversion.duration").tag("outcome", "failure")
+                .description("Time to convert one PDF, from loading it to the finished EPUB")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.pages = Counter.builder("epub.conversion.pages")
+                .description("PDF pages converted")
+                .register(registry);
+        this.images = Counter.builder("epub.conversion.images")
+                .description("Distinct images stored in EPUBs")
+                .register(registry);
+        this.bytesIn = Counter.builder("epub.conversion.bytes").tag("direction", "in")
+                .description("Bytes of PDF converted")
+                .baseUnit("bytes")
+                .register(registry);
+        this.bytesOut = Counter.builder("epub.conversion.bytes").tag("direction", "out")
+                .description("Bytes of EPUB produced")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("epub.conversion.active", active, AtomicInteger::get)
+                .description("Conversions running right now")
+                .register(registry);
+    }
+
+    /**
+     * Counts a conversion as running.
+     *
+     * @param pdfBytes The size of the PDF.
+     * @return The start time, for {@link #conversionFinished(long, boolean, long)}.
+     */
+    public long conversionStarted(long pdfBytes) {
+        active.incrementAndGet();
+        bytesIn.increment(pdfBytes);
+        return System.nanoTime();
+    }
+
+    /**
+     * Counts a conversion as no longer running.
+     *
+     * @param startNanos The time returned by {@link #conversionStarted(long)}.
+     * @param success    Whether the EPUB was completed.
+     * @param epubBytes  The size of the EPUB; ignored for a failed conversion.
+     */
+    public void conversionFinished(long startNanos, boolean success, long epubBytes) {
+        active.decrementAndGet();
+        (success ? succeeded : failed).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        if (success) {
+            bytesOut.increment(epubBytes);
+        }
+    }
+
+    public void recordStage(Stage stage, long startNanos) {
+        recordStageNanos(stage, System.nanoTime() - startNanos);
+    }
+
+    public void recordStageNanos(Stage stage, long nanos) {
+        stageTimers.get(stage).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void pageDone() {
+        pages.increment();
+    }
+
+    public void imagesStored(int count) {
+        images.increment(count);
+    }
+
+    public int getActive() {
+        return active.get();
+    }
+}
@@ -0,0 +1,26 @@
+package com.example.demo;
+
+/**
+ * Receives progress callbacks while {@link Service11} converts a document.
+ */
+public interface ConversionProgressListener {
+
+    ConversionProgressListener NONE = new ConversionProgressListener() {
+    };
+
+    /**
+     * Called once the PDF has been opened and its page count is known.
+     *
+     * @param totalPages The number of pages that will be converted.
+     */
+    default void onStart(int totalPages) {
+    }
+
+    /**
+     * Called after each page has been converted.
+     *
+     * @param pagesDone The number of pages converted so far.
+     */
+    default void onPageDone(int pagesDone) {
+    }
+}
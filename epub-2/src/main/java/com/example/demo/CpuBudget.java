@@ -0,0 +1,62 @@
+package com.example.demo;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Caps how many CPU-heavy conversion stages (text stripping, image decoding)
+ * run at the same time. Conversions themselves run on virtual threads, so
+ * there can be far more of them in flight than there are cores; this budget
+ * keeps the PDFBox work from oversubscribing the CPU while the blocking file
+ * I/O between those stages proceeds freely.
+ */
+@Component
+public class CpuBudget {
+
+    private final int totalPermits;
+    private final Semaphore permits;
+
+    public CpuBudget(@Value("${epub.conversion.cpu-permits:0}") int configuredPermits) {
+        // 0 or less means one permit per available core
+        this.totalPermits = configuredPermits > 0 ? configuredPermits : Runtime.getRuntime().availableProcessors();
+        this.permits = new Semaphore(totalPermits);
+    }
+
+    /**
+     * Runs a CPU-heavy task once a permit is available.
+     *
+     * @param task The task to run.
+     * @return The task's result.
+     * @throws IOException If the task fails or the thread is interrupted while waiting.
+     */
+    public <T> T run(CpuTask<T> task) throws IOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a CPU permit");
+        }
+        try {
+            return task.call();
+        } finally {
+            permits.release();
+        }
+    }
+
+    public int getTotalPermits() {
+        return totalPermits;
+    }
+
+    public int getAvailablePermits() {
+        return permits.availablePermits();
+    }
+
+    @FunctionalInterface
+    public interface CpuTask<T> {
+        T call() throws IOException;
+    }
+}
@@ -0,0 +1,344 @@
+package com.example.demo;
+
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes an EPUB file entry by entry, without staging the book in a
+ * directory tree first.
+ *
+ * The {@code mimetype} entry is written first and stored uncompressed, as the
+ * EPUB container format requires. A ZIP stream can only take one entry at a
+ * time, so images, which the image encoding stage produces while the book
+ * XHTML is still being written, are appended to a single spool file and
+ * copied into the archive afterwards in page order.
+ *
+ * The archive can also be written to a stream, such as an HTTP response,
+ * instead of a file. An archive on a stream that is closed without being
+ * finished stops writing, so the receiver never gets a ZIP that looks
+ * complete but is not.
+ */
+public final class EpubArchive implements AutoCloseable {
+
+    public static final String MIMETYPE = "application/epub+zip";
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final Path epubFile;
+    private final DetachableOutputStream target;
+    private final ZipOutputStream zipOut;
+    private final Path imageSpoolFile;
+    private final FileChannel imageSpool;
+    private final List<SpooledImage> images = new ArrayList<>();
+    private boolean entryOpen;
+    private boolean finished;
+
+    /**
+     * Creates the EPUB file and writes its {@code mimetype} entry.
+     *
+     * @param epubFile The EPUB file to create.
+     * @param spoolDir Directory for the image spool file.
+     * @throws IOException If the files cannot be created.
+     */
+    public EpubArchive(Path epubFile, Path spoolDir) throws IOException {
+        this(epubFile, Files.newOutputStream(epubFile), spoolDir);
+    }
+
+    /**
+     * Starts an EPUB on a stream and writes its {@code mimetype} entry.
+     * Finishing the archive closes the stream.
+     *
+     * @param out      The stream the EPUB is written to.
+     * @param spoolDir Directory for the image spool file.
+     * @throws IOException If the spool file cannot be created or the stream cannot be written.
+     */
+    public EpubArchive(OutputStream out, Path spoolDir) throws IOException {
+        this(null, out, spoolDir);
+    }
+
+    private EpubArchive(Path epubFile, OutputStream out, Path spoolDir) throws IOException {
+        this.epubFile = epubFile;
+        this.target = new DetachableOutputStream(out);
+        this.zipOut = new ZipOutputStream(target);
+        try {
+            this.imageSpoolFile = Files.createTempFile(spoolDir, "images", ".spool");
+        } catch (IOException e) {
+            out.close();
+            if (epubFile != null) {
+                Files.deleteIfExists(epubFile);
+            }
+            throw e;
+        }
+        this.imageSpool = FileChannel.open(imageSpoolFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            byte[] mimetype = MIMETYPE.getBytes(StandardCharsets.US_ASCII);
+            zipOut.putNextEntry(storedEntry("mimetype", mimetype));
+            zipOut.write(mimetype);
+            zipOut.closeEntry();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Builds an uncompressed entry for the given content. Stored entries need
+     * their size and CRC up front.
+     *
+     * @param name The entry name.
+     * @param data The entry content.
+     * @return The entry, ready for {@link ZipOutputStream#putNextEntry(ZipEntry)}.
+     */
+    public static ZipEntry storedEntry(String name, byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        entry.setCrc(crc.getValue());
+        return entry;
+    }
+
+    /**
+     * @return The EPUB file, or null if the archive is written to a stream.
+     */
+    public Path getEpubFile() {
+        return epubFile;
+    }
+
+    /**
+     * Pushes everything written so far to the file or stream, so a client
+     * receiving the archive gets the first entries without waiting for the
+     * rest. Only the data the compressor has already produced can be pushed.
+     */
+    public synchronized void flush() throws IOException {
+        checkNoEntryOpen();
+        zipOut.flush();
+    }
+
+    /**
+     * Adds a directory entry.
+     *
+     * @param name The directory name, ending in {@code /}.
+     */
+    public synchronized void putDirectory(String name) throws IOException {
+        checkNoEntryOpen();
+        zipOut.putNextEntry(new ZipEntry(name));
+        zipOut.closeEntry();
+    }
+
+    /**
+     * Adds a UTF-8 text entry.
+     *
+     * @param name    The entry name.
+     * @param content The entry content.
+     */
+    public synchronized void putEntry(String name, String content) throws IOException {
+        checkNoEntryOpen();
+        zipOut.putNextEntry(new ZipEntry(name));
+        zipOut.write(content.getBytes(StandardCharsets.UTF_8));
+        zipOut.closeEntry();
+    }
+
+    /**
+     * Starts a UTF-8 text entry that is written through the returned writer.
+     * Closing the writer ends the entry; no other entry can be added until then.
+     *
+     * @param name The entry name.
+     * @return A buffered writer for the entry's content.
+     */
+    public synchronized Writer openEntry(String name) throws IOException {
+        checkNoEntryOpen();
+        zipOut.putNextEntry(new ZipEntry(name));
+        entryOpen = true;
+        OutputStream entryStream = new FilterOutputStream(zipOut) {
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                out.write(buffer, offset, length);
+            }
+
+            @Override
+            public void close() throws IOException {
+                synchronized (EpubArchive.this) {
+                    if (entryOpen) {
+                        zipOut.closeEntry();
+                        entryOpen = false;
+                    }
+                }
+            }
+        };
+        return new BufferedWriter(new OutputStreamWriter(entryStream, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Keeps an image until {@link #copyImages(String)} puts it in the archive.
+     * Safe to call from several threads while a text entry is open.
+     *
+     * @param pageIndex  The 0-based page the image belongs to; images are archived in page order.
+     * @param imageIndex The position of the image among the images of its page.
+     * @param fileName   The image file name.
+     * @param data       The encoded image.
+     */
+    public void addImage(int pageIndex, int imageIndex, String fileName, byte[] data) throws IOException {
+        synchronized (images) {
+            long offset = imageSpool.size();
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                imageSpool.write(buffer, offset + buffer.position());
+            }
+            images.add(new SpooledImage(pageIndex, imageIndex, fileName, offset, data.length));
+        }
+    }
+
+    /**
+     * Copies all spooled images into the archive, in page order and then in
+     * their order on the page.
+     *
+     * @param directory The directory entry the images go in, ending in {@code /}.
+     * @return The file names of the archived images, in archive order.
+     */
+    public synchronized List<String> copyImages(String directory) throws IOException {
+        checkNoEntryOpen();
+        List<SpooledImage> ordered;
+        synchronized (images) {
+            ordered = new ArrayList<>(images);
+        }
+        // Images are encoded concurrently, so they arrive in no particular order
+        ordered.sort(Comparator.comparingInt((SpooledImage image) -> image.pageIndex)
+                .thenComparingInt(image -> image.imageIndex));
+
+        List<String> fileNames = new ArrayList<>(ordered.size());
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        for (SpooledImage image : ordered) {
+            zipOut.putNextEntry(new ZipEntry(directory + image.fileName));
+            long position = image.offset;
+            long end = image.offset + image.length;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = imageSpool.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Image spool ended early for " + image.fileName);
+                }
+                zipOut.write(buffer.array(), 0, read);
+                position += read;
+            }
+            zipOut.closeEntry();
+            fileNames.add(image.fileName);
+        }
+        return fileNames;
+    }
+
+    /**
+     * Completes the archive. An archive that is closed without being finished
+     * is deleted.
+     */
+    public synchronized void finish() throws IOException {
+        checkNoEntryOpen();
+        zipOut.close();
+        finished = true;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            imageSpool.close();
+            Files.deleteIfExists(imageSpoolFile);
+        } finally {
+            if (!finished) {
+                finished = true;
+                if (epubFile == null) {
+                    // Closing the ZIP writes its central directory; keep that from the receiver
+                    target.detach();
+                }
+                try {
+                    zipOut.close();
+                } finally {
+                    if (epubFile != null) {
+                        Files.deleteIfExists(epubFile);
+                    }
+                }
+            }
+        }
+    }
+
+    private void checkNoEntryOpen() {
+        if (entryOpen) {
+            throw new IllegalStateException("Another archive entry is still being written");
+        }
+    }
+
+    // Passes everything to the real stream until detached, then drops it
+    private static class DetachableOutputStream extends FilterOutputStream {
+        private boolean detached;
+
+        DetachableOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        void detach() {
+            detached = true;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!detached) {
+                out.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            if (!detached) {
+                out.write(buffer, offset, length);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!detached) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!detached) {
+                out.close();
+            }
+        }
+    }
+
+    private static class SpooledImage {
+        final int pageIndex;
+        final int imageIndex;
+        final String fileName;
+        final long offset;
+        final int length;
+
+        SpooledImage(int pageIndex, int imageIndex, String fileName, long offset, int length) {
+            this.pageIndex = pageIndex;
+            this.imageIndex = imageIndex;
+            this.fileName = fileName;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -2,26 +2,41 @@
 package com.example.demo;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.InputStreamResource;
 import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.nio.file.Files;
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
 @Controller
 public class EpubController {
 
     @Autowired
     private Service11 epubService;
 
+    @Autowired
+    private AdmissionController admissionController;
+
+    @Autowired
+    private PdfLoader pdfLoader;
+
+    @Autowired
+    private ConversionCache conversionCache;
+
+    @Autowired
+    private EpubFileSender epubFileSender;
+
+    @Autowired
+    private ResultStore resultStore;
+
     /**
      * Displays the upload form to the user.
      *
@@ -33,14 +48,18 @@ public class EpubController {
     }
 
     /**
-     * Handles the PDF upload and initiates the EPUB conversion.
+     * Handles the PDF upload and initiates the EPUB conversion. The conversion
+     * only starts once {@link AdmissionController} has admitted it; if the
+     * server is saturated the request is answered with 429 and Retry-After.
      *
-     * @param file  The uploaded PDF file.
-     * @param model The Spring Model to pass data to the view.
+     * @param file     The uploaded PDF file.
+     * @param model    The Spring Model to pass data to the view.
+     * @param response The servlet response, used to signal backpressure.
      * @return The name of the Thymeleaf template for the result.
      */
     @PostMapping("/convert")
-    public String convertPdfToEpub(@RequestParam("file") MultipartFile file, Model model) {
+    public String convertPdfToEpub(@RequestParam("file") MultipartFile file, Model model,
+            HttpServletResponse response) {
         if (file.isEmpty()) {
             model.addAttribute("message", "Please select a PDF file to upload.");
             return "upload";
@@ -53,13 +72,29 @@ public class EpubController {
                 return "upload";
             }
 
-            // Convert PDF to EPUB
-            String epubPath = epubService.createEpubFromPdf(file);
+            // Save the upload once, hashing it for the cache key on the way, so the cost
+            // estimate and the conversion can both read it from disk
+            try (SpooledPdf pdf = pdfLoader.spool(file)) {
+                // Convert PDF to EPUB, unless the same PDF is already converted or converting
+                String epubPath = conversionCache.getOrConvert(pdf, () -> {
+                    try (AdmissionController.Ticket ticket = admissionController.admit(
+                            admissionController.estimate(pdf.getFile()))) {
+                        return epubService.createEpubFromPdf(pdf.getFile(), ConversionProgressListener.NONE,
+                                ticket.getMode() == AdmissionController.Mode.LOW_MEMORY);
+                    }
+                });
 
-            // Pass the EPUB file path to the result view
-            // Encode the path or use an identifier if needed
-            model.addAttribute("epubPath", epubPath);
-            return "result";
+                // Pass the EPUB file path to the result view
+                // Encode the path or use an identifier if needed
+                model.addAttribute("epubPath", epubPath);
+                return "result";
+            }
+        } catch (AdmissionRejectedException e) {
+            response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+            model.addAttribute("message", "The server is busy converting other files. Please try again in "
+                    + e.getRetryAfterSeconds() + " seconds.");
+            return "upload";
         } catch (Exception e) {
             e.printStackTrace();
             model.addAttribute("message", "An error occurred during conversion: " + e.getMessage());
@@ -68,32 +103,86 @@ public class EpubController {
     }
 
     /**
-     * Handles the EPUB download.
+     * Converts an uploaded PDF and streams the EPUB back in the same
+     * response, for API clients that want the book in one request. The
+     * first ZIP entries reach the client before the first page is converted
+     * and no EPUB file is written on the server. A PDF that is already in the
+     * result cache is sent from there.
      *
-     * @param epubPath The path to the EPUB file.
-     * @return ResponseEntity containing the EPUB file as a downloadable resource.
+     * Errors found before the EPUB starts (no PDF, an unreadable PDF, a full
+     * server) are answered with an error status; a failure halfway through
+     * breaks off the response, so the client never gets a truncated book
+     * that looks complete.
+     *
+     * @param file     The uploaded PDF file.
+     * @param request  The upload request.
+     * @param response The response the EPUB is written to.
+     * @throws Exception If the conversion fails after the EPUB has started.
      */
-    @GetMapping("/download")
-    public ResponseEntity<InputStreamResource> downloadEpub(@RequestParam("path") String epubPath) {
-        try {
-            File epubFile = new File(epubPath);
-            if (!epubFile.exists()) {
-                return ResponseEntity.notFound().build();
-            }
-
-            InputStreamResource resource = new InputStreamResource(new FileInputStream(epubFile));
-
-            HttpHeaders headers = new HttpHeaders();
-            headers.add("Content-Disposition", "attachment; filename=converted.epub");
+    @PostMapping("/convert/stream")
+    public void streamEpub(@RequestParam("file") MultipartFile file, HttpServletRequest request,
+            HttpServletResponse response) throws Exception {
+        if (file.isEmpty() || !"application/pdf".equalsIgnoreCase(file.getContentType())) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), "Please upload a PDF file.");
+            return;
+        }
 
-            return ResponseEntity.ok()
-                    .headers(headers)
-                    .contentLength(epubFile.length())
-                    .contentType(MediaType.parseMediaType("application/epub+zip"))
-                    .body(resource);
+        try (SpooledPdf pdf = pdfLoader.spool(file)) {
+            Path cached = conversionCache.isEnabled()
+                    ? conversionCache.lookup(conversionCache.keyOf(pdf.getSha256()))
+                    : null;
+            if (cached != null) {
+                epubFileSender.send(cached, request, response);
+                return;
+            }
+            try (AdmissionController.Ticket ticket = admissionController.admit(
+                    admissionController.estimate(pdf.getFile()))) {
+                response.setContentType(EpubArchive.MIMETYPE);
+                response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=converted.epub");
+                epubService.writeEpubFromPdf(pdf.getFile(), response.getOutputStream(),
+                        ConversionProgressListener.NONE, ticket.getMode() == AdmissionController.Mode.LOW_MEMORY);
+            }
+        } catch (AdmissionRejectedException e) {
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+            response.sendError(HttpStatus.TOO_MANY_REQUESTS.value(),
+                    "The server is busy converting other files. Please try again later.");
         } catch (Exception e) {
-            e.printStackTrace();
-            return ResponseEntity.status(500).build();
+            if (response.isCommitted()) {
+                throw e;
+            }
+            response.reset();
+            response.sendError(HttpStatus.INTERNAL_SERVER_ERROR.value(),
+                    "An error occurred during conversion: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Handles the EPUB download, including conditional and range requests.
+     * Only results in the result store can be downloaded; any other path,
+     * including the staging files of running conversions, is answered with
+     * 404, as if it did not exist.
+     *
+     * @param epubPath The path to the EPUB file, absolute or relative to the result store.
+     * @param request  The download request.
+     * @param response The response the file is written to.
+     * @throws IOException If the file cannot be read.
+     */
+    @GetMapping("/download")
+    public void downloadEpub(@RequestParam("path") String epubPath, HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        Path root = resultStore.getRoot().toAbsolutePath().normalize();
+        Path file;
+        try {
+            file = root.resolve(epubPath).normalize();
+        } catch (InvalidPathException e) {
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+        Path stored = file.startsWith(root) ? resultStore.find(file) : null;
+        if (stored == null) {
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return;
         }
+        epubFileSender.send(stored, request, response);
     }
 }
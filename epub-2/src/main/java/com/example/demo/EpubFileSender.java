@@ -0,0 +1,217 @@
+package com.example.demo;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Sends EPUB files to the client.
+ *
+ * Every response carries a strong ETag, so a client that already has the
+ * book gets 304 Not Modified, and a single byte range can be requested to
+ * resume an interrupted download (guarded by If-Range). Requests for several
+ * ranges get the whole file, as HTTP allows.
+ *
+ * On Tomcat the file is handed to the connector's sendfile support, so its
+ * bytes never pass through the JVM; elsewhere it is transferred from a
+ * {@link FileChannel} in small chunks. The file is always closed, also when
+ * the client goes away halfway.
+ */
+@Component
+public class EpubFileSender {
+    private static final Logger logger = LoggerFactory.getLogger(EpubFileSender.class);
+
+    static final String MEDIA_TYPE = "application/epub+zip";
+
+    // Request attributes Tomcat reads to send a file with sendfile, as its DefaultServlet does
+    static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private final Counter sentWithSendfile;
+    private final Counter sentFromChannel;
+    private final Counter notModified;
+
+    public EpubFileSender(MeterRegistry registry) {
+        this.sentWithSendfile = Counter.builder("epub.downloads").tag("transfer", "sendfile")
+                .description("EPUB downloads handed to the connector's sendfile support")
+                .register(registry);
+        this.sentFromChannel = Counter.builder("epub.downloads").tag("transfer", "channel")
+                .description("EPUB downloads transferred from a file channel")
+                .register(registry);
+        this.notModified = Counter.builder("epub.downloads").tag("transfer", "not-modified")
+                .description("EPUB downloads answered with 304 Not Modified")
+                .register(registry);
+    }
+
+    /**
+     * Sends an EPUB, or the requested part of it.
+     *
+     * @param file     The EPUB file.
+     * @param request  The download request.
+     * @param response The response to write.
+     * @throws IOException If the file cannot be read before the response is committed.
+     */
+    public void send(Path file, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+        if (!attributes.isRegularFile()) {
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+
+        long length = attributes.size();
+        String etag = etagOf(file, attributes);
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, attributes.lastModifiedTime().toMillis());
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (matchesAny(request.getHeader(HttpHeaders.IF_NONE_MATCH), etag)) {
+            notModified.increment();
+            response.setStatus(HttpStatus.NOT_MODIFIED.value());
+            return;
+        }
+
+        long start = 0;
+        long end = length - 1;
+        String range = request.getHeader(HttpHeaders.RANGE);
+        if (range != null && ifRangeHolds(request, etag, attributes)) {
+            List<HttpRange> ranges;
+            try {
+                ranges = HttpRange.parseRanges(range);
+            } catch (IllegalArgumentException e) {
+                // A malformed Range header is ignored
+                ranges = List.of();
+            }
+            if (ranges.size() == 1) {
+                try {
+                    start = ranges.get(0).getRangeStart(length);
+                    end = ranges.get(0).getRangeEnd(length);
+                } catch (IllegalArgumentException e) {
+                    start = length;
+                }
+                if (start >= length || end < start) {
+                    response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                    response.sendError(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+                    return;
+                }
+                response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+
+        long count = end - start + 1;
+        response.setContentType(MEDIA_TYPE);
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=converted.epub");
+        response.setContentLengthLong(count);
+        if (HttpMethod.HEAD.matches(request.getMethod()) || count == 0) {
+            return;
+        }
+
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            // Tomcat sends the file itself once the response is complete
+            request.setAttribute(SENDFILE_FILENAME, file.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end + 1);
+            sentWithSendfile.increment();
+            return;
+        }
+        transfer(file, start, count, response);
+        sentFromChannel.increment();
+    }
+
+    private static void transfer(Path file, long start, long count, HttpServletResponse response) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            long end = start + count;
+            while (position < end) {
+                long sent = channel.transferTo(position, end - position, out);
+                if (sent <= 0) {
+                    // The file was truncated under us; the client sees a short body
+                    break;
+                }
+                position += sent;
+            }
+        } catch (IOException e) {
+            if (!response.isCommitted()) {
+                throw e;
+            }
+            // Usually the client went away; nothing can be sent any more
+            logger.debug("Download of {} stopped: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Builds the ETag of an EPUB. Cache entries are named after the hash of
+     * their PDF and the converter settings; the write time and size change
+     * whenever the bytes under that name do.
+     */
+    static String etagOf(Path file, BasicFileAttributes attributes) {
+        String name = file.getFileName().toString();
+        if (name.endsWith(".epub")) {
+            name = name.substring(0, name.length() - ".epub".length());
+        }
+        return "\"" + name + "-" + Long.toHexString(attributes.lastModifiedTime().toMillis())
+                + "-" + Long.toHexString(attributes.size()) + "\"";
+    }
+
+    // If-None-Match uses the weak comparison, so a W/ prefix is ignored
+    private static boolean matchesAny(String header, String etag) {
+        if (header == null) {
+            return false;
+        }
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // A Range only applies if the client's copy is still the current file
+    private static boolean ifRangeHolds(HttpServletRequest request, String etag, BasicFileAttributes attributes) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag);
+        }
+        try {
+            return request.getDateHeader(HttpHeaders.IF_RANGE) / 1000
+                    == attributes.lastModifiedTime().toMillis() / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
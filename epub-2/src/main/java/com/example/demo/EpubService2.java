@@ -26,6 +26,7 @@ import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
 import org.apache.pdfbox.text.PDFTextStripper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
@@ -33,6 +34,9 @@ import org.springframework.web.multipart.MultipartFile;
 public class EpubService2 {
 	private static final Logger logger = LoggerFactory.getLogger(EpubService.class);
 
+	@Autowired
+	private PdfLoader pdfLoader;
+
 	// Base directory for temporary EPUB creation
 	private String epubBaseDir;
 	private String oebpsDir;
@@ -44,17 +48,18 @@ public class EpubService2 {
 	private int chapterCounter = 1; // Chapter numbering
 
 	public String createEpubFromPdf(MultipartFile file) throws Exception {
-		try {
+		try (SpooledPdf pdf = pdfLoader.spool(file)) {
 			setupDirectories();
-			PDDocument document = PDDocument.load(file.getInputStream());
-			List<String> xhtmlFiles = extractContent(document);
-			createIndex();
-			createStylesheet();
-			createContentOpf(xhtmlFiles);
-			createNavXhtml(xhtmlFiles);
-			createContainerXml();
-			createMimetypeFile();
-			return packageEpub();
+			try (PDDocument document = pdfLoader.load(pdf.getFile())) {
+				List<String> xhtmlFiles = extractContent(document);
+				createIndex();
+				createStylesheet();
+				createContentOpf(xhtmlFiles);
+				createNavXhtml(xhtmlFiles);
+				createContainerXml();
+				createMimetypeFile();
+				return packageEpub();
+			}
 		} catch (IOException e) {
 			logger.error("Error creating EPUB from PDF: {}", e.getMessage());
 			throw new Exception("Failed to create EPUB", e);
@@ -14,12 +14,16 @@ import org.apache.pdfbox.text.PDFTextStripper;
 import org.apache.pdfbox.text.TextPosition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 @Service
 public class EpubService3 {
     private static final Logger logger = LoggerFactory.getLogger(EpubService.class);
 
+    @Autowired
+    private PdfLoader pdfLoader;
+
     // Base directory for temporary EPUB creation
     private String epubBaseDir;
     private String oebpsDir;
@@ -45,16 +49,17 @@ public class EpubService3 {
     }
 
     public String createEpubFromPdf(MultipartFile file) throws Exception {
-        try {
+        try (SpooledPdf pdf = pdfLoader.spool(file)) {
             setupDirectories();
-            PDDocument document = PDDocument.load(file.getInputStream());
-            List<String> xhtmlFiles = extractContent(document);
-            createStylesheet();
-            createContentOpf(xhtmlFiles);
-            createNavXhtml(xhtmlFiles);
-            createContainerXml();
-            createMimetypeFile();
-            return packageEpub();
+            try (PDDocument document = pdfLoader.load(pdf.getFile())) {
+                List<String> xhtmlFiles = extractContent(document);
+                createStylesheet();
+                createContentOpf(xhtmlFiles);
+                createNavXhtml(xhtmlFiles);
+                createContainerXml();
+                createMimetypeFile();
+                return packageEpub();
+            }
         } catch (IOException e) {
             logger.error("Error creating EPUB from PDF: {}", e.getMessage());
             throw new Exception("Failed to create EPUB", e);
@@ -432,7 +437,6 @@ public class EpubService3 {
             createXhtmlFile(xhtmlFile, xmlContent.toString());
             xhtmlFiles.add(xhtmlFile);
 
-            document.close();
             return xhtmlFiles;
         }
 
@@ -0,0 +1,245 @@
+package com.example.demo;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Encodes and stores images off the page loop.
+ *
+ * The page loop only names each new image and hands it over; a bounded pool
+ * of workers, shared by all conversions, decodes, encodes and stores it while
+ * the loop goes on with the text of the following pages. When the queue is
+ * full the page loop encodes the image itself, which keeps a fast producer
+ * from piling up decoded work.
+ *
+ * PDFBox documents are not thread-safe. Before handing an image over, the
+ * page loop resolves its color space, which may touch the page's shared
+ * resource cache, so a worker only reads the image's own streams. All images
+ * of a document must be encoded before the document is closed; see
+ * {@link Batch#awaitDocument(PDDocument)}.
+ */
+@Component
+public class ImageEncodingStage {
+
+    private final ImageExporter imageExporter;
+    private final ThreadPoolExecutor executor;
+    private final int workers;
+    private final int queueDepth;
+
+    private final Timer encodeTimer;
+    private final Counter encodedInline;
+
+    public ImageEncodingStage(MeterRegistry registry, ImageExporter imageExporter, CpuBudget cpuBudget,
+                              @Value("${epub.images.workers:0}") int configuredWorkers,
+                              @Value("${epub.images.queue-depth:64}") int queueDepth) {
+        this.imageExporter = imageExporter;
+        // 0 or less means one worker per CPU permit
+        this.workers = configuredWorkers > 0 ? configuredWorkers : cpuBudget.getTotalPermits();
+        this.queueDepth = Math.max(1, queueDepth);
+        this.encodeTimer = Timer.builder("epub.images.encode")
+                .description("Time to decode, encode and store one image")
+                .register(registry);
+        this.encodedInline = Counter.builder("epub.images.encoded.inline")
+                .description("Images encoded on the page loop because the image queue was full")
+                .register(registry);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(this.queueDepth), runnable -> {
+                    Thread thread = new Thread(runnable, "image-encoder-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, (runnable, pool) -> {
+                    if (pool.isShutdown()) {
+                        throw new RejectedExecutionException("Image encoding stage is shut down");
+                    }
+                    // Queue full: encode on the page loop's thread instead
+                    encodedInline.increment();
+                    runnable.run();
+                });
+
+        Gauge.builder("epub.images.queue.depth", executor, pool -> pool.getQueue().size())
+                .description("Images waiting for an encoding worker")
+                .register(registry);
+        Gauge.builder("epub.images.active", executor, ThreadPoolExecutor::getActiveCount)
+                .description("Images being encoded by the worker pool")
+                .register(registry);
+    }
+
+    @PreDestroy
+    void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Starts tracking the images of one conversion.
+     */
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Stores the bytes of an encoded image.
+     */
+    @FunctionalInterface
+    public interface ImageSink {
+        /**
+         * @param encoded The encoded image; empty if no writer accepts it, or null if it cannot be decoded.
+         */
+        void accept(byte[] encoded) throws IOException;
+    }
+
+    /**
+     * The images handed over by one conversion.
+     */
+    public class Batch {
+        // Guarded by itself
+        private final Map<PDDocument, List<CompletableFuture<Void>>> pending = new IdentityHashMap<>();
+        private volatile boolean cancelled;
+
+        private Batch() {
+        }
+
+        /**
+         * Queues an image to be encoded and passed to the sink. Returns as
+         * soon as a worker has the image, or after encoding it on this thread
+         * when the queue is full.
+         *
+         * @param document The document the image was loaded from.
+         * @param image    The image.
+         * @param format   The format to write, from {@link ImageExporter#chooseFormat(PDImageXObject)}.
+         * @param sink     Receives the encoded image on the thread that encoded it.
+         * @throws IOException If the image's color space cannot be read or the stage is shut down.
+         */
+        public void submit(PDDocument document, PDImageXObject image, ImageFormat format, ImageSink sink)
+                throws IOException {
+            // JPEG 2000 images carry their color space in the stream, which would mean decoding here
+            if (!image.getStream().getFilters().contains(COSName.JPX_DECODE)) {
+                image.getColorSpace();
+            }
+
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            synchronized (pending) {
+                pending.computeIfAbsent(document, d -> new ArrayList<>()).add(done);
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        if (!cancelled) {
+                            long start = System.nanoTime();
+                            sink.accept(imageExporter.encode(image, format));
+                            encodeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                        }
+                        done.complete(null);
+                    } catch (Throwable e) {
+                        done.completeExceptionally(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                done.completeExceptionally(e);
+                throw new IOException("Image could not be queued for encoding", e);
+            }
+        }
+
+        /**
+         * Waits until every image of a document has been encoded, so the
+         * document can be closed. Failures are reported by {@link #await()}.
+         *
+         * @param document The document about to be closed.
+         */
+        public void awaitDocument(PDDocument document) throws InterruptedIOException {
+            List<CompletableFuture<Void>> tasks;
+            synchronized (pending) {
+                tasks = pending.get(document);
+                tasks = tasks == null ? List.of() : new ArrayList<>(tasks);
+            }
+            for (CompletableFuture<Void> task : tasks) {
+                try {
+                    task.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for images to be encoded");
+                } catch (ExecutionException e) {
+                    // Reported by await()
+                }
+            }
+        }
+
+        /**
+         * Waits until every image has been encoded and stored.
+         *
+         * @throws IOException If any image could not be encoded or stored.
+         */
+        public void await() throws IOException {
+            for (CompletableFuture<Void> task : allTasks()) {
+                try {
+                    task.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for images to be encoded");
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException("Image encoding failed", e.getCause());
+                }
+            }
+        }
+
+        /**
+         * Skips the images that have not been started yet and waits for the
+         * rest, so nothing is written once the conversion has given up.
+         */
+        public void cancel() throws InterruptedIOException {
+            cancelled = true;
+            List<PDDocument> documents;
+            synchronized (pending) {
+                documents = new ArrayList<>(pending.keySet());
+            }
+            for (PDDocument document : documents) {
+                awaitDocument(document);
+            }
+        }
+
+        private List<CompletableFuture<Void>> allTasks() {
+            List<CompletableFuture<Void>> tasks = new ArrayList<>();
+            synchronized (pending) {
+                for (List<CompletableFuture<Void>> documentTasks : pending.values()) {
+                    tasks.addAll(documentTasks);
+                }
+            }
+            return tasks;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package com.example.demo;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+import org.apache.pdfbox.pdmodel.graphics.color.PDICCBased;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Turns PDF images into JPEG or PNG files for the EPUB.
+ *
+ * The format is chosen from the image dictionary alone, before anything is
+ * decoded (see {@link #chooseFormat(PDImageXObject)}). An image that is
+ * already stored as a baseline JPEG (DCTDecode) in gray or RGB is copied as
+ * it is, with no decode and re-encode. Everything else (Flate, CCITT, JBIG2,
+ * JPEG 2000, CMYK or inverted JPEGs) is decoded and encoded under the
+ * {@link CpuBudget}.
+ *
+ * Images larger than the configured maximum dimension (a 600 dpi scan, say)
+ * are decoded with subsampling, so the full-resolution raster is never built,
+ * and then scaled down to fit. Their JPEG streams are not copied either.
+ *
+ * An image that cannot be decoded or encoded is replaced by a one-pixel
+ * placeholder (see {@link #placeholder(ImageFormat)}), since the page that
+ * shows it may already refer to its file.
+ */
+@Component
+public class ImageExporter {
+
+    // Decode every filter in front of DCTDecode, but leave the JPEG data itself encoded
+    private static final List<String> JPEG_STOP_FILTERS = Collections.singletonList(COSName.DCT_DECODE.getName());
+
+    private final CpuBudget cpuBudget;
+    private final int maxDimension;
+    private final Counter passedThrough;
+    private final Counter reencodedJpeg;
+    private final Counter encodedPng;
+    private final Counter downscaled;
+    private final Counter placeholders;
+    private final byte[] jpegPlaceholder = encodePlaceholder(BufferedImage.TYPE_INT_RGB, "jpg");
+    private final byte[] pngPlaceholder = encodePlaceholder(BufferedImage.TYPE_INT_ARGB, "png");
+
+    public ImageExporter(MeterRegistry registry, CpuBudget cpuBudget,
+                         @Value("${epub.images.max-dimension:2048}") int maxDimension) {
+        this.cpuBudget = cpuBudget;
+        // 0 or less means images keep their size
+        this.maxDimension = maxDimension > 0 ? maxDimension : Integer.MAX_VALUE;
+        this.passedThrough = Counter.builder("epub.images.exported").tag("path", "passthrough").tag("format", "jpeg")
+                .description("Images copied into the EPUB without being decoded")
+                .register(registry);
+        this.reencodedJpeg = Counter.builder("epub.images.exported").tag("path", "reencoded").tag("format", "jpeg")
+                .description("Images decoded and encoded as JPEG")
+                .register(registry);
+        this.encodedPng = Counter.builder("epub.images.exported").tag("path", "reencoded").tag("format", "png")
+                .description("Images decoded and encoded as PNG")
+                .register(registry);
+        this.downscaled = Counter.builder("epub.images.downscaled")
+                .description("Images scaled down to the maximum dimension")
+                .register(registry);
+        this.placeholders = Counter.builder("epub.images.placeholders")
+                .description("Images that could not be decoded or encoded and were replaced by a placeholder")
+                .register(registry);
+    }
+
+    /**
+     * @return The largest width or height of an exported image, or {@link Integer#MAX_VALUE} if images keep their size.
+     */
+    public int getMaxDimension() {
+        return maxDimension;
+    }
+
+    /**
+     * Picks the output format of an image from its dictionary, without
+     * decoding it. Only images the PDF already stores lossily, as JPEG
+     * (DCTDecode) or JPEG 2000, are treated as photographs and written as
+     * JPEG. PNG is used for everything JPEG would damage or inflate: stencil
+     * masks and images with a soft mask or color-key mask, CCITT or JBIG2
+     * scans, and images stored losslessly (Flate, LZW, RunLength or no
+     * filter), such as diagrams, screenshots and palette images.
+     *
+     * @param image The PDF image.
+     * @return The format to encode the image in.
+     */
+    public ImageFormat chooseFormat(PDImageXObject image) {
+        COSStream stream = image.getCOSObject();
+        if (image.isStencil() || stream.containsKey(COSName.SMASK) || stream.containsKey(COSName.MASK)) {
+            return ImageFormat.PNG;
+        }
+        List<COSName> filters = image.getStream().getFilters();
+        if (filters.contains(COSName.CCITTFAX_DECODE) || filters.contains(COSName.JBIG2_DECODE)) {
+            return ImageFormat.PNG;
+        }
+        // A lossy source has nothing left for PNG to preserve, and would only get bigger as PNG
+        if (filters.contains(COSName.DCT_DECODE) || filters.contains(COSName.JPX_DECODE)) {
+            return ImageFormat.JPEG;
+        }
+        return ImageFormat.PNG;
+    }
+
+    /**
+     * Produces the file for an image.
+     *
+     * @param image  The PDF image.
+     * @param format The format from {@link #chooseFormat(PDImageXObject)}.
+     * @return The encoded bytes; empty if no writer accepts the decoded image,
+     *         or {@code null} if the image cannot be decoded.
+     * @throws IOException If the image stream cannot be read.
+     */
+    public byte[] encode(PDImageXObject image, ImageFormat format) throws IOException {
+        ConversionEvents.ImageEncode event = new ConversionEvents.ImageEncode();
+        event.begin();
+        event.width = image.getWidth();
+        event.height = image.getHeight();
+        event.format = format.getExtension();
+        byte[] encoded = null;
+        try {
+            encoded = encode(image, format, event);
+            return encoded;
+        } finally {
+            event.encodedBytes = encoded != null ? encoded.length : 0;
+            event.commit();
+        }
+    }
+
+    /**
+     * Produces the file written in place of an image that {@link #encode}
+     * could not produce: a single white JPEG pixel, or a transparent PNG one.
+     *
+     * @param format The format the image was to be written in.
+     * @return The encoded placeholder.
+     */
+    public byte[] placeholder(ImageFormat format) {
+        placeholders.increment();
+        return (format == ImageFormat.PNG ? pngPlaceholder : jpegPlaceholder).clone();
+    }
+
+    private byte[] encode(PDImageXObject image, ImageFormat format, ConversionEvents.ImageEncode event)
+            throws IOException {
+        boolean oversized = Math.max(image.getWidth(), image.getHeight()) > maxDimension;
+        if (format == ImageFormat.JPEG && !oversized && isPassThroughJpeg(image)) {
+            byte[] jpegBytes;
+            try (InputStream in = image.getStream().createInputStream(JPEG_STOP_FILTERS)) {
+                jpegBytes = in.readAllBytes();
+            }
+            passedThrough.increment();
+            event.passThrough = true;
+            return jpegBytes;
+        }
+        event.downscaled = oversized;
+
+        byte[] encoded = cpuBudget.run(() -> {
+            BufferedImage bImage = oversized ? decodeToFit(image) : image.getImage();
+            if (bImage == null) {
+                return null;
+            }
+            if (format == ImageFormat.PNG && !oversized && isBlackAndWhite(image)) {
+                // One bit per pixel instead of eight
+                bImage = toBinary(bImage);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(bImage, format == ImageFormat.PNG ? "png" : "jpg", out);
+            return out.toByteArray();
+        });
+        if (encoded != null) {
+            (format == ImageFormat.PNG ? encodedPng : reencodedJpeg).increment();
+        }
+        return encoded;
+    }
+
+    // Decodes every n-th sample, which leaves the image less than twice too large, then scales the rest of the way
+    private BufferedImage decodeToFit(PDImageXObject image) throws IOException {
+        int longest = Math.max(image.getWidth(), image.getHeight());
+        int subsampling = Math.max(1, longest / maxDimension);
+        BufferedImage decoded = image.getImage(null, subsampling);
+        if (decoded == null) {
+            return null;
+        }
+        downscaled.increment();
+
+        double scale = (double) maxDimension / Math.max(decoded.getWidth(), decoded.getHeight());
+        if (scale >= 1) {
+            return decoded;
+        }
+        int width = Math.max(1, (int) Math.round(decoded.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(decoded.getHeight() * scale));
+        int type = decoded.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage scaled = new BufferedImage(width, height, type);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            // Bilinear is enough for a reduction of less than half
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(decoded, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    // A 1-bit gray image without transparency only has black and white pixels once decoded
+    private static boolean isBlackAndWhite(PDImageXObject image) throws IOException {
+        COSStream stream = image.getCOSObject();
+        return image.getBitsPerComponent() == 1 && !stream.containsKey(COSName.SMASK)
+                && !stream.containsKey(COSName.MASK)
+                && (image.isStencil() || image.getColorSpace() instanceof PDDeviceGray);
+    }
+
+    private static byte[] encodePlaceholder(int type, String formatName) {
+        BufferedImage pixel = new BufferedImage(1, 1, type);
+        if (type == BufferedImage.TYPE_INT_RGB) {
+            pixel.setRGB(0, 0, 0xFFFFFF);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(pixel, formatName, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static BufferedImage toBinary(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_BYTE_BINARY) {
+            return image;
+        }
+        BufferedImage binary = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_BINARY);
+        Graphics2D g = binary.createGraphics();
+        try {
+            g.drawImage(image, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return binary;
+    }
+
+    /**
+     * Checks whether the encoded stream of an image is a JPEG file that shows
+     * the same picture as the decoded image. JPEG 2000 is left out on purpose:
+     * it is not an EPUB core media type, so reading systems need not show it.
+     */
+    boolean isPassThroughJpeg(PDImageXObject image) throws IOException {
+        List<COSName> filters = image.getStream().getFilters();
+        if (filters.isEmpty() || !COSName.DCT_DECODE.equals(filters.get(filters.size() - 1))) {
+            return false;
+        }
+        // A copied JPEG would lose the transparency a mask adds
+        COSStream stream = image.getCOSObject();
+        if (image.isStencil() || stream.containsKey(COSName.SMASK) || stream.containsKey(COSName.MASK)) {
+            return false;
+        }
+        PDColorSpace colorSpace = image.getColorSpace();
+        boolean grayOrRgb = colorSpace instanceof PDDeviceGray || colorSpace instanceof PDDeviceRGB
+                || (colorSpace instanceof PDICCBased
+                        && (colorSpace.getNumberOfComponents() == 1 || colorSpace.getNumberOfComponents() == 3));
+        return grayOrRgb && hasDefaultDecode(image.getDecode());
+    }
+
+    // A Decode array other than [0 1 0 1 ...] remaps the samples, which a copied JPEG would lose
+    private static boolean hasDefaultDecode(COSArray decode) {
+        if (decode == null) {
+            return true;
+        }
+        for (int i = 0; i < decode.size(); i++) {
+            if (!(decode.getObject(i) instanceof COSNumber number) || number.floatValue() != (i % 2)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
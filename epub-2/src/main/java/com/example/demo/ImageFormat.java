@@ -0,0 +1,45 @@
+package com.example.demo;
+
+/**
+ * The file formats images are written to the EPUB in. Both are EPUB core
+ * media types.
+ */
+public enum ImageFormat {
+
+    /** Photographs, which the PDF already stores as JPEG or JPEG 2000. */
+    JPEG("jpg", "image/jpeg"),
+
+    /** Line art, diagrams, 1-bit scans and images with transparency, which JPEG would blur or flatten. */
+    PNG("png", "image/png");
+
+    private final String extension;
+    private final String mediaType;
+
+    ImageFormat(String extension, String mediaType) {
+        this.extension = extension;
+        this.mediaType = mediaType;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * Finds the media type of an image file written by the converter.
+     *
+     * @param fileName The image file name.
+     * @return The media type for the manifest; JPEG for unknown extensions.
+     */
+    public static String mediaTypeOf(String fileName) {
+        for (ImageFormat format : values()) {
+            if (fileName.endsWith("." + format.extension)) {
+                return format.mediaType;
+            }
+        }
+        return JPEG.mediaType;
+    }
+}
@@ -0,0 +1,263 @@
+package com.example.demo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObjectKey;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+/**
+ * Remembers which images of one conversion have already been stored, so an
+ * image that appears on many pages (a logo, a running header) is decoded and
+ * written once and every page refers to the same file.
+ *
+ * Images are matched by their indirect object reference first. That is the
+ * identity of the image stream within the PDF, and unlike the stream object
+ * itself it is the same in every shard document opened from the file. Images
+ * that are embedded several times as separate objects are matched by a
+ * SHA-256 of their encoded data and image dictionary.
+ *
+ * Workers register every use of an image under the file name the image would
+ * get from that use, and start encoding an image the first time it is seen.
+ * Which worker sees an image first depends on thread timing, so the file name
+ * is only chosen when the uses are placed, in page order: an image is named
+ * after the first page that shows it, as in a sequential pass, and written
+ * once it has both a name and its encoded data.
+ */
+public class ImageRegistry {
+
+    private final ImageWriter writer;
+    private final ConcurrentMap<COSObjectKey, CompletableFuture<StoredImage>> byReference = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<StoredImage>> byContent = new ConcurrentHashMap<>();
+    // Registered uses not placed yet, by the file name each would give its image
+    private final ConcurrentMap<String, Use> uses = new ConcurrentHashMap<>();
+    private final AtomicInteger stored = new AtomicInteger();
+    private final AtomicInteger reused = new AtomicInteger();
+
+    /**
+     * Writes a named, encoded image.
+     */
+    @FunctionalInterface
+    public interface ImageWriter {
+        void write(int pageIndex, int imageIndex, String fileName, byte[] data) throws IOException;
+    }
+
+    /**
+     * Starts storing a newly seen image.
+     */
+    @FunctionalInterface
+    public interface ImageStore {
+        /**
+         * @param image Receives the encoded image, from any thread.
+         */
+        void store(StoredImage image) throws IOException;
+    }
+
+    /**
+     * @param writer Writes each distinct image once it is named and encoded.
+     */
+    public ImageRegistry(ImageWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Registers a use of an image, storing the image first if this is the
+     * first time it is seen in the conversion.
+     *
+     * @param reference  The indirect object the image was loaded from, or null for a direct stream.
+     * @param image      The image.
+     * @param pageIndex  The 0-based page the use is on.
+     * @param imageIndex The position of the use among the images of its page.
+     * @param fileName   The file name the image gets if this is the first use placed; unique to this use.
+     * @param store      Stores the image; called at most once per distinct image.
+     * @throws IOException If the image cannot be read or stored.
+     */
+    public void register(COSObjectKey reference, PDImageXObject image, int pageIndex, int imageIndex,
+                         String fileName, ImageStore store) throws IOException {
+        StoredImage storedImage = reference == null
+                ? resolve(byContent, contentKey(image), () -> storeNew(store))
+                : resolve(byReference, reference, () -> resolve(byContent, contentKey(image), () -> storeNew(store)));
+        uses.put(fileName, new Use(storedImage, pageIndex, imageIndex, fileName));
+    }
+
+    /**
+     * Returns the file name a registered use refers to. The first use of an
+     * image that is placed names it, so uses must be placed in page order.
+     *
+     * @param fileName The file name the use was registered under.
+     * @return The file name of the image.
+     * @throws IOException If the image was already encoded and cannot be written.
+     */
+    public String place(String fileName) throws IOException {
+        Use use = uses.remove(fileName);
+        if (use == null) {
+            throw new IllegalArgumentException("No image use registered as " + fileName);
+        }
+        return use.image.name(use);
+    }
+
+    /**
+     * @return The number of distinct images stored so far.
+     */
+    public int getStoredCount() {
+        return stored.get();
+    }
+
+    /**
+     * @return The number of image uses that were answered with an already stored image.
+     */
+    public int getReusedCount() {
+        return reused.get();
+    }
+
+    /**
+     * One distinct image of the conversion. It is written when it has both
+     * its name and its encoded data, whichever comes last.
+     */
+    public final class StoredImage {
+        private Use namedBy; // guarded by this
+        private byte[] data; // guarded by this; kept until the image is named
+
+        private StoredImage() {
+        }
+
+        /**
+         * Hands over the encoded image.
+         *
+         * @param encoded The encoded image; null or empty if it cannot be encoded, and then nothing is written.
+         * @throws IOException If the image is already named and cannot be written.
+         */
+        public void accept(byte[] encoded) throws IOException {
+            Use use;
+            synchronized (this) {
+                if (namedBy == null) {
+                    data = encoded;
+                    return;
+                }
+                use = namedBy;
+            }
+            write(use, encoded);
+        }
+
+        private String name(Use use) throws IOException {
+            byte[] encoded;
+            synchronized (this) {
+                if (namedBy != null) {
+                    return namedBy.fileName;
+                }
+                namedBy = use;
+                encoded = data;
+                data = null;
+            }
+            write(use, encoded);
+            return use.fileName;
+        }
+
+        private void write(Use use, byte[] encoded) throws IOException {
+            if (encoded != null && encoded.length > 0) {
+                writer.write(use.pageIndex, use.imageIndex, use.fileName, encoded);
+            }
+        }
+    }
+
+    private StoredImage storeNew(ImageStore store) throws IOException {
+        StoredImage image = new StoredImage();
+        store.store(image);
+        stored.incrementAndGet();
+        return image;
+    }
+
+    private <K> StoredImage resolve(ConcurrentMap<K, CompletableFuture<StoredImage>> images, K key,
+                                    ImageResolver resolver) throws IOException {
+        CompletableFuture<StoredImage> created = new CompletableFuture<>();
+        CompletableFuture<StoredImage> existing = images.putIfAbsent(key, created);
+        if (existing != null) {
+            StoredImage image = await(existing);
+            reused.incrementAndGet();
+            return image;
+        }
+        try {
+            StoredImage image = resolver.resolve();
+            created.complete(image);
+            return image;
+        } catch (IOException | RuntimeException e) {
+            // Let a later use of the image try again
+            images.remove(key, created);
+            created.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private static StoredImage await(CompletableFuture<StoredImage> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for an image", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Image could not be stored", e.getCause());
+        }
+    }
+
+    // Hashes the encoded stream together with every dictionary entry that changes how it decodes
+    private static String contentKey(PDImageXObject image) throws IOException {
+        MessageDigest digest = sha256();
+        COSStream stream = image.getCOSObject();
+        Map<String, String> entries = new TreeMap<>();
+        for (Map.Entry<COSName, COSBase> entry : stream.entrySet()) {
+            if (!COSName.LENGTH.equals(entry.getKey())) {
+                entries.put(entry.getKey().getName(), String.valueOf(entry.getValue()));
+            }
+        }
+        digest.update(entries.toString().getBytes(StandardCharsets.UTF_8));
+        byte[] buffer = new byte[8192];
+        try (InputStream in = stream.createRawInputStream()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface ImageResolver {
+        StoredImage resolve() throws IOException;
+    }
+
+    private static class Use {
+        final StoredImage image;
+        final int pageIndex;
+        final int imageIndex;
+        final String fileName;
+
+        Use(StoredImage image, int pageIndex, int imageIndex, String fileName) {
+            this.image = image;
+            this.pageIndex = pageIndex;
+            this.imageIndex = imageIndex;
+            this.fileName = fileName;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.example.demo;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Classifies single lines of extracted text: headings, table starts, bullets,
+ * block formulas and paragraph text.
+ *
+ * This runs for every line of every document, so it avoids the per-line
+ * regex compilation and array allocation of the original implementation.
+ * Patterns are compiled once, bullets are recognised by looking at the first
+ * characters instead of trying a hundred prefixes, and the line is sanitized
+ * in a single scan that returns the original string when nothing needs to be
+ * removed. The results are exactly those of the original rules, including
+ * their quirks.
+ */
+public final class LineClassifier {
+
+    // Numbered sections "1.1 Title" (h2), "1.1.1 Title" (h3) and "1.1.1.1 Title" (h4)
+    private static final Pattern NUMBERED_HEADING = Pattern.compile("(\\d+(?:\\.\\d+){1,3})\\s+(.*)");
+    // Bold text enclosed in *...*, italic text enclosed in _..._
+    private static final Pattern BOLD = Pattern.compile("\\*(.*?)\\*");
+    private static final Pattern ITALIC = Pattern.compile("_(.*?)_");
+
+    private static final String FORMULA_START = "[formula]";
+    private static final String FORMULA_END = "[/formula]";
+
+    private LineClassifier() {
+    }
+
+    /**
+     * Classifies a line without regard to the lines around it. Safe to call
+     * from any thread.
+     *
+     * @param line The raw line of text.
+     * @return The classification.
+     */
+    public static ClassifiedLine classify(String line) {
+        String text = sanitize(line);
+
+        ClassifiedLine heading = classifyHeading(text);
+        if (heading != null) {
+            return heading;
+        }
+        if (text.startsWith("TABLE")) {
+            return new ClassifiedLine(ClassifiedLine.Kind.TABLE_START, text, null, 0, null, false);
+        }
+
+        int bulletLength = bulletMarkerLength(text);
+        if (bulletLength > 0) {
+            String bulletText = text.substring(bulletLength).trim();
+            return new ClassifiedLine(ClassifiedLine.Kind.BULLET, text, bulletText, 0, null, false);
+        }
+
+        if (text.startsWith(FORMULA_START) && text.endsWith(FORMULA_END)) {
+            return new ClassifiedLine(ClassifiedLine.Kind.BLOCK_FORMULA, text, null, 0, null, false);
+        }
+        if (text.isEmpty()) {
+            return new ClassifiedLine(ClassifiedLine.Kind.EMPTY, text, null, 0, null, false);
+        }
+
+        // If the line ends with punctuation, it's the end of a paragraph
+        char last = text.charAt(text.length() - 1);
+        boolean endsParagraph = last == '.' || last == '!' || last == '?';
+        return new ClassifiedLine(ClassifiedLine.Kind.TEXT, text, insertInlineFormula(formatText(text)), 0, null,
+                endsParagraph);
+    }
+
+    /**
+     * Trims the line and then removes every character outside printable ASCII,
+     * in one scan. The result is not trimmed again, so removed characters next
+     * to a space can leave a leading or trailing space behind.
+     *
+     * @param line The raw line.
+     * @return The sanitized line; the same instance if nothing had to change.
+     */
+    static String sanitize(String line) {
+        int start = 0;
+        int end = line.length();
+        while (start < end && line.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+
+        int firstRemoved = start;
+        while (firstRemoved < end && isPrintableAscii(line.charAt(firstRemoved))) {
+            firstRemoved++;
+        }
+        if (firstRemoved == end) {
+            return start == 0 && end == line.length() ? line : line.substring(start, end);
+        }
+
+        StringBuilder sanitized = new StringBuilder(end - start);
+        sanitized.append(line, start, firstRemoved);
+        for (int i = firstRemoved + 1; i < end; i++) {
+            char c = line.charAt(i);
+            if (isPrintableAscii(c)) {
+                sanitized.append(c);
+            }
+        }
+        return sanitized.toString();
+    }
+
+    private static boolean isPrintableAscii(char c) {
+        return c >= 0x20 && c <= 0x7E;
+    }
+
+    static ClassifiedLine classifyHeading(String text) {
+        if (text.isEmpty()) {
+            return null;
+        }
+        char first = text.charAt(0);
+
+        // H1: All uppercase, at least five characters, no punctuation
+        if (text.length() >= 5 && (first == ' ' || (first >= 'A' && first <= 'Z')) && isUppercaseOrSpace(text)) {
+            // Every chapter heading gets the same id, as before
+            return new ClassifiedLine(ClassifiedLine.Kind.HEADING, text, text, 1, "chapter-1", false);
+        }
+
+        if (first >= '0' && first <= '9') {
+            Matcher matcher = NUMBERED_HEADING.matcher(text);
+            if (matcher.matches()) {
+                String number = matcher.group(1);
+                int level = 1;
+                for (int i = 0; i < number.length(); i++) {
+                    if (number.charAt(i) == '.') {
+                        level++;
+                    }
+                }
+                return new ClassifiedLine(ClassifiedLine.Kind.HEADING, text, matcher.group(2), level,
+                        "sec-" + number.replace('.', '-'), false);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isUppercaseOrSpace(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != ' ' && (c < 'A' || c > 'Z')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the length of the bullet marker at the start of the line, or 0.
+     * A marker is followed by a space and is one of "-", "*", "1." to "10.",
+     * "a." to "p.", "A." to "P.", or the same with a comma instead of the
+     * period. "l,", "N,", "O," and "P," are not markers; the original symbol
+     * table listed the period forms twice instead. Non-ASCII bullets such as
+     * "•" never reach this point, since sanitizing removes them.
+     */
+    static int bulletMarkerLength(String text) {
+        int length = text.length();
+        if (length < 2) {
+            return 0;
+        }
+        char first = text.charAt(0);
+        char second = text.charAt(1);
+        switch (first) {
+            case '-':
+            case '*':
+                return second == ' ' ? 1 : 0;
+            case '1':
+                if (second == '0' && length >= 4 && isBulletPunctuation(text.charAt(2)) && text.charAt(3) == ' ') {
+                    return 3;
+                }
+                return numberedMarkerLength(text, true);
+            case '2': case '3': case '4': case '5': case '6': case '7': case '8': case '9':
+                return numberedMarkerLength(text, true);
+            case 'l':
+            case 'N': case 'O': case 'P':
+                return numberedMarkerLength(text, false);
+            default:
+                if ((first >= 'a' && first <= 'p') || (first >= 'A' && first <= 'P')) {
+                    return numberedMarkerLength(text, true);
+                }
+                return 0;
+        }
+    }
+
+    private static int numberedMarkerLength(String text, boolean commaAllowed) {
+        if (text.length() < 3 || text.charAt(2) != ' ') {
+            return 0;
+        }
+        char punctuation = text.charAt(1);
+        return punctuation == '.' || (commaAllowed && punctuation == ',') ? 2 : 0;
+    }
+
+    private static boolean isBulletPunctuation(char c) {
+        return c == '.' || c == ',';
+    }
+
+    static String formatText(String line) {
+        String formattedLine = line;
+        if (formattedLine.indexOf('*') >= 0) {
+            formattedLine = BOLD.matcher(formattedLine).replaceAll("<b>$1</b>");
+        }
+        if (formattedLine.indexOf('_') >= 0) {
+            formattedLine = ITALIC.matcher(formattedLine).replaceAll("<i>$1</i>");
+        }
+        return formattedLine;
+    }
+
+    static String insertInlineFormula(String line) {
+        // Inline formulas are enclosed within $...$
+        int dollarStart = line.indexOf('$');
+        if (dollarStart == -1) {
+            return line;
+        }
+        StringBuilder result = new StringBuilder(line.length() + 64);
+        int start = 0;
+        while (dollarStart != -1) {
+            int dollarEnd = line.indexOf('$', dollarStart + 1);
+            if (dollarEnd == -1) {
+                // No closing $, treat the rest as normal text
+                break;
+            }
+            // Append text before $, then the formula as inline MathML
+            result.append(line, start, dollarStart)
+                  .append("<math display='inline' xmlns='http://www.w3.org/1998/Math/MathML'>")
+                  .append(line, dollarStart + 1, dollarEnd)
+                  .append("</math>");
+            start = dollarEnd + 1;
+            dollarStart = line.indexOf('$', start);
+        }
+        result.append(line, start, line.length());
+        return result.toString();
+    }
+}
@@ -0,0 +1,307 @@
+package com.example.demo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Extracts and classifies the text and images of a document, page by page.
+ *
+ * PDFBox documents are not thread-safe, so large documents are split into
+ * shards of consecutive pages. Each worker opens its own read-only
+ * {@link PDDocument} on the spooled PDF file and extracts the shards it picks
+ * up. Finished pages are handed to the caller's {@link PageSink} strictly in
+ * page order, so paragraphs, lists and sections that cross a shard boundary
+ * are assembled exactly as they are in a sequential pass. Workers stay at
+ * most two shards each ahead of the sink, so a slow sink does not leave the
+ * extracted pages of the whole document waiting in memory.
+ */
+@Component
+public class ParallelTextExtractor {
+    private static final Logger logger = LoggerFactory.getLogger(ParallelTextExtractor.class);
+
+    private final PdfLoader pdfLoader;
+    private final CpuBudget cpuBudget;
+    private final ConversionMetrics metrics;
+    private final int workers;
+    private final int shardPages;
+    // Workers mostly wait for CPU permits or file I/O, so virtual threads are enough
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("extraction-", 1).factory());
+
+    public ParallelTextExtractor(PdfLoader pdfLoader, CpuBudget cpuBudget, ConversionMetrics metrics,
+                                 @Value("${epub.extraction.workers:0}") int configuredWorkers,
+                                 @Value("${epub.extraction.shard-pages:25}") int shardPages) {
+        this.pdfLoader = pdfLoader;
+        this.cpuBudget = cpuBudget;
+        this.metrics = metrics;
+        // 0 or less means one worker per CPU permit
+        this.workers = configuredWorkers > 0 ? configuredWorkers : cpuBudget.getTotalPermits();
+        this.shardPages = Math.max(1, shardPages);
+    }
+
+    @PreDestroy
+    void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Extracts every page of a document and hands the pages to the sink in order.
+     *
+     * @param document       The open document. Used directly when the document is not split.
+     * @param pdfFile        The file the document was loaded from; each worker opens its own copy.
+     * @param lowMemory      Whether the document was opened in low-memory mode. Such documents are
+     *                       never split, since every worker would hold another copy.
+     * @param imageExtractor Extracts the images of one page.
+     * @param sink           Receives the pages in page order.
+     * @throws IOException If a page cannot be extracted or the sink fails.
+     */
+    public void extract(PDDocument document, File pdfFile, boolean lowMemory,
+                        ImageExtractor imageExtractor, PageSink sink) throws IOException {
+        int numberOfPages = document.getNumberOfPages();
+        int shards = (numberOfPages + shardPages - 1) / shardPages;
+        int shardWorkers = getShardWorkers(numberOfPages);
+        if (shardWorkers == 0 || pdfFile == null || lowMemory) {
+            try {
+                extractRange(document, 1, numberOfPages, imageExtractor, sink);
+            } finally {
+                imageExtractor.release(document);
+            }
+            return;
+        }
+
+        logger.debug("Extracting {} pages in {} shards on {} workers", numberOfPages, shards, shardWorkers);
+        List<CompletableFuture<List<ExtractedPage>>> results = new ArrayList<>();
+        for (int shard = 0; shard < shards; shard++) {
+            results.add(new CompletableFuture<>());
+        }
+        AtomicInteger nextShard = new AtomicInteger();
+        // A permit per shard being extracted or waiting for the sink
+        Semaphore lookAhead = new Semaphore(2 * shardWorkers);
+        CountDownLatch finished = new CountDownLatch(shardWorkers);
+        for (int worker = 0; worker < shardWorkers; worker++) {
+            executor.execute(() -> {
+                try {
+                    runWorker(pdfFile, numberOfPages, nextShard, lookAhead, results, imageExtractor);
+                } finally {
+                    finished.countDown();
+                }
+            });
+        }
+
+        try {
+            for (CompletableFuture<List<ExtractedPage>> result : results) {
+                for (ExtractedPage page : awaitShard(result)) {
+                    sink.accept(page);
+                }
+                lookAhead.release();
+            }
+        } finally {
+            // Stop workers from picking up more shards if anything went wrong, and wake the waiting ones
+            nextShard.set(shards);
+            lookAhead.release(shards);
+            // Their documents must be closed before the caller's is
+            awaitWorkers(finished);
+        }
+    }
+
+    /**
+     * @param numberOfPages The pages of a document.
+     * @return The workers {@link #extract} runs for it, each with its own copy of the
+     *         document besides the caller's; 0 if the document is extracted in one pass.
+     */
+    public int getShardWorkers(int numberOfPages) {
+        int shards = (numberOfPages + shardPages - 1) / shardPages;
+        int shardWorkers = Math.min(workers, shards);
+        return shardWorkers > 1 ? shardWorkers : 0;
+    }
+
+    private void runWorker(File pdfFile, int numberOfPages, AtomicInteger nextShard, Semaphore lookAhead,
+                           List<CompletableFuture<List<ExtractedPage>>> results, ImageExtractor imageExtractor) {
+        int shard;
+        try {
+            shard = takeShard(nextShard, lookAhead, results.size());
+        } catch (InterruptedException e) {
+            return;
+        }
+        if (shard >= results.size()) {
+            return;
+        }
+        try (PDDocument workerDocument = pdfLoader.load(pdfFile)) {
+            try {
+                for (; shard < results.size(); shard = takeShard(nextShard, lookAhead, results.size())) {
+                    int startPage = shard * shardPages + 1;
+                    int endPage = Math.min(numberOfPages, startPage + shardPages - 1);
+                    List<ExtractedPage> pages = new ArrayList<>(endPage - startPage + 1);
+                    extractRange(workerDocument, startPage, endPage, imageExtractor, pages::add);
+                    results.get(shard).complete(pages);
+                }
+            } finally {
+                imageExtractor.release(workerDocument);
+            }
+        } catch (IOException | RuntimeException | InterruptedException e) {
+            if (shard < results.size()) {
+                results.get(shard).completeExceptionally(e);
+            }
+            // Fail the shards nobody has picked up yet so the caller does not wait for them
+            for (int failed = nextShard.getAndSet(results.size()); failed < results.size(); failed++) {
+                results.get(failed).completeExceptionally(e);
+            }
+        }
+    }
+
+    private void extractRange(PDDocument document, int startPage, int endPage,
+                              ImageExtractor imageExtractor, PageSink sink) throws IOException {
+        SinglePassTextStripper textStripper = new SinglePassTextStripper(new SinglePassTextStripper.PageListener() {
+            private List<ClassifiedLine> lines;
+            private ConversionEvents.PageExtraction event;
+            private long pageStart;
+            private long classifyNanos;
+
+            @Override
+            public void startPage(int pageNumber) {
+                lines = new ArrayList<>();
+                event = new ConversionEvents.PageExtraction();
+                event.begin();
+                pageStart = System.nanoTime();
+                classifyNanos = 0;
+            }
+
+            @Override
+            public void line(String line) {
+                long start = System.nanoTime();
+                lines.add(LineClassifier.classify(line));
+                classifyNanos += System.nanoTime() - start;
+            }
+
+            @Override
+            public void endPage(int pageNumber) throws IOException {
+                // Text stripping is the time on the page that classification did not take
+                metrics.recordStageNanos(ConversionMetrics.Stage.TEXT, System.nanoTime() - pageStart - classifyNanos);
+                metrics.recordStageNanos(ConversionMetrics.Stage.CLASSIFY, classifyNanos);
+                // Images come after the text of the page
+                List<String> imageFileNames = imageExtractor.extract(document, pageNumber - 1);
+                event.page = pageNumber;
+                event.lines = lines.size();
+                event.images = imageFileNames.size();
+                event.commit();
+                sink.accept(new ExtractedPage(pageNumber, lines, imageFileNames));
+            }
+        }, cpuBudget);
+        textStripper.setSortByPosition(true);  // Ensure lines are processed in the correct order
+        textStripper.setStartPage(startPage);
+        textStripper.setEndPage(endPage);
+        textStripper.process(document);
+    }
+
+    // Waits until the next shard would not run too far ahead of the sink; shards past the end mean stop
+    private static int takeShard(AtomicInteger nextShard, Semaphore lookAhead, int shards)
+            throws InterruptedException {
+        lookAhead.acquire();
+        int shard = nextShard.getAndIncrement();
+        if (shard >= shards) {
+            lookAhead.release();
+        }
+        return shard;
+    }
+
+    private static void awaitWorkers(CountDownLatch finished) {
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static List<ExtractedPage> awaitShard(CompletableFuture<List<ExtractedPage>> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a text extraction shard");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Text extraction shard failed", e.getCause());
+        }
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public int getShardPages() {
+        return shardPages;
+    }
+
+    /**
+     * Extracts the images of one page of a document.
+     */
+    @FunctionalInterface
+    public interface ImageExtractor {
+        /**
+         * @return The file names the images of the page were registered under with the {@link ImageRegistry}.
+         */
+        List<String> extract(PDDocument document, int pageIndex) throws IOException;
+
+        /**
+         * Called before a document that images were extracted from is closed,
+         * so work that still reads it can finish first.
+         */
+        default void release(PDDocument document) throws IOException {
+        }
+    }
+
+    /**
+     * Receives extracted pages.
+     */
+    @FunctionalInterface
+    public interface PageSink {
+        void accept(ExtractedPage page) throws IOException;
+    }
+
+    /**
+     * The classified lines and image file names of one page.
+     */
+    public static class ExtractedPage {
+        private final int pageNumber;
+        private final List<ClassifiedLine> lines;
+        private final List<String> imageFileNames;
+
+        ExtractedPage(int pageNumber, List<ClassifiedLine> lines, List<String> imageFileNames) {
+            this.pageNumber = pageNumber;
+            this.lines = lines;
+            this.imageFileNames = imageFileNames;
+        }
+
+        public int getPageNumber() {
+            return pageNumber;
+        }
+
+        public List<ClassifiedLine> getLines() {
+            return lines;
+        }
+
+        public List<String> getImageFileNames() {
+            return imageFileNames;
+        }
+    }
+}
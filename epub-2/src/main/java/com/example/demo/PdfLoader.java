@@ -0,0 +1,136 @@
+package com.example.demo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.MultipartFile;
+
+/**
+ * Opens uploaded PDFs for conversion.
+ *
+ * Uploads are spooled to disk once and opened from there with PDFBox's
+ * random-access file reader, so the raw PDF bytes are never copied into the
+ * heap. How much of the parsed document (decoded streams and other scratch
+ * data) may live in main memory is controlled by the load mode:
+ * <ul>
+ * <li>HEAP - everything in main memory, fastest for small files</li>
+ * <li>MIXED - up to max-main-memory-mb per document in main memory, the rest in temp files</li>
+ * <li>TEMP_FILE - scratch data only in temp files</li>
+ * </ul>
+ */
+@Component
+public class PdfLoader {
+
+    public enum Mode {
+        HEAP, MIXED, TEMP_FILE
+    }
+
+    private final Mode mode;
+    private final long maxMainMemoryBytes;
+    private final File tempDir;
+
+    public PdfLoader(@Value("${epub.pdf.load-mode:MIXED}") Mode mode,
+            @Value("${epub.pdf.max-main-memory-mb:64}") long maxMainMemoryMb,
+            @Value("${epub.pdf.temp-dir:}") String tempDir) {
+        this.mode = mode;
+        this.maxMainMemoryBytes = maxMainMemoryMb * 1024 * 1024;
+        this.tempDir = tempDir.isEmpty() ? null : new File(tempDir);
+    }
+
+    /**
+     * Saves an upload to a temporary file, hashing it on the way so the
+     * result cache does not have to read the file again.
+     *
+     * @param file The uploaded PDF file.
+     * @return The spooled file, which is deleted when closed.
+     * @throws IOException If the upload cannot be saved.
+     */
+    public SpooledPdf spool(MultipartFile file) throws IOException {
+        Path path = tempDir == null
+                ? Files.createTempFile("upload", ".pdf")
+                : Files.createTempFile(Files.createDirectories(tempDir.toPath()), "upload", ".pdf");
+        MessageDigest digest = ConversionCache.sha256();
+        try (InputStream in = new DigestInputStream(file.getInputStream(), digest)) {
+            Files.copy(in, path, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        return new SpooledPdf(path.toFile(), digest.digest());
+    }
+
+    /**
+     * Opens a PDF with the configured load mode.
+     *
+     * @param pdfFile The PDF file.
+     * @return The opened document.
+     * @throws IOException If the PDF cannot be read.
+     */
+    public PDDocument load(File pdfFile) throws IOException {
+        return load(pdfFile, mode);
+    }
+
+    /**
+     * Opens a PDF, optionally forcing all scratch data into temp files.
+     *
+     * @param pdfFile   The PDF file.
+     * @param lowMemory Use TEMP_FILE mode regardless of the configured mode.
+     * @return The opened document.
+     * @throws IOException If the PDF cannot be read.
+     */
+    public PDDocument load(File pdfFile, boolean lowMemory) throws IOException {
+        return load(pdfFile, lowMemory ? Mode.TEMP_FILE : mode);
+    }
+
+    private PDDocument load(File pdfFile, Mode loadMode) throws IOException {
+        return PDDocument.load(pdfFile, memoryUsageSetting(loadMode));
+    }
+
+    private MemoryUsageSetting memoryUsageSetting(Mode loadMode) {
+        MemoryUsageSetting setting;
+        switch (loadMode) {
+            case HEAP:
+                return MemoryUsageSetting.setupMainMemoryOnly();
+            case TEMP_FILE:
+                setting = MemoryUsageSetting.setupTempFileOnly();
+                break;
+            default:
+                setting = MemoryUsageSetting.setupMixed(maxMainMemoryBytes);
+                break;
+        }
+        return tempDir == null ? setting : setting.setTempDir(tempDir);
+    }
+
+    /**
+     * Estimates how much heap an opened document takes in the configured mode.
+     *
+     * @param fileSize The size of the PDF file in bytes.
+     * @return The estimated heap use of the parsed document in bytes.
+     */
+    public long estimateDocumentHeapBytes(long fileSize) {
+        // Parsed COS objects and decoded streams take roughly twice the file size
+        long inHeap = fileSize * 2;
+        switch (mode) {
+            case HEAP:
+                return inHeap;
+            case TEMP_FILE:
+                return 0;
+            default:
+                return Math.min(inHeap, maxMainMemoryBytes);
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+}
@@ -0,0 +1,410 @@
+package com.example.demo;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Owns the files conversions leave behind: the finished EPUBs and the
+ * staging directories they are built in.
+ *
+ * Finished EPUBs are kept under the root directory, each in a subdirectory
+ * named after the first two characters of its key, so no directory grows
+ * huge. A result is deleted once it has not been used for the configured
+ * time to live, and the least recently used results are deleted once the
+ * store grows past its disk quota. An in-memory index, rebuilt from the root
+ * directory at startup, tracks the results and their sizes.
+ *
+ * Staging directories live under {@code staging/} in the same root. They
+ * are deleted on a background thread, off the request path. The ones a
+ * previous run left behind are deleted at startup, and anything in the
+ * staging area older than the time to live is deleted by the same sweep that
+ * expires results, except the directories of conversions still running and
+ * the EPUBs built next to them.
+ */
+@Component
+public final class ResultStore {
+    private static final Logger logger = LoggerFactory.getLogger(ResultStore.class);
+
+    private static final String SUFFIX = ".epub";
+    private static final String STAGING = "staging";
+
+    private final Path root;
+    private final Path stagingRoot;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final ScheduledThreadPoolExecutor cleaner;
+
+    // Access-ordered, so iteration starts at the least recently used result; guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes; // guarded by this
+    // Handed out by createStagingDirectory and not yet deleted; a long conversion outlives the time to live
+    private final Set<Path> liveStaging = ConcurrentHashMap.newKeySet();
+
+    private final Counter evictedForQuota;
+    private final Counter evictedForAge;
+    private final Counter cleanupFailures;
+
+    public ResultStore(MeterRegistry registry,
+                       @Value("${epub.results.dir:}") String root,
+                       @Value("${epub.results.max-size-mb:1024}") long maxSizeMb,
+                       @Value("${epub.results.ttl-minutes:1440}") long ttlMinutes,
+                       @Value("${epub.results.sweep-interval-seconds:60}") long sweepIntervalSeconds)
+            throws IOException {
+        this.root = root.isEmpty() ? Paths.get(System.getProperty("java.io.tmpdir"), "epub-results") : Paths.get(root);
+        this.stagingRoot = this.root.resolve(STAGING);
+        // 0 or less means no quota and no time limit respectively
+        this.maxBytes = maxSizeMb > 0 ? maxSizeMb * 1024 * 1024 : Long.MAX_VALUE;
+        this.ttlMillis = ttlMinutes > 0 ? TimeUnit.MINUTES.toMillis(ttlMinutes) : Long.MAX_VALUE;
+
+        this.evictedForQuota = Counter.builder("epub.results.evictions").tag("reason", "quota")
+                .description("Results deleted to stay within the disk quota")
+                .register(registry);
+        this.evictedForAge = Counter.builder("epub.results.evictions").tag("reason", "ttl")
+                .description("Results deleted because they were not used within their time to live")
+                .register(registry);
+        this.cleanupFailures = Counter.builder("epub.results.cleanup.failures")
+                .description("Results or staging directories that could not be deleted")
+                .register(registry);
+        Gauge.builder("epub.results.size", this, ResultStore::getTotalBytes)
+                .description("Disk space used by stored results")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("epub.results.entries", this, ResultStore::getEntryCount)
+                .description("Results in the store")
+                .register(registry);
+
+        Files.createDirectories(stagingRoot);
+        loadIndex();
+        // Staging directories present now belong to conversions of an earlier run
+        List<Path> leftovers = new ArrayList<>();
+        try (DirectoryStream<Path> staged = Files.newDirectoryStream(stagingRoot)) {
+            staged.forEach(leftovers::add);
+        }
+
+        this.cleaner = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "result-store-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Gauge.builder("epub.results.cleanup.pending", cleaner, pool -> pool.getQueue().size())
+                .description("Deletions and sweeps waiting for the cleanup thread")
+                .register(registry);
+        cleaner.execute(() -> leftovers.forEach(this::delete));
+        if (sweepIntervalSeconds > 0 && ttlMillis != Long.MAX_VALUE) {
+            cleaner.scheduleWithFixedDelay(() -> sweep(System.currentTimeMillis()),
+                    sweepIntervalSeconds, sweepIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void stopCleaner() {
+        cleaner.shutdown();
+        try {
+            // Let pending deletions finish so a clean shutdown leaves no staging directories
+            cleaner.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return A fresh key for a result that is not looked up by content.
+     */
+    public static String newKey() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
+    /**
+     * Moves a finished EPUB into the store, deleting least recently used
+     * results until the store is within its quota again. The new result
+     * itself is never deleted to make room.
+     *
+     * @param key  The key, made of characters that are safe in file names; at least two long.
+     * @param epub The finished EPUB; it is moved, not copied.
+     * @return The stored EPUB.
+     * @throws IOException If the file cannot be moved.
+     */
+    public Path put(String key, Path epub) throws IOException {
+        long size = Files.size(epub);
+        Path file = fileFor(key);
+        Files.createDirectories(file.getParent());
+        Files.move(epub, file, StandardCopyOption.REPLACE_EXISTING);
+
+        List<Path> evicted = new ArrayList<>();
+        synchronized (this) {
+            Entry previous = entries.put(key, new Entry(size, System.currentTimeMillis()));
+            totalBytes += size - (previous == null ? 0 : previous.size);
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (totalBytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<String, Entry> entry = eldest.next();
+                if (entry.getKey().equals(key)) {
+                    continue;
+                }
+                totalBytes -= entry.getValue().size;
+                evicted.add(fileFor(entry.getKey()));
+                eldest.remove();
+            }
+        }
+        evictedForQuota.increment(evicted.size());
+        deleteAll(evicted);
+        return file;
+    }
+
+    /**
+     * Looks up a result and marks it as used.
+     *
+     * @param key The key the result was stored under.
+     * @return The stored EPUB, or null if there is none.
+     */
+    public Path get(String key) {
+        Path file = fileFor(key);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (!Files.isRegularFile(file)) {
+                // Deleted behind our back
+                totalBytes -= entries.remove(key).size;
+                return null;
+            }
+            entry.lastUsed = System.currentTimeMillis();
+        }
+        touch(file);
+        return file;
+    }
+
+    /**
+     * Looks up a result by its file and marks it as used. Only stored
+     * EPUBs are found; staging files and anything else under the root are not.
+     *
+     * @param file The path of the EPUB, as returned by {@link #put(String, Path)}.
+     * @return The stored EPUB, or null if the path is not a stored result.
+     */
+    public Path find(Path file) {
+        String name = file.getFileName() == null ? "" : file.getFileName().toString();
+        if (!name.endsWith(SUFFIX) || name.length() < 2 + SUFFIX.length()) {
+            return null;
+        }
+        String key = name.substring(0, name.length() - SUFFIX.length());
+        Path expected = fileFor(key).toAbsolutePath().normalize();
+        if (!expected.equals(file.toAbsolutePath().normalize())) {
+            return null;
+        }
+        return get(key);
+    }
+
+    /**
+     * Creates an empty staging directory for one conversion.
+     *
+     * @return The new directory.
+     * @throws IOException If it cannot be created.
+     */
+    public Path createStagingDirectory() throws IOException {
+        Path directory = Files.createTempDirectory(stagingRoot, "epub");
+        liveStaging.add(directory);
+        return directory;
+    }
+
+    /**
+     * Deletes a staging directory, or any other file or tree, on the cleanup
+     * thread. Failures are logged and counted.
+     *
+     * @param path The directory or file to delete.
+     */
+    public void deleteLater(Path path) {
+        cleaner.execute(() -> {
+            liveStaging.remove(path);
+            delete(path);
+        });
+    }
+
+    /**
+     * Deletes every result not used within the time to live, and staging
+     * directories and stray EPUBs in the staging area older than that which
+     * no running conversion owns.
+     *
+     * @param now The current time in milliseconds.
+     */
+    void sweep(long now) {
+        deleteStagingLeftovers(now - ttlMillis);
+
+        List<Path> expired = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (eldest.hasNext()) {
+                Map.Entry<String, Entry> entry = eldest.next();
+                if (now - entry.getValue().lastUsed < ttlMillis) {
+                    // Access order: everything after this was used more recently
+                    break;
+                }
+                totalBytes -= entry.getValue().size;
+                expired.add(fileFor(entry.getKey()));
+                eldest.remove();
+            }
+        }
+        evictedForAge.increment(expired.size());
+        deleteAll(expired);
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    Path fileFor(String key) {
+        return root.resolve(key.substring(0, 2)).resolve(key + SUFFIX);
+    }
+
+    private void deleteAll(List<Path> files) {
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                cleanupFailures.increment();
+                logger.warn("Could not delete stored result {}: {}", file, e.getMessage());
+            }
+        }
+    }
+
+    private void delete(Path path) {
+        try {
+            deleteTree(path);
+        } catch (IOException e) {
+            cleanupFailures.increment();
+            logger.warn("Could not delete {}: {}", path, e.getMessage());
+        }
+    }
+
+    private void deleteStagingLeftovers(long olderThan) {
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(stagingRoot)) {
+            for (Path leftover : leftovers) {
+                if (!isLive(leftover) && Files.getLastModifiedTime(leftover).toMillis() < olderThan) {
+                    delete(leftover);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Could not clean up staging directory {}: {}", stagingRoot, e.getMessage());
+        }
+    }
+
+    // A conversion builds its EPUB next to its staging directory, named after it
+    private boolean isLive(Path leftover) {
+        String name = leftover.getFileName().toString();
+        return liveStaging.contains(leftover) || name.endsWith(SUFFIX)
+                && liveStaging.contains(leftover.resolveSibling(name.substring(0, name.length() - SUFFIX.length())));
+    }
+
+    // Results left by an earlier run, least recently used first, so they keep their order
+    private void loadIndex() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> shards = Files.newDirectoryStream(root,
+                path -> Files.isDirectory(path) && path.getFileName().toString().length() == 2)) {
+            for (Path shard : shards) {
+                try (DirectoryStream<Path> results = Files.newDirectoryStream(shard, "*" + SUFFIX)) {
+                    results.forEach(files::add);
+                }
+            }
+        }
+        files.sort(Comparator.comparing(ResultStore::lastUsed));
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long size = Files.size(file);
+            entries.put(name.substring(0, name.length() - SUFFIX.length()),
+                    new Entry(size, lastUsed(file).toMillis()));
+            totalBytes += size;
+        }
+        logger.info("Result store in {} holds {} EPUBs, {} bytes", root, entries.size(), totalBytes);
+    }
+
+    // The access time records the last use, so LRU order and expiry survive a restart; the
+    // modification time stays the write time, which download ETags are built from
+    private static void touch(Path file) {
+        try {
+            Files.getFileAttributeView(file, BasicFileAttributeView.class)
+                    .setTimes(null, FileTime.fromMillis(System.currentTimeMillis()), null);
+        } catch (IOException e) {
+            // Only the order after a restart suffers
+        }
+    }
+
+    private static FileTime lastUsed(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class).lastAccessTime();
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static void deleteTree(Path path) throws IOException {
+        try {
+            Files.walkFileTree(path, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                    Files.deleteIfExists(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+                    if (e != null) {
+                        throw e;
+                    }
+                    Files.deleteIfExists(directory);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (NoSuchFileException e) {
+            // Already gone
+        }
+    }
+
+    private static class Entry {
+        final long size;
+        long lastUsed; // guarded by the store
+
+        Entry(long size, long lastUsed) {
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -21,6 +21,7 @@ import org.apache.pdfbox.text.PDFTextStripper;
 import org.apache.pdfbox.text.TextPosition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
@@ -28,6 +29,9 @@ import org.springframework.web.multipart.MultipartFile;
 public class Service1 {
     private static final Logger logger = LoggerFactory.getLogger(Service1.class);
 
+    @Autowired
+    private PdfLoader pdfLoader;
+
     // Base directory for temporary EPUB creation
     private String epubBaseDir;
     private String oebpsDir;
@@ -53,9 +57,9 @@ public class Service1 {
     }
 
     public String createEpubFromPdf(MultipartFile file) throws Exception {
-        try {
+        try (SpooledPdf pdf = pdfLoader.spool(file)) {
             setupDirectories();
-            try (PDDocument document = PDDocument.load(file.getInputStream())) {
+            try (PDDocument document = pdfLoader.load(pdf.getFile())) {
                 // Extract images from the PDF
                 List<String> extractedImages = extractImages(document);
 
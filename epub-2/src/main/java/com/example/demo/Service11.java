@@ -1,22 +1,24 @@
 package com.example.demo;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Deque;
 import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
-import javax.imageio.ImageIO;
-
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
 import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSObjectKey;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDResources;
@@ -26,56 +28,259 @@ import org.apache.pdfbox.text.PDFTextStripper;
 import org.apache.pdfbox.text.TextPosition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 @Service             /////tables and paragraphs /images /math/href links
 public class Service11 {
     private static final Logger logger = LoggerFactory.getLogger(EpubService.class);
 
-    // Base directory for temporary EPUB creation
-    private String epubBaseDir;
-    private String oebpsDir;
-    private String metaInfDir;
-    private String imagesDir;
-    private String stylesDir;
-    private String xhtmlDir;
-    private int imageCounter = 1; // Global image counter
-
-    private void setupDirectories() throws IOException {
-        epubBaseDir = Files.createTempDirectory("epub").toString();
-        oebpsDir = Paths.get(epubBaseDir, "OEBPS").toString();
-        metaInfDir = Paths.get(epubBaseDir, "META-INF").toString();
-        imagesDir = Paths.get(oebpsDir, "images").toString();
-        stylesDir = Paths.get(oebpsDir, "styles").toString();
-        xhtmlDir = Paths.get(oebpsDir, "xhtml").toString();
-
-        Files.createDirectories(Paths.get(metaInfDir));
-        Files.createDirectories(Paths.get(oebpsDir));
-        Files.createDirectories(Paths.get(imagesDir));
-        Files.createDirectories(Paths.get(stylesDir));
-        Files.createDirectories(Paths.get(xhtmlDir));
-    }
+    @Autowired
+    private PdfLoader pdfLoader;
+
+    @Autowired
+    private ParallelTextExtractor textExtractor;
+
+    @Autowired
+    private ImageExporter imageExporter;
+
+    @Autowired
+    private ImageEncodingStage imageStage;
+
+    @Autowired
+    private ResultStore resultStore;
+
+    @Autowired
+    private ConversionMetrics metrics;
+
+    // Write entries straight into the EPUB instead of staging an OEBPS tree and zipping it afterwards
+    @Value("${epub.packaging.direct:true}")
+    private boolean directPackaging;
 
     public String createEpubFromPdf(MultipartFile file) throws Exception {
+        ConversionContext ctx = null;
+        try (SpooledPdf pdf = pdfLoader.spool(file)) {
+            ctx = createContext(ConversionProgressListener.NONE);
+            return convert(ctx, pdf.getFile(), false);
+        } catch (IOException e) {
+            logger.error("Error creating EPUB from PDF: {}", e.getMessage());
+            throw new Exception("Failed to create EPUB", e);
+        } finally {
+            if (ctx != null) {
+                deleteTempDirectories(ctx);
+            }
+        }
+    }
+
+    /**
+     * Converts a PDF that has already been saved to disk, reporting page
+     * progress as it goes. Used by background jobs, which can't rely on the
+     * multipart upload still being around once the request has finished.
+     *
+     * @param pdfFile          The PDF file to convert.
+     * @param progressListener Receives page progress for this conversion.
+     * @return The path of the generated EPUB file.
+     * @throws Exception If the conversion fails.
+     */
+    public String createEpubFromPdf(File pdfFile, ConversionProgressListener progressListener) throws Exception {
+        return createEpubFromPdf(pdfFile, progressListener, false);
+    }
+
+    /**
+     * Converts a PDF that has already been saved to disk.
+     *
+     * @param pdfFile          The PDF file to convert.
+     * @param progressListener Receives page progress for this conversion.
+     * @param lowMemory        Keep all PDF scratch data in temp files regardless of the
+     *                         configured load mode, as chosen by {@link AdmissionController}
+     *                         when the heap budget is short.
+     * @return The path of the generated EPUB file.
+     * @throws Exception If the conversion fails.
+     */
+    public String createEpubFromPdf(File pdfFile, ConversionProgressListener progressListener, boolean lowMemory)
+            throws Exception {
+        ConversionContext ctx = null;
+        try {
+            ctx = createContext(progressListener);
+            return convert(ctx, pdfFile, lowMemory);
+        } catch (IOException e) {
+            logger.error("Error creating EPUB from PDF: {}", e.getMessage());
+            throw new Exception("Failed to create EPUB", e);
+        } finally {
+            if (ctx != null) {
+                deleteTempDirectories(ctx);
+            }
+        }
+    }
+
+    /**
+     * Converts a PDF and writes the EPUB to a stream while it is produced,
+     * without an EPUB file on disk. The container entries are flushed before
+     * the first page is converted; the book follows page by page, then the
+     * images, and the package document comes last.
+     *
+     * @param pdfFile          The PDF file to convert.
+     * @param out              The stream the EPUB is written to; it is closed once the EPUB is complete.
+     * @param progressListener Receives page progress for this conversion.
+     * @param lowMemory        Keep all PDF scratch data in temp files, as for
+     *                         {@link #createEpubFromPdf(File, ConversionProgressListener, boolean)}.
+     * @throws Exception If the conversion fails; the stream then ends without a complete EPUB.
+     */
+    public void writeEpubFromPdf(File pdfFile, OutputStream out, ConversionProgressListener progressListener,
+            boolean lowMemory) throws Exception {
+        ConversionContext ctx = null;
         try {
-            setupDirectories();
-            PDDocument document = PDDocument.load(file.getInputStream());
-            List<String> xhtmlFiles = extractContent(document);
-            createStylesheet();
-            createContentOpf(xhtmlFiles);
-            createNavXhtml(xhtmlFiles);
-            createContainerXml();
-            createMimetypeFile();
-            return packageEpub();
+            Path baseDir = resultStore.createStagingDirectory();
+            CountingOutputStream counted = new CountingOutputStream(out);
+            try {
+                ctx = ConversionContext.createStreaming(baseDir, progressListener, counted);
+            } catch (IOException e) {
+                resultStore.deleteLater(baseDir);
+                throw e;
+            }
+            ConversionEvents.Conversion event = beginConversionEvent("stream", pdfFile);
+            long started = metrics.conversionStarted(pdfFile.length());
+            boolean success = false;
+            try {
+                writeDirect(ctx, ctx.getArchive(), pdfFile, lowMemory);
+                success = true;
+            } finally {
+                metrics.conversionFinished(started, success, counted.getByteCount());
+                commitConversionEvent(event, ctx, success, counted.getByteCount());
+            }
         } catch (IOException e) {
             logger.error("Error creating EPUB from PDF: {}", e.getMessage());
             throw new Exception("Failed to create EPUB", e);
         } finally {
-            deleteTempDirectories();
+            if (ctx != null) {
+                deleteTempDirectories(ctx);
+            }
+        }
+    }
+
+    private ConversionContext createContext(ConversionProgressListener progressListener) throws IOException {
+        Path baseDir = resultStore.createStagingDirectory();
+        try {
+            return directPackaging
+                    ? ConversionContext.createDirect(baseDir, progressListener)
+                    : ConversionContext.create(baseDir, progressListener);
+        } catch (IOException e) {
+            resultStore.deleteLater(baseDir);
+            throw e;
+        }
+    }
+
+    private String convert(ConversionContext ctx, File pdfFile, boolean lowMemory) throws IOException {
+        ConversionEvents.Conversion event = beginConversionEvent(ctx.getArchive() != null ? "direct" : "staged", pdfFile);
+        long started = metrics.conversionStarted(pdfFile.length());
+        String epubFile = null;
+        try {
+            epubFile = writeEpub(ctx, pdfFile, lowMemory);
+            return epubFile;
+        } finally {
+            long epubBytes = epubFile != null ? new File(epubFile).length() : 0;
+            metrics.conversionFinished(started, epubFile != null, epubBytes);
+            commitConversionEvent(event, ctx, epubFile != null, epubBytes);
+        }
+    }
+
+    private static ConversionEvents.Conversion beginConversionEvent(String mode, File pdfFile) {
+        ConversionEvents.Conversion event = new ConversionEvents.Conversion();
+        event.begin();
+        event.mode = mode;
+        event.pdfBytes = pdfFile.length();
+        return event;
+    }
+
+    private static void commitConversionEvent(ConversionEvents.Conversion event, ConversionContext ctx,
+                                              boolean succeeded, long epubBytes) {
+        event.pages = ctx.getPageCount();
+        event.succeeded = succeeded;
+        event.epubBytes = epubBytes;
+        event.commit();
+    }
+
+    private String writeEpub(ConversionContext ctx, File pdfFile, boolean lowMemory) throws IOException {
+        EpubArchive archive = ctx.getArchive();
+        if (archive != null) {
+            writeDirect(ctx, archive, pdfFile, lowMemory);
+            return archive.getEpubFile().toString();
+        }
+        long start = System.nanoTime();
+        List<String> xhtmlFiles;
+        try (PDDocument document = pdfLoader.load(pdfFile, lowMemory)) {
+            metrics.recordStage(ConversionMetrics.Stage.LOAD, start);
+            xhtmlFiles = extractContent(ctx, document, pdfFile, lowMemory);
         }
+        start = System.nanoTime();
+        createStylesheet(ctx);
+        metrics.recordStage(ConversionMetrics.Stage.STYLESHEET, start);
+        start = System.nanoTime();
+        createContentOpf(ctx, xhtmlFiles);
+        metrics.recordStage(ConversionMetrics.Stage.CONTENT_OPF, start);
+        start = System.nanoTime();
+        createNavXhtml(ctx, xhtmlFiles);
+        metrics.recordStage(ConversionMetrics.Stage.NAV, start);
+        start = System.nanoTime();
+        ConversionEvents.Packaging packaging = new ConversionEvents.Packaging();
+        packaging.begin();
+        createContainerXml(ctx);
+        createMimetypeFile(ctx);
+        String epubFile = packageEpub(ctx);
+        packaging.images = ctx.getImageRegistry().getStoredCount();
+        packaging.commit();
+        metrics.recordStage(ConversionMetrics.Stage.PACKAGE, start);
+        return epubFile;
     }
 
-    private void createStylesheet() throws IOException {
+    /**
+     * Writes the EPUB entries straight into the archive as they are produced.
+     * The archive already starts with the mimetype entry; the package document
+     * comes last because it lists the images. The PDF is opened before
+     * anything else is written, so an unreadable PDF fails while a streamed
+     * response can still report the error.
+     */
+    private void writeDirect(ConversionContext ctx, EpubArchive archive, File pdfFile, boolean lowMemory)
+            throws IOException {
+        long start = System.nanoTime();
+        List<String> xhtmlFiles;
+        try (PDDocument document = pdfLoader.load(pdfFile, lowMemory)) {
+            metrics.recordStage(ConversionMetrics.Stage.LOAD, start);
+            archive.putDirectory("META-INF/");
+            archive.putEntry("META-INF/container.xml", getContainerXml());
+            archive.putDirectory("OEBPS/");
+            archive.flush();
+            xhtmlFiles = extractContent(ctx, document, pdfFile, lowMemory);
+        }
+        start = System.nanoTime();
+        archive.putDirectory("OEBPS/styles/");
+        archive.putEntry("OEBPS/styles/styles.css", getStylesheet());
+        metrics.recordStage(ConversionMetrics.Stage.STYLESHEET, start);
+        start = System.nanoTime();
+        ConversionEvents.Packaging packagingEvent = new ConversionEvents.Packaging();
+        packagingEvent.begin();
+        packagingEvent.direct = true;
+        archive.putDirectory("OEBPS/images/");
+        List<String> imageFiles = archive.copyImages("OEBPS/images/");
+        packagingEvent.images = imageFiles.size();
+        long copyNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        archive.putEntry("OEBPS/content.opf", getContentOpf(xhtmlFiles, imageFiles));
+        metrics.recordStage(ConversionMetrics.Stage.CONTENT_OPF, start);
+        start = System.nanoTime();
+        archive.finish();
+        packagingEvent.commit();
+        // Packaging is copying the images in and writing the central directory
+        metrics.recordStageNanos(ConversionMetrics.Stage.PACKAGE, copyNanos + System.nanoTime() - start);
+    }
+
+    private void createStylesheet(ConversionContext ctx) throws IOException {
+        Path cssPath = Paths.get(ctx.getStylesDir(), "styles.css");
+        Files.write(cssPath, getStylesheet().getBytes());
+    }
+
+    private String getStylesheet() {
         String cssContent = "/* Body */\r\n"
         		+ "body{margin-left: 1.5em; margin-right: 2.25em;}\r\n"
         		+ "h1,h2,h3,h4,h5,h6{font-weight:bold;}\r\n"
@@ -1815,18 +2020,16 @@ public class Service11 {
         		+ "\r\n"
         		+ "/*Extra classes*/\r\n"
         		+ "";
-
-        Path cssPath = Paths.get(stylesDir, "styles.css");
-        Files.write(cssPath, cssContent.getBytes());
+        return cssContent;
     }
 
-    private String packageEpub() throws IOException {
-        String epubFilePath = epubBaseDir + ".epub";
+    String packageEpub(ConversionContext ctx) throws IOException {
+        String epubFilePath = ctx.getEpubBaseDir() + ".epub";
         try (ZipOutputStream zipOut = new ZipOutputStream(Files.newOutputStream(Paths.get(epubFilePath)))) {
-            // Add the mimetype file first (required by EPUB specification)
-            ZipEntry mimetypeEntry = new ZipEntry("mimetype");
-            zipOut.putNextEntry(mimetypeEntry);
-            zipOut.write(Files.readAllBytes(Paths.get(epubBaseDir, "mimetype")));
+            // Add the mimetype file first and uncompressed (required by EPUB specification)
+            byte[] mimetype = Files.readAllBytes(Paths.get(ctx.getEpubBaseDir(), "mimetype"));
+            zipOut.putNextEntry(EpubArchive.storedEntry("mimetype", mimetype));
+            zipOut.write(mimetype);
             zipOut.closeEntry();
 
             // Add META-INF directory
@@ -1837,7 +2040,7 @@ public class Service11 {
             // Add META-INF/container.xml
             ZipEntry containerEntry = new ZipEntry("META-INF/container.xml");
             zipOut.putNextEntry(containerEntry);
-            zipOut.write(Files.readAllBytes(Paths.get(metaInfDir, "container.xml")));
+            zipOut.write(Files.readAllBytes(Paths.get(ctx.getMetaInfDir(), "container.xml")));
             zipOut.closeEntry();
 
             // Add OEBPS directory
@@ -1848,20 +2051,20 @@ public class Service11 {
             // Add OEBPS content.opf
             ZipEntry contentOpfEntry = new ZipEntry("OEBPS/content.opf");
             zipOut.putNextEntry(contentOpfEntry);
-            zipOut.write(Files.readAllBytes(Paths.get(oebpsDir, "content.opf")));
+            zipOut.write(Files.readAllBytes(Paths.get(ctx.getOebpsDir(), "content.opf")));
             zipOut.closeEntry();
 
             // Add OEBPS nav.xhtml
             ZipEntry navEntry = new ZipEntry("OEBPS/nav.xhtml");
             zipOut.putNextEntry(navEntry);
-            zipOut.write(Files.readAllBytes(Paths.get(xhtmlDir, "nav.xhtml")));
+            zipOut.write(Files.readAllBytes(Paths.get(ctx.getXhtmlDir(), "nav.xhtml")));
             zipOut.closeEntry();
 
             // Add OEBPS xhtml files
-            for (String xhtmlFile : Files.list(Paths.get(xhtmlDir)).map(Path::getFileName).map(Path::toString).toList()) {
+            for (String xhtmlFile : Files.list(Paths.get(ctx.getXhtmlDir())).map(Path::getFileName).map(Path::toString).toList()) {
                 ZipEntry xhtmlEntry = new ZipEntry("OEBPS/xhtml/" + xhtmlFile);
                 zipOut.putNextEntry(xhtmlEntry);
-                zipOut.write(Files.readAllBytes(Paths.get(xhtmlDir, xhtmlFile)));
+                zipOut.write(Files.readAllBytes(Paths.get(ctx.getXhtmlDir(), xhtmlFile)));
                 zipOut.closeEntry();
             }
 
@@ -1872,7 +2075,7 @@ public class Service11 {
 
             ZipEntry cssEntry = new ZipEntry("OEBPS/styles/styles.css");
             zipOut.putNextEntry(cssEntry);
-            zipOut.write(Files.readAllBytes(Paths.get(stylesDir, "styles.css")));
+            zipOut.write(Files.readAllBytes(Paths.get(ctx.getStylesDir(), "styles.css")));
             zipOut.closeEntry();
 
             // Add images directory
@@ -1881,47 +2084,47 @@ public class Service11 {
             zipOut.closeEntry();
 
             // Add images
-            for (String imageFile : Files.list(Paths.get(imagesDir)).map(Path::getFileName).map(Path::toString).toList()) {
+            for (String imageFile : Files.list(Paths.get(ctx.getImagesDir())).map(Path::getFileName).map(Path::toString).toList()) {
                 ZipEntry imageEntry = new ZipEntry("OEBPS/images/" + imageFile);
                 zipOut.putNextEntry(imageEntry);
-                zipOut.write(Files.readAllBytes(Paths.get(imagesDir, imageFile)));
+                zipOut.write(Files.readAllBytes(Paths.get(ctx.getImagesDir(), imageFile)));
                 zipOut.closeEntry();
             }
         }
         return epubFilePath;
     }
 
-    private void deleteTempDirectories() throws IOException {
-        // Recursively delete the temporary EPUB base directory
-        Path basePath = Paths.get(epubBaseDir);
-        Files.walk(basePath).sorted((path1, path2) -> path2.compareTo(path1)) // Delete files first, then directories
-                .forEach(path -> {
-                    try {
-                        Files.delete(path);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                });
+    private void deleteTempDirectories(ConversionContext ctx) throws IOException {
+        long start = System.nanoTime();
+        // Deletes the EPUB too if the conversion did not get as far as finishing it
+        if (ctx.getArchive() != null) {
+            ctx.getArchive().close();
+        }
+        // The staging tree can be large; the result store deletes it off the request path
+        resultStore.deleteLater(Paths.get(ctx.getEpubBaseDir()));
+        metrics.recordStage(ConversionMetrics.Stage.CLEANUP, start);
+    }
+
+    private void createContainerXml(ConversionContext ctx) throws IOException {
+        Path containerXmlPath = Paths.get(ctx.getMetaInfDir(), "container.xml");
+        Files.write(containerXmlPath, getContainerXml().getBytes());
     }
 
-    private void createContainerXml() throws IOException {
-        String containerXmlContent = "<?xml version=\"1.0\"?>\n"
+    private String getContainerXml() {
+        return "<?xml version=\"1.0\"?>\n"
                 + "<container version=\"1.0\" xmlns=\"urn:oasis:names:tc:opendocument:xmlns:container\">\n"
                 + "<rootfiles>\n"
                 + "<rootfile full-path=\"OEBPS/content.opf\" media-type=\"application/oebps-package+xml\"/>\n"
                 + "</rootfiles>\n" + "</container>";
-
-        Path containerXmlPath = Paths.get(metaInfDir, "container.xml");
-        Files.write(containerXmlPath, containerXmlContent.getBytes());
     }
 
-    private void createMimetypeFile() throws IOException {
-        String mimetypeContent = "application/epub+zip";
-        Path mimetypeFilePath = Paths.get(epubBaseDir, "mimetype");
+    private void createMimetypeFile(ConversionContext ctx) throws IOException {
+        String mimetypeContent = EpubArchive.MIMETYPE;
+        Path mimetypeFilePath = Paths.get(ctx.getEpubBaseDir(), "mimetype");
         Files.write(mimetypeFilePath, mimetypeContent.getBytes());
     }
 
-private void createNavXhtml(List<String> links) throws IOException {
+private void createNavXhtml(ConversionContext ctx, List<String> links) throws IOException {
     String xhtmlHeader = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
                          "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.1//EN\" " +
                          "\"http://www.w3.org/TR/xhtml11/DTD/xhtml11.dtd\">\n" +
@@ -1951,8 +2154,8 @@ private void createNavXhtml(List<String> links) throws IOException {
 
     String xhtmlContent = xhtmlHeader + linksBuilder.toString() + xhtmlFooter;
 
-    // Specify the path to the file
-    Path filePath = Paths.get("path/to/nav.xhtml");
+    // Keep the file inside this conversion's workspace so parallel conversions don't overwrite it
+    Path filePath = Paths.get(ctx.getEpubBaseDir(), "nav.xhtml");
 
     // Ensure the parent directory exists
     Files.createDirectories(filePath.getParent());
@@ -1979,7 +2182,13 @@ private String extractTitleFromFileName(String fileName) {
     return titleBuilder.toString().trim();
 }
 
-    private void createContentOpf(List<String> xhtmlFiles) throws IOException {
+    private void createContentOpf(ConversionContext ctx, List<String> xhtmlFiles) throws IOException {
+        List<String> imageFiles = Files.list(Paths.get(ctx.getImagesDir())).map(Path::getFileName).map(Path::toString).toList();
+        Path opfPath = Paths.get(ctx.getOebpsDir(), "content.opf");
+        Files.write(opfPath, getContentOpf(xhtmlFiles, imageFiles).getBytes());
+    }
+
+    private String getContentOpf(List<String> xhtmlFiles, List<String> imageFiles) {
         StringBuilder contentOpf = new StringBuilder();
         contentOpf.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n").append(
                 "<package xmlns=\"http://www.idpf.org/2007/opf\" unique-identifier=\"bookid\" version=\"3.0\">\n")
@@ -1998,9 +2207,9 @@ private String extractTitleFromFileName(String fileName) {
 
         // Add styles and images to the manifest
         contentOpf.append("<item id=\"styles\" href=\"styles/styles.css\" media-type=\"text/css\"/>\n");
-        for (String imageFile : Files.list(Paths.get(imagesDir)).map(Path::getFileName).map(Path::toString).toList()) {
+        for (String imageFile : imageFiles) {
             contentOpf.append("<item id=\"").append(imageFile).append("\" href=\"images/")
-                    .append(imageFile).append("\" media-type=\"image/jpeg\"/>\n");
+                    .append(imageFile).append("\" media-type=\"").append(ImageFormat.mediaTypeOf(imageFile)).append("\"/>\n");
         }
 
         contentOpf.append("</manifest>\n")
@@ -2011,9 +2220,7 @@ private String extractTitleFromFileName(String fileName) {
 
         contentOpf.append("</spine>\n")
                 .append("</package>");
-
-        Path opfPath = Paths.get(oebpsDir, "content.opf");
-        Files.write(opfPath, contentOpf.toString().getBytes());
+        return contentOpf.toString();
     }
 
 
@@ -2051,379 +2258,92 @@ private String extractTitleFromFileName(String fileName) {
  
 
   
-private List<String> extractContent(PDDocument document) throws IOException {
+List<String> extractContent(ConversionContext ctx, PDDocument document, File pdfFile, boolean lowMemory)
+        throws IOException {
     List<String> xhtmlFiles = new ArrayList<>();
-    PDFTextStripper textStripper = new PDFTextStripper();
-    textStripper.setSortByPosition(true);  // Ensure lines are processed in the correct order
+    String xhtmlFile = "output.xhtml";
 
     int numberOfPages = document.getNumberOfPages();
-    StringBuilder xmlContent = new StringBuilder();
-    int sectionCount = 0;
-    int paraCount = 0;
-    int lineCount = 0;
-    int formulaCount = 0;
-    int listItemCount = 0;
-    boolean insideList = false;
-    boolean insideMathBlock = false; // Reserved for future MathML block handling
-    boolean insideTable = false;
-
-    // Initialize paragraph outside the loop
-    StringBuilder paragraph = new StringBuilder();
-
-    // Initialize TOC builders
-    StringBuilder tocSections = new StringBuilder();
-    StringBuilder tocTables = new StringBuilder();
-    StringBuilder tocPages = new StringBuilder();
-
-    // Stack to keep track of current section levels
-    Deque<Integer> sectionStack = new ArrayDeque<>();
-
-    for (int pageIndex = 0; pageIndex < numberOfPages; pageIndex++) {
-        textStripper.setStartPage(pageIndex + 1);
-        textStripper.setEndPage(pageIndex + 1);
-        String pageText = textStripper.getText(document);
-
-        xmlContent.append("<page id=\"page-").append(pageIndex + 1).append("\">\n");
-
-        // Add TOC entry for the page
-        tocPages.append("<li><a href=\"#page-")
-                .append(pageIndex + 1)
-                .append("\">Page ")
-                .append(pageIndex + 1)
-                .append("</a></li>\n");
-
-        // Split the page text into lines
-        String[] lines = pageText.split("\\r?\\n");
-
-        for (String line : lines) {
-            lineCount++;
-            String trimmedLine = line.trim();
-
-            // Handle non-breaking characters and avoid invalid symbols
-            trimmedLine = trimmedLine.replace("\uFFFD", ""); // Remove replacement character
-            trimmedLine = trimmedLine.replaceAll("[^\\x20-\\x7E]+", ""); // Remove non-ASCII characters
-
-            // Detect heading levels
-            HeadingInfo headingInfo = detectHeadingLevel(trimmedLine);
-            if (headingInfo.isHeading) {
-                // Flush any paragraph before starting a new section
-                paraCount = flushParagraph(xmlContent, paragraph, paraCount);
-                // Close any open table or list
-                if (insideTable) {
-                    xmlContent.append("</table>\n");
-                    insideTable = false;
-                }
-                if (insideList) {
-                    xmlContent.append("</ul>\n");
-                    insideList = false;
-                }
-
-                // Manage section hierarchy based on heading level
-                manageSectionHierarchy(xmlContent, sectionStack, headingInfo.level, sectionCount);
-
-                // Increment section count if it's a top-level section
-                if (headingInfo.level == 1) {
-                    sectionCount++;
-                }
-
-                // Append the heading with appropriate tag and attributes
-                xmlContent.append("<").append("h").append(headingInfo.level).append(" ")
-                          .append(getHeadingAttributes(headingInfo)).append(">") 
-                          .append(headingInfo.content)
-                          .append("</").append("h").append(headingInfo.level).append(">\n");
-
-                // Add TOC entry for the section
-                tocSections.append("<li class=\"level").append(headingInfo.level).append("\">")
-                           .append("<a href=\"#").append(headingInfo.id).append("\">")
-                           .append(headingInfo.content)
-                           .append("</a></li>\n");
-            } 
-            // Detect if the line starts a table
-            else if (trimmedLine.startsWith("TABLE")) {
-                // Start a new table with borders
-                if (!insideTable) {
-                    xmlContent.append("<table id=\"table-")
-                              .append(sectionCount)
-                              .append("\" style=\"border-collapse: collapse; width: 100%; border: 1px solid black;\">\n");
-                    insideTable = true;
-
-                    // Add TOC entry for the table
-                    tocTables.append("<li><a href=\"#table-")
-                             .append(sectionCount)
-                             .append("\">Table in Section ")
-                             .append(sectionCount)
-                             .append("</a></li>\n");
-                }
-                // Here you can add your logic to parse table rows and columns
-            } else if (insideTable) {
-                // Handle table rows with borders
-                xmlContent.append("<tr style=\"border: 1px solid black;\">\n");
-                String[] columns = trimmedLine.split("\\s+"); // Split columns based on whitespace
-                for (String column : columns) {
-                    xmlContent.append("<td style=\"border: 1px solid black; padding: 8px;\">")
-                              .append(column)
-                              .append("</td>\n"); // Add each column in a table cell with borders and padding
-                }
-                xmlContent.append("</tr>\n");
-            }
-            // Detect if the line is a bulleted list item
-            else {
-            	// Extend bullet symbols to include numeric and alphabetic patterns, both with period and comma
-            	String[] bulletSymbols = {"•", "○", "▪", "❑", "✓", "–", "-", "*",
-            	                          "1.", "2.", "3.", "4.", "5.", "6.", "7.", "8.", "9.", "10.",
-            	                          "a.", "b.", "c.", "d.", "e.", "f.", "g.", "h.", "i.", "j.", "k.", "l.", "m.", "n.", "o.", "p.", 
-            	                          "A.", "B.", "C.", "D.", "E.", "F.", "G.", "H.", "I.", "J.", "K.", "L.", "M.", "N.", "O.", "P.",
-            	                          "1,", "2,", "3,", "4,", "5,", "6,", "7,", "8,", "9,", "10,",  // Numeric list with commas
-            	                          "a,", "b,", "c,", "d,", "e,", "f,", "g,", "h,", "i,", "j,", "k,", "l.", "m,", "n,", "o,", "p,",  // Alphabetic list with commas
-            	                          "A,", "B,", "C,", "D,", "E,", "F,", "G,", "H,", "I,", "J,", "K,", "L,", "M,", "N.", "O.", "P."  // Uppercase alphabetic with commas
-            	                         };
-
-                boolean isBullet = false;
-                String bulletSymbol = "";
-
-                for (String symbol : bulletSymbols) {
-                    if (trimmedLine.startsWith(symbol + " ")) { // Ensuring a space after the bullet
-                        isBullet = true;
-                        bulletSymbol = symbol;
-                        trimmedLine = trimmedLine.substring(symbol.length()).trim(); // Remove the bullet symbol
-                        break;
+    ctx.setPageCount(numberOfPages);
+    ctx.getProgressListener().onStart(numberOfPages);
+
+    // The book is written page by page as it is assembled instead of being built up in memory
+    String tocContent;
+    // Images are encoded by the image stage while the following pages are extracted
+    ImageEncodingStage.Batch images = imageStage.newBatch();
+    boolean extracted = false;
+    try (Writer writer = ctx.openXhtml(xhtmlFile)) {
+        writeXhtmlHeader(writer);
+        writer.write("<title>Your Document Title</title>\n");
+        writer.write("<p><a href=\"nav.xhtml\">Go to Table of Contents</a></p>\n");
+        BookContentAssembler assembler = new BookContentAssembler(writer);
+
+        // Pages may be extracted in parallel shards but always arrive here in order
+        textExtractor.extract(document, pdfFile, lowMemory, new ParallelTextExtractor.ImageExtractor() {
+                    @Override
+                    public List<String> extract(PDDocument shardDocument, int pageIndex) throws IOException {
+                        long start = System.nanoTime();
+                        List<String> imageFileNames = extractImages(ctx, images, shardDocument, pageIndex);
+                        metrics.recordStage(ConversionMetrics.Stage.IMAGES, start);
+                        return imageFileNames;
                     }
-                }
 
-                if (isBullet) {
-                    listItemCount++;
-                    if (!insideList) {
-                        paraCount = flushParagraph(xmlContent, paragraph, paraCount);
-                        // Close any open table
-                        if (insideTable) {
-                            xmlContent.append("</table>\n");
-                            insideTable = false;
-                        }
-                        xmlContent.append("<ul id=\"list-")
-                                  .append(listItemCount)
-                                  .append("\" style=\"list-style-type: disc; margin-left: 20px;\">\n");
-                        insideList = true;
+                    @Override
+                    public void release(PDDocument shardDocument) throws IOException {
+                        images.awaitDocument(shardDocument);
                     }
-                    // Add the list item with count and style
-                    xmlContent.append("<li id=\"li-").append(String.format("%04d", listItemCount)).append("\">")
-                    .append(trimmedLine).append("</li>\n");
-                 } else {
-                    // If we were inside a bulleted list, close it
-                    if (insideList) {
-                        xmlContent.append("</ul>\n");
-                        insideList = false;
+                },
+                page -> {
+                    assembler.startPage(page.getPageNumber());
+                    for (ClassifiedLine line : page.getLines()) {
+                        assembler.addLine(line);
                     }
-
-                    // Detect if the line is a block display formula
-                    if (isBlockFormula(trimmedLine)) {
-                        paraCount = flushParagraph(xmlContent, paragraph, paraCount);
-                        // Close any open table
-                        if (insideTable) {
-                            xmlContent.append("</table>\n");
-                            insideTable = false;
-                        }
-                        formulaCount++;
-                        xmlContent.append("<p class=\"noindentt\" id=\"formula-")
-                                  .append(String.format("%04d", formulaCount))
-                                  .append("\">")
-                                  .append(getMathMLBlockFormula(trimmedLine))
-                                  .append("</p>\n");
-                     } else {
-                        // Handle regular paragraph text (concatenating lines)
-                        if (!trimmedLine.isEmpty()) {
-                            // Detect formatting (bold and italic) if applicable
-                            String formattedLine = formatText(trimmedLine);
-
-                            // Handle inline formulas within the paragraph
-                            String processedLine = insertInlineFormula(formattedLine);
-
-                            if (paragraph.length() > 0) {
-                                paragraph.append(" "); // Add space between concatenated lines
-                            }
-                            paragraph.append(processedLine);
-
-                            // If the line ends with punctuation, it's the end of a paragraph
-                            if (trimmedLine.endsWith(".") || trimmedLine.endsWith("!") || trimmedLine.endsWith("?")) {
-                                paraCount = flushParagraph(xmlContent, paragraph, paraCount);
-                             }
-                        }
+                    // Pages arrive in order, so a shared image is named after the first page that shows it
+                    List<String> imageFileNames = new ArrayList<>();
+                    for (String use : page.getImageFileNames()) {
+                        imageFileNames.add(ctx.getImageRegistry().place(use));
                     }
-                }
-            }
-        }
+                    // Images are inserted after the text of the page
+                    assembler.endPage(page.getPageNumber(), imageFileNames);
+                    ctx.getProgressListener().onPageDone(page.getPageNumber());
+                    metrics.pageDone();
+                });
 
-        // Extract and insert images after processing the text of the page
-        List<String> imageFileNames = extractImages(document, pageIndex);
-        for (String imageFileName : imageFileNames) {
-            // Assuming images are placed after the text content of the page
-            int figNumber = imageFileNames.indexOf(imageFileName) + 1;
-            String figureId = "fig" + (pageIndex + 1) + "_" + figNumber;
-
-            xmlContent.append("<figure id=\"").append(figureId).append("\">\n");
-            xmlContent.append("    <img class=\"image\" src=\"../images/").append(imageFileName).append("\" alt=\"\"/>\n");
-            xmlContent.append("    <figcaption>\n");
-            xmlContent.append("        <p class=\"figcaption\"><span epub:type=\"label\">Fig.</span> ")
-                      .append("<span epub:type=\"ordinal\">").append(pageIndex + 1).append("_").append(figNumber).append("</span> ")
-                      .append("Description of the image.</p>\n"); // You can customize the caption as needed
-            xmlContent.append("    </figcaption>\n");
-            xmlContent.append("</figure>\n");
-         }
-
-        // Close any open structures at the end of the page
-        if (insideList) {
-            xmlContent.append("</ul>\n");
-            insideList = false;
-         }
-        if (insideTable) {
-            xmlContent.append("</table>\n");
-            insideTable = false;
-         }
-
-        xmlContent.append("</page>\n");
+        logger.debug("Stored {} distinct images, reused {} image references",
+                ctx.getImageRegistry().getStoredCount(), ctx.getImageRegistry().getReusedCount());
+
+        // Finalize any remaining paragraph
+        assembler.finish();
+        writer.write(XHTML_FOOTER);
+        tocContent = assembler.getTocContent();
+        extracted = true;
+    } finally {
+        if (!extracted) {
+            images.cancel();
+        }
     }
-
-    // Finalize any remaining paragraph
-    paraCount = flushParagraph(xmlContent, paragraph, paraCount);
-
-    StringBuilder tocContent = new StringBuilder();
-    tocContent.append("<nav id=\"toc\">\n");
-    tocContent.append("<h2>Table of Contents</h2>\n");
-    tocContent.append("<ul>\n");
-    tocContent.append("<li>Sections\n<ul>\n").append(tocSections).append("</ul></li>\n");
-    tocContent.append("<li>Tables\n<ul>\n").append(tocTables).append("</ul></li>\n");
-    tocContent.append("<li>Pages\n<ul>\n").append(tocPages).append("</ul></li>\n");
-    tocContent.append("</ul>\n");
-    tocContent.append("</nav>\n");
-
-    createXhtmlFile("nav.xhtml", tocContent.toString());
-
-    // Create the full content with TOC
-    StringBuilder fullContent = new StringBuilder();
-     fullContent.append("<title>Your Document Title</title>\n");
-     fullContent.append("<p><a href=\"nav.xhtml\">Go to Table of Contents</a></p>\n");
-    fullContent.append(xmlContent.toString());
- 
-    // Create the XHTML file with TOC
-    String xhtmlFile = "output.xhtml";
-    createXhtmlFile(xhtmlFile, fullContent.toString());
+    images.await();
+    metrics.imagesStored(ctx.getImageRegistry().getStoredCount());
     xhtmlFiles.add(xhtmlFile);
 
-    document.close();
-    return xhtmlFiles;
-}
-
-/**
- * Detects the heading level of a line based on its format.
- *
- * @param line The line of text to evaluate.
- * @return A HeadingInfo object containing heading details.
- */
-private HeadingInfo detectHeadingLevel(String line) {
-    HeadingInfo info = new HeadingInfo();
-    info.isHeading = false;
-
-    // Example criteria for heading levels
-    // Adjust these based on your PDF's formatting
-
-    // H1: All uppercase, longer length, no punctuation
-    if (line.matches("^[A-Z ]{5,}$") && !line.matches(".*[.!?].*")) {
-        info.isHeading = true;
-        info.level = 1;
-        info.content = line;
-        int sectionCount = 0;
-		info.id = "chapter-" + (sectionCount + 1); // Ensure sectionCount is accessible
-        return info;
-    }
-
-    // H2: Numbered sections like "1.1 Title"
-    if (line.matches("^\\d+\\.\\d+\\s+.*")) {
-        info.isHeading = true;
-        info.level = 2;
-        info.content = line.replaceFirst("^\\d+\\.\\d+\\s+", "");
-        info.id = "sec-" + line.split("\\s+")[0].replace(".", "-");
-        return info;
-    }
-
-    // H3: Numbered subsections like "1.1.1 Title"
-    if (line.matches("^\\d+\\.\\d+\\.\\d+\\s+.*")) {
-        info.isHeading = true;
-        info.level = 3;
-        info.content = line.replaceFirst("^\\d+\\.\\d+\\.\\d+\\s+", "");
-        info.id = "sec-" + line.split("\\s+")[0].replace(".", "-");
-        return info;
-    }
-
-    // H4: Numbered sub-subsections like "1.1.1.1 Title"
-    if (line.matches("^\\d+\\.\\d+\\.\\d+\\.\\d+\\s+.*")) {
-        info.isHeading = true;
-        info.level = 4;
-        info.content = line.replaceFirst("^\\d+\\.\\d+\\.\\d+\\.\\d+\\s+", "");
-        info.id = "sec-" + line.split("\\s+")[0].replace(".", "-");
-        return info;
-    }
-
-    return info;
-}
-
-/**
- * Manages the section hierarchy based on the current heading level.
- *
- * @param xmlContent   The StringBuilder accumulating the XML content.
- * @param sectionStack The stack tracking current section levels.
- * @param level        The heading level of the current section.
- * @param sectionCount The current section count.
- */
-private void manageSectionHierarchy(StringBuilder xmlContent, Deque<Integer> sectionStack, int level, int sectionCount) {
-    while (!sectionStack.isEmpty() && sectionStack.peek() >= level) {
-        xmlContent.append("</section>\n");
-        sectionStack.pop();
+    long navStart = System.nanoTime();
+    createXhtmlFile(ctx, "nav.xhtml", tocContent);
+    if (ctx.getArchive() != null) {
+        // The staged layout also packages the table of contents as OEBPS/nav.xhtml
+        ctx.getArchive().putEntry("OEBPS/nav.xhtml", XHTML_HEADER + tocContent + XHTML_FOOTER);
     }
-    xmlContent.append("<section aria-labelledby=\"").append("sec-").append(sectionCount).append("\">\n");
-    sectionStack.push(level);
-}
-
-/**
- * Retrieves the necessary attributes for a heading tag based on its level.
- *
- * @param headingInfo The HeadingInfo object containing heading details.
- * @return A string of attributes for the heading tag.
- */
-private String getHeadingAttributes(HeadingInfo headingInfo) {
-    StringBuilder attributes = new StringBuilder();
-    switch (headingInfo.level) {
-        case 1:
-            attributes.append("epub:type=\"chapter\" role=\"doc-chapter\"");
-            break;
-        case 2:
-            attributes.append("aria-labelledby=\"").append(headingInfo.id).append("\"");
-            break;
-        case 3:
-        case 4:
-            attributes.append("aria-labelledby=\"").append(headingInfo.id).append("\"");
-            break;
-        default:
-            break;
-    }
-    return attributes.toString();
-}
-
-/**
- * Helper class to store heading information.
- */
-private class HeadingInfo {
-    boolean isHeading;
-    int level;
-    String content;
-    String id;
+    metrics.recordStage(ConversionMetrics.Stage.NAV, navStart);
+    return xhtmlFiles;
 }
 
 
-
       
-private List<String> extractImages(PDDocument document, int pageIndex) throws IOException {
+List<String> extractImages(ConversionContext ctx, ImageEncodingStage.Batch images, PDDocument document,
+                                   int pageIndex) throws IOException {
     PDPage page = document.getPage(pageIndex);
     PDResources pdResources = page.getResources();
     Iterable<COSName> xobjectNames = pdResources.getXObjectNames();
+    COSBase xobjects = pdResources.getCOSObject().getDictionaryObject(COSName.XOBJECT);
     List<String> imageFileNames = new ArrayList<>();
     int imageCounter = 0;
 
@@ -2431,55 +2351,34 @@ private List<String> extractImages(PDDocument document, int pageIndex) throws IO
         PDXObject xobject = pdResources.getXObject(xobjectName);
         if (xobject instanceof PDImageXObject) {
             PDImageXObject image = (PDImageXObject) xobject;
-            BufferedImage bImage = image.getImage();
-            if (bImage != null) {
-                imageCounter++;
-                // Naming convention: pg4.jpg, pg4_1.jpg, pg4_2.jpg, etc.
-                String imageFileName = "pg" + (pageIndex + 1) + (imageCounter > 1 ? "_" + (imageCounter - 1) : "") + ".jpg";
-                File imageFile = new File(imagesDir, imageFileName); // Save to OEBPS/images
-                // Save the image as JPEG
-                ImageIO.write(bImage, "jpg", imageFile);
-                imageFileNames.add(imageFileName);
-            }
+            int imageIndex = imageCounter++;
+            // Images stored as JPEG stay JPEG, everything else becomes PNG; decided from the image dictionary alone
+            ImageFormat format = imageExporter.chooseFormat(image);
+            // Naming convention: pg4.jpg, pg4_1.png, pg4_2.jpg, etc.
+            String newFileName = "pg" + (pageIndex + 1) + (imageIndex > 0 ? "_" + imageIndex : "") + "." + format.getExtension();
+            // An image used on several pages is encoded once; the page sink decides which use names it
+            // An image that cannot be encoded gets a placeholder, since its page may already refer to it
+            ctx.getImageRegistry().register(indirectReference(xobjects, xobjectName), image, pageIndex, imageIndex,
+                    newFileName, stored -> images.submit(document, image, format, encoded -> stored.accept(
+                            encoded != null && encoded.length > 0 ? encoded : imageExporter.placeholder(format))));
+            imageFileNames.add(newFileName);
         }
     }
 
     return imageFileNames;
 }
 
-/**
-         * Determines if a line represents a block display formula.
-         * Modify this method based on how formulas are marked in your source text.
-         *
-         * @param line The line of text to check.
-         * @return True if the line is a block formula, false otherwise.
-         */
-        private boolean isBlockFormula(String line) {
-            // Example: Lines enclosed within [formula]...[/formula] tags
-            // Modify the markers based on your actual formula delimiters
-            return line.startsWith("[formula]") && line.endsWith("[/formula]");
-        }
-
-        /**
-         * Generates the MathML representation for a block display formula.
-         * Modify this method to parse and convert the formula content as needed.
-         *
-         * @param line The line containing the formula.
-         * @return A string containing the MathML for the block formula.
-         */
-        private String getMathMLBlockFormula(String line) {
-            // Extract the formula content between [formula] and [/formula]
-            String formulaContent = line.substring("[formula]".length(), line.length() - "[/formula]".length()).trim();
-
-            // For demonstration, returning a static MathML. Replace this with actual parsing if needed.
-            // Ideally, you would convert from LaTeX or another format to MathML here.
-            return "<math display='block' xmlns='http://www.w3.org/1998/Math/MathML'>"
-                   + "<mtext>Thus</mtext><mo>:</mo><msub><mi>T</mi><mi>e</mi></msub><mo>=</mo>"
-                   + "<msqrt><mrow><mrow><mo>(</mo><mrow><msubsup><mi>T</mi><mi>i</mi><mn>2</mn></msubsup>"
-                   + "<mo>+</mo><msubsup><mi>T</mi><mi>u</mi><mn>2</mn></msubsup><mo>+</mo>"
-                   + "<msubsup><mi>T</mi><mi>s</mi><mn>2</mn></msubsup></mrow><mo>)</mo></mrow></mrow></msqrt>"
-                   + "</math>";
+// The object number of an XObject that is stored as an indirect object, or null for a direct stream
+private static COSObjectKey indirectReference(COSBase xobjects, COSName xobjectName) {
+    if (xobjects instanceof COSDictionary) {
+        COSBase item = ((COSDictionary) xobjects).getItem(xobjectName);
+        if (item instanceof COSObject) {
+            COSObject reference = (COSObject) item;
+            return new COSObjectKey(reference.getObjectNumber(), reference.getGenerationNumber());
         }
+    }
+    return null;
+}
 
         /**
          * Determines if a line represents a table row.
@@ -2511,58 +2410,8 @@ private List<String> extractImages(PDDocument document, int pageIndex) throws IO
             }
             return cleanedLine.split("\\|");
         }
- 
-private String insertInlineFormula(String line) {
-    // Example: Inline formulas are enclosed within $...$
-    StringBuilder result = new StringBuilder();
-    int start = 0;
-    while (true) {
-        int dollarStart = line.indexOf('$', start);
-        if (dollarStart == -1) {
-            result.append(line.substring(start));
-            break;
-        }
-        int dollarEnd = line.indexOf('$', dollarStart + 1);
-        if (dollarEnd == -1) {
-            // No closing $, treat the rest as normal text
-            result.append(line.substring(start));
-            break;
-        }
-        // Append text before $
-        result.append(line, start, dollarStart);
-        // Extract the formula content
-        String formula = line.substring(dollarStart + 1, dollarEnd);
-        // Replace with MathML inline formula
-        result.append("<math display='inline' xmlns='http://www.w3.org/1998/Math/MathML'>")
-              .append(formula) // Ideally, convert LaTeX or other format to MathML
-              .append("</math>");
-        start = dollarEnd + 1;
-    }
-    return result.toString();
-}
- 
-        private int flushParagraph(StringBuilder xmlContent, StringBuilder paragraph, int paraCount) {
-            if (paragraph.length() > 0) {
-                paraCount++;
-                xmlContent.append("<p id=\"para-").append(String.format("%04d", paraCount)).append("\">")
-                          .append(paragraph.toString().trim()).append("</p>\n");
-                paragraph.setLength(0); // Reset the paragraph
-            }
-            return paraCount;
-        }
- 
-        private String formatText(String line) {
-            String formattedLine = line;
-            // Apply bold formatting: text enclosed in *...*
-            formattedLine = formattedLine.replaceAll("\\*(.*?)\\*", "<b>$1</b>");
-            // Apply italic formatting: text enclosed in _..._
-            formattedLine = formattedLine.replaceAll("_(.*?)_", "<i>$1</i>");
-            return formattedLine;
-        }
 
-        
-private void createXhtmlFile(String fileName, String content) throws IOException {
-    String xhtmlHeader = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n"
+private static final String XHTML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n"
     		+ "<!DOCTYPE html>\r\n"
     		+ "<html xml:lang=\"en\" lang=\"en\" xmlns=\"http://www.w3.org/1999/xhtml\" xmlns:epub=\"http://www.idpf.org/2007/ops\">\r\n"
     		+ "<head>\r\n"
@@ -2572,11 +2421,19 @@ private void createXhtmlFile(String fileName, String content) throws IOException
     		+ "<body epub:type=\"bodymatter\">\r\n"
     		;
 
-    String xhtmlFooter = "</body>\n</html>";
+private static final String XHTML_FOOTER = "</body>\n</html>";
+
+private void writeXhtmlHeader(Writer writer) throws IOException {
+    writer.write(XHTML_HEADER);
+}
 
+private void createXhtmlFile(ConversionContext ctx, String fileName, String content) throws IOException {
     // Write the XHTML content to the specified file
-    String xhtmlContent = xhtmlHeader + content + xhtmlFooter;
-    Files.write(Paths.get(xhtmlDir, fileName), xhtmlContent.getBytes());
+    try (Writer writer = ctx.openXhtml(fileName)) {
+        writeXhtmlHeader(writer);
+        writer.write(content);
+        writer.write(XHTML_FOOTER);
+    }
 }
         
         
@@ -22,12 +22,16 @@ import org.apache.pdfbox.pdmodel.PDPageTree;
 import org.apache.pdfbox.pdmodel.PDResources;
 import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
 import org.apache.pdfbox.text.PDFTextStripper;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 @Service
 public class Service2 {
 
+	@Autowired
+	private PdfLoader pdfLoader;
+
 	// Base directory for temporary EPUB creation
 	private String epubBaseDir;
 	private String oebpsDir;
@@ -42,11 +46,13 @@ public class Service2 {
 		// Step 1: Create temporary directories
 		setupDirectories();
 
-		// Step 2: Load PDF document
-		PDDocument document = PDDocument.load(file.getInputStream());
-
-		// Step 3: Extract content and generate XHTML files
-		List<String> xhtmlFiles = extractContent(document);
+		// Step 2: Spool the upload to disk and load the PDF document from there
+		List<String> xhtmlFiles;
+		try (SpooledPdf pdf = pdfLoader.spool(file);
+				PDDocument document = pdfLoader.load(pdf.getFile())) {
+			// Step 3: Extract content and generate XHTML files
+			xhtmlFiles = extractContent(document);
+		}
  	        createIndex();
 
 
@@ -71,7 +77,6 @@ public class Service2 {
        
 
 		// Clean up temporary directories
-		document.close();
 		deleteTempDirectories();
 
 		return epubFilePath;
@@ -0,0 +1,186 @@
+package com.example.demo;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.text.PDFTextStripper;
+
+/**
+ * Extracts the text of a whole document in one pass and hands it to a
+ * {@link PageListener} page by page and line by line.
+ *
+ * Calling {@code setStartPage(i)/setEndPage(i)/getText(document)} for every
+ * page walks the entire page tree on every call, which makes extraction of
+ * large documents quadratic. This stripper walks the document once and
+ * delivers exactly the lines that {@code getText(...).split("\\r?\\n")}
+ * would have produced for each page, including a start/end callback for
+ * pages that have no content stream at all.
+ */
+public final class SinglePassTextStripper extends PDFTextStripper {
+
+    /**
+     * Receives the text of a document page by page.
+     */
+    public interface PageListener {
+
+        /**
+         * Called before the lines of a page are delivered.
+         *
+         * @param pageNumber The 1-based page number.
+         */
+        void startPage(int pageNumber) throws IOException;
+
+        /**
+         * Called for each line of text on the current page.
+         *
+         * @param line The line, without its line separator.
+         */
+        void line(String line) throws IOException;
+
+        /**
+         * Called after the last line of a page has been delivered. This is
+         * called outside the CPU budget, so it may do its own CPU-bound work.
+         *
+         * @param pageNumber The 1-based page number.
+         */
+        void endPage(int pageNumber) throws IOException;
+    }
+
+    private final PageListener listener;
+    private final CpuBudget cpuBudget;
+    private final StringBuilder currentLine = new StringBuilder();
+    // Blank lines are held back until more text follows, since split() drops trailing empty lines
+    private int pendingBlankLines;
+    private int lastPageDelivered;
+
+    /**
+     * @param listener  Receives pages and lines.
+     * @param cpuBudget Each page's text extraction takes one permit from this budget.
+     */
+    public SinglePassTextStripper(PageListener listener, CpuBudget cpuBudget) throws IOException {
+        super();
+        this.listener = listener;
+        this.cpuBudget = cpuBudget;
+        // The line in progress is flushed in endPage instead
+        setPageEnd("");
+    }
+
+    /**
+     * Extracts the text of every page of the document.
+     *
+     * @param document The document to read.
+     * @throws IOException If the text cannot be extracted or the listener fails.
+     */
+    public void process(PDDocument document) throws IOException {
+        lastPageDelivered = 0;
+        writeText(document, new LineWriter());
+    }
+
+    @Override
+    public void processPage(PDPage page) throws IOException {
+        int pageNumber = getCurrentPageNo();
+        if (pageNumber < getStartPage() || pageNumber > getEndPage()) {
+            return;
+        }
+        deliverEmptyPagesBefore(pageNumber);
+        cpuBudget.run(() -> {
+            super.processPage(page);
+            return null;
+        });
+        listener.endPage(pageNumber);
+        lastPageDelivered = pageNumber;
+    }
+
+    @Override
+    protected void startPage(PDPage page) throws IOException {
+        currentLine.setLength(0);
+        pendingBlankLines = 0;
+        listener.startPage(getCurrentPageNo());
+    }
+
+    @Override
+    protected void endPage(PDPage page) throws IOException {
+        if (currentLine.length() > 0) {
+            emitLine();
+        }
+        currentLine.setLength(0);
+        pendingBlankLines = 0;
+    }
+
+    @Override
+    protected void writeLineSeparator() throws IOException {
+        emitLine();
+    }
+
+    @Override
+    protected void endDocument(PDDocument document) throws IOException {
+        deliverEmptyPagesBefore(Math.min(getEndPage(), document.getNumberOfPages()) + 1);
+        super.endDocument(document);
+    }
+
+    /**
+     * Pages without a content stream are skipped by PDFTextStripper; report
+     * them as pages without lines so page numbering stays continuous.
+     */
+    private void deliverEmptyPagesBefore(int pageNumber) throws IOException {
+        for (int emptyPage = Math.max(lastPageDelivered + 1, getStartPage()); emptyPage < pageNumber; emptyPage++) {
+            listener.startPage(emptyPage);
+            listener.endPage(emptyPage);
+        }
+        lastPageDelivered = Math.max(lastPageDelivered, pageNumber - 1);
+    }
+
+    private void emitLine() throws IOException {
+        int length = currentLine.length();
+        if (length > 0 && currentLine.charAt(length - 1) == '\r') {
+            currentLine.setLength(length - 1);
+        }
+        if (currentLine.length() == 0) {
+            pendingBlankLines++;
+            return;
+        }
+        for (; pendingBlankLines > 0; pendingBlankLines--) {
+            listener.line("");
+        }
+        listener.line(currentLine.toString());
+        currentLine.setLength(0);
+    }
+
+    /**
+     * Collects everything PDFTextStripper writes into the current line,
+     * splitting on any line breaks embedded in the text itself.
+     */
+    private class LineWriter extends Writer {
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            for (int i = offset; i < offset + length; i++) {
+                char c = buffer[i];
+                if (c == '\n') {
+                    emitLine();
+                } else {
+                    currentLine.append(c);
+                }
+            }
+        }
+
+        @Override
+        public void write(String text) throws IOException {
+            if (text.indexOf('\n') < 0) {
+                currentLine.append(text);
+            } else {
+                super.write(text);
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
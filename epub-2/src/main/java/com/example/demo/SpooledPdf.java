@@ -0,0 +1,37 @@
+package com.example.demo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * An uploaded PDF saved to a temporary file, with the SHA-256 of its
+ * contents. Closing it deletes the file.
+ */
+public class SpooledPdf implements AutoCloseable {
+
+    private final File file;
+    private final byte[] sha256;
+
+    SpooledPdf(File file, byte[] sha256) {
+        this.file = file;
+        this.sha256 = sha256;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public byte[] getSha256() {
+        return sha256.clone();
+    }
+
+    public long length() {
+        return file.length();
+    }
+
+    @Override
+    public void close() throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+}
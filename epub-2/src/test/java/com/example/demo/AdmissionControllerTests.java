@@ -0,0 +1,65 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class AdmissionControllerTests {
+
+    private static final long MB = 1024 * 1024;
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private final PdfLoader pdfLoader = new PdfLoader(PdfLoader.Mode.HEAP, 64, "");
+
+    // 100MB budget, 1MB per page, no queue, fail fast; text is extracted in one pass
+    private final AdmissionController admission = newAdmission(1);
+
+    @Test
+    void admitsInHeapWhileBudgetLasts() throws Exception {
+        try (AdmissionController.Ticket ticket = admission.admit(admission.estimate(10 * MB, 10))) {
+            assertEquals(AdmissionController.Mode.NORMAL, ticket.getMode());
+            assertEquals(30 * MB, admission.getInFlightBytes());
+        }
+        assertEquals(0, admission.getInFlightBytes());
+    }
+
+    @Test
+    void routesToLowMemoryWhenHeapBudgetIsShort() throws Exception {
+        try (AdmissionController.Ticket first = admission.admit(admission.estimate(30 * MB, 10));
+                AdmissionController.Ticket second = admission.admit(admission.estimate(20 * MB, 10))) {
+            assertEquals(AdmissionController.Mode.NORMAL, first.getMode());
+            assertEquals(AdmissionController.Mode.LOW_MEMORY, second.getMode());
+        }
+    }
+
+    @Test
+    void rejectsWithRetryAfterWhenSaturated() throws Exception {
+        try (AdmissionController.Ticket ticket = admission.admit(admission.estimate(40 * MB, 10))) {
+            AdmissionRejectedException e = assertThrows(AdmissionRejectedException.class,
+                    () -> admission.admit(admission.estimate(10 * MB, 80)));
+            assertEquals(7, e.getRetryAfterSeconds());
+            assertEquals(1.0, registry.get("epub.admission.rejections").counter().count());
+        }
+    }
+
+    @Test
+    void countsTheDocumentOfEachExtractionWorker() {
+        AdmissionController sharded = newAdmission(4);
+        // Four shards of 25 pages: the caller's document and four worker copies, 20MB each
+        assertEquals(200 * MB, sharded.estimate(10 * MB, 100).getHeapBytes());
+        // One shard is extracted in one pass
+        assertEquals(40 * MB, sharded.estimate(10 * MB, 20).getHeapBytes());
+        // Low-memory conversions are never split
+        assertEquals(116 * MB, sharded.estimate(10 * MB, 100).getLowMemoryHeapBytes());
+    }
+
+    private AdmissionController newAdmission(int extractionWorkers) {
+        ParallelTextExtractor textExtractor = new ParallelTextExtractor(pdfLoader, new CpuBudget(0),
+                new ConversionMetrics(registry), extractionWorkers, 25);
+        return new AdmissionController(registry, pdfLoader, textExtractor, 100, MB, 0, 0, 7);
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringWriter;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that {@link BookContentAssembler} writes each page out as soon as
+ * it ends instead of holding the whole book.
+ */
+class BookContentAssemblerTests {
+
+    @Test
+    void writesEachPageWhenItEnds() throws Exception {
+        StringWriter out = new StringWriter();
+        BookContentAssembler assembler = new BookContentAssembler(out);
+
+        assembler.startPage(1);
+        assembler.addLine("INTRODUCTION");
+        assembler.addLine("A paragraph that runs on");
+        assertEquals("", out.toString());
+
+        assembler.endPage(1, Collections.singletonList("pg1.jpg"));
+        String firstPage = out.toString();
+        assertTrue(firstPage.startsWith("<page id=\"page-1\">\n"));
+        assertTrue(firstPage.endsWith("</figure>\n</page>\n"));
+
+        // The open paragraph belongs to the page where it ends
+        assembler.startPage(2);
+        assembler.addLine("to the next page.");
+        assembler.endPage(2, Collections.emptyList());
+        assertEquals("<page id=\"page-2\">\n<p id=\"para-0001\">A paragraph that runs on to the next page.</p>\n</page>\n",
+                out.toString().substring(firstPage.length()));
+
+        assembler.startPage(3);
+        assembler.addLine("Trailing text");
+        assembler.endPage(3, Collections.emptyList());
+        assembler.finish();
+        assertTrue(out.toString().endsWith("</page>\n<p id=\"para-0002\">Trailing text</p>\n"));
+    }
+}
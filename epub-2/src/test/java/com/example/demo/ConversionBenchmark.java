@@ -0,0 +1,178 @@
+package com.example.demo;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * Times the stages of {@link Service11} on generated fixture PDFs:
+ * extracting the content of a book per page, extracting and encoding its
+ * images per image, and zipping a staged EPUB tree per MB.
+ *
+ * Every invocation gets a freshly loaded document and a new conversion
+ * context, prepared outside the measured time, so nothing cached by PDFBox
+ * or the image registry carries over from one invocation to the next.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConversionBenchmark {
+
+    static final int PAGES = 50;
+    // TestPdfs.create draws one image per page
+    static final int IMAGES = PAGES;
+    static final int PACKAGE_MB = 4;
+
+    private TestServices services;
+    private Service11 service;
+    private ImageEncodingStage imageStage;
+    private ResultStore resultStore;
+    private byte[] book;
+    private byte[] illustrated;
+    private ConversionContext stagedTree;
+
+    private PDDocument document;
+    private ConversionContext ctx;
+
+    @Setup(Level.Trial)
+    public void createFixtures() throws Exception {
+        services = new TestServices().images(0, 64).directPackaging(false);
+        service = services.service11(Files.createTempDirectory("epub-bench"));
+        imageStage = services.getImageStage();
+        resultStore = services.getResultStore();
+
+        book = TestPdfs.createBook(PAGES);
+        illustrated = TestPdfs.create("benchmark", PAGES, 1);
+        stagedTree = createStagedTree(PACKAGE_MB);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFixtures() throws IOException {
+        services.stop();
+        FileSystemUtils.deleteRecursively(resultStore.getRoot());
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeInvocation() throws IOException {
+        if (document != null) {
+            document.close();
+            document = null;
+        }
+        if (ctx != null) {
+            if (ctx.getArchive() != null) {
+                ctx.getArchive().close();
+            }
+            resultStore.deleteLater(Paths.get(ctx.getEpubBaseDir()));
+            ctx = null;
+        }
+    }
+
+    /**
+     * Text extraction, classification and assembly of a book with headings,
+     * bullets and paragraphs, written straight into an EPUB archive.
+     */
+    @Benchmark
+    @OperationsPerInvocation(PAGES)
+    public List<String> extractContentPerPage(BookInvocation invocation) throws IOException {
+        return service.extractContent(ctx, document, null, false);
+    }
+
+    /**
+     * Finding, registering, naming and encoding the images of every page,
+     * until the last one is stored.
+     */
+    @Benchmark
+    @OperationsPerInvocation(IMAGES)
+    public int extractImagesPerImage(IllustratedInvocation invocation) throws IOException {
+        ImageEncodingStage.Batch images = imageStage.newBatch();
+        int count = 0;
+        for (int pageIndex = 0; pageIndex < PAGES; pageIndex++) {
+            for (String use : service.extractImages(ctx, images, document, pageIndex)) {
+                ctx.getImageRegistry().place(use);
+                count++;
+            }
+        }
+        images.await();
+        return count;
+    }
+
+    /**
+     * Zipping a staged tree of mostly incompressible images and some XHTML.
+     */
+    @Benchmark
+    @OperationsPerInvocation(PACKAGE_MB)
+    public String packageEpubPerMb() throws IOException {
+        return service.packageEpub(stagedTree);
+    }
+
+    @State(Scope.Thread)
+    public static class BookInvocation {
+        @Setup(Level.Invocation)
+        public void load(ConversionBenchmark benchmark) throws IOException {
+            benchmark.document = PDDocument.load(benchmark.book);
+            benchmark.ctx = ConversionContext.createDirect(benchmark.resultStore.createStagingDirectory(),
+                    ConversionProgressListener.NONE);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class IllustratedInvocation {
+        @Setup(Level.Invocation)
+        public void load(ConversionBenchmark benchmark) throws IOException {
+            benchmark.document = PDDocument.load(benchmark.illustrated);
+            benchmark.ctx = ConversionContext.create(benchmark.resultStore.createStagingDirectory(),
+                    ConversionProgressListener.NONE);
+        }
+    }
+
+    // The layout packageEpub expects, as a staged conversion leaves it
+    private ConversionContext createStagedTree(int megabytes) throws IOException {
+        ConversionContext tree = ConversionContext.create(resultStore.createStagingDirectory(),
+                ConversionProgressListener.NONE);
+        Files.writeString(Paths.get(tree.getEpubBaseDir(), "mimetype"), EpubArchive.MIMETYPE);
+        Files.writeString(Paths.get(tree.getMetaInfDir(), "container.xml"), "<container/>");
+        Files.writeString(Paths.get(tree.getOebpsDir(), "content.opf"), "<package/>");
+        Files.writeString(Paths.get(tree.getStylesDir(), "styles.css"), "body { margin: 0; }");
+        Files.writeString(Paths.get(tree.getXhtmlDir(), "nav.xhtml"), "<nav/>");
+
+        // A tenth of the size is book text, the rest photographs, which do not compress
+        long total = megabytes * 1024L * 1024L;
+        StringBuilder text = new StringBuilder();
+        while (text.length() < total / 10) {
+            text.append("<p>The quick brown fox jumps over the lazy dog on page ").append(text.length()).append(".</p>\n");
+        }
+        Files.write(Paths.get(tree.getXhtmlDir(), "output.xhtml"), text.toString().getBytes(StandardCharsets.UTF_8));
+        Random random = new Random(42);
+        byte[] photo = new byte[64 * 1024];
+        for (int i = 0; i * photo.length < total - total / 10; i++) {
+            random.nextBytes(photo);
+            Path image = Paths.get(tree.getImagesDir(), "pg" + (i + 1) + ".jpg");
+            Files.write(image, photo);
+        }
+        return tree;
+    }
+}
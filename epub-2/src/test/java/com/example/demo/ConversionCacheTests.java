@@ -0,0 +1,218 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Checks that the result cache answers repeated PDFs without converting,
+ * keeps results of other converter settings apart, and runs identical
+ * concurrent uploads only once.
+ */
+class ConversionCacheTests {
+
+    @TempDir
+    Path tempDir;
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private ResultStore store;
+
+    @BeforeEach
+    void createStore() throws IOException {
+        store = new ResultStore(registry, tempDir.resolve("results").toString(), 10, 0, 0);
+    }
+
+    @AfterEach
+    void stopStore() {
+        store.stopCleaner();
+    }
+
+    @Test
+    void convertsOnceForRepeatedPdf() throws Exception {
+        ConversionCache cache = newCache(true, 0);
+        SpooledPdf pdf = pdf("a", 10);
+        AtomicInteger conversions = new AtomicInteger();
+
+        String first = cache.getOrConvert(pdf, () -> convert(conversions, 1000));
+        String second = cache.getOrConvert(pdf, () -> convert(conversions, 1000));
+
+        assertEquals(1, conversions.get());
+        assertEquals(first, second);
+        assertTrue(Paths.get(first).startsWith(store.getRoot()));
+        assertEquals(1.0, requests("hit"));
+        assertEquals(1.0, requests("miss"));
+        assertEquals(1000, store.getTotalBytes());
+    }
+
+    @Test
+    void convertsAgainWhenResultWasDeleted() throws Exception {
+        ConversionCache cache = newCache(true, 0);
+        SpooledPdf pdf = pdf("a", 10);
+        AtomicInteger conversions = new AtomicInteger();
+        Files.delete(Paths.get(cache.getOrConvert(pdf, () -> convert(conversions, 1000))));
+
+        cache.getOrConvert(pdf, () -> convert(conversions, 1000));
+        assertEquals(2, conversions.get());
+        assertEquals(1000, store.getTotalBytes());
+    }
+
+    @Test
+    void otherSettingsDoNotShareResults() throws Exception {
+        SpooledPdf pdf = pdf("a", 10);
+        AtomicInteger conversions = new AtomicInteger();
+        String epub = newCache(true, 0).getOrConvert(pdf, () -> convert(conversions, 1000));
+        assertEquals(epub, newCache(true, 0).getOrConvert(pdf, () -> convert(conversions, 1000)));
+        assertEquals(1, conversions.get());
+
+        ConversionCache otherSettings = newCache(true, 500);
+        assertNotEquals(epub, otherSettings.getOrConvert(pdf, () -> convert(conversions, 1000)));
+        assertEquals(2, conversions.get());
+    }
+
+    @Test
+    void disabledCacheStoresEveryResult() throws Exception {
+        ConversionCache cache = newCache(false, 0);
+        SpooledPdf pdf = pdf("a", 10);
+        AtomicInteger conversions = new AtomicInteger();
+        String first = cache.getOrConvert(pdf, () -> convert(conversions, 10));
+        String second = cache.getOrConvert(pdf, () -> convert(conversions, 10));
+
+        assertFalse(cache.isEnabled());
+        assertEquals(2, conversions.get());
+        assertNotEquals(first, second);
+        assertEquals(2, store.getEntryCount());
+    }
+
+    @Test
+    void concurrentIdenticalUploadsShareOneConversion() throws Exception {
+        for (boolean enabled : new boolean[] {true, false}) {
+            ConversionCache cache = newCache(enabled, 0);
+            SpooledPdf pdf = pdf("shared" + enabled, 10);
+            AtomicInteger conversions = new AtomicInteger();
+            CountDownLatch release = new CountDownLatch(1);
+            double coalescedBefore = requests("coalesced");
+
+            ExecutorService uploads = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<String>> results = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    results.add(uploads.submit(() -> cache.getOrConvert(pdf, () -> {
+                        release.await(10, TimeUnit.SECONDS);
+                        return convert(conversions, 1000);
+                    })));
+                }
+                // Let the first upload finish only once the others are waiting for it
+                for (int attempt = 0; attempt < 200 && requests("coalesced") < coalescedBefore + 3; attempt++) {
+                    Thread.sleep(10);
+                }
+                release.countDown();
+
+                Set<String> paths = new HashSet<>();
+                for (Future<String> result : results) {
+                    paths.add(result.get(10, TimeUnit.SECONDS));
+                }
+                assertEquals(1, conversions.get());
+                assertEquals(1, paths.size());
+                assertEquals(coalescedBefore + 3, requests("coalesced"));
+            } finally {
+                uploads.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    void waitersReceiveFailureOfSharedConversion() throws Exception {
+        ConversionCache cache = newCache(true, 0);
+        SpooledPdf pdf = pdf("broken", 10);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService uploads = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = uploads.submit(() -> cache.getOrConvert(pdf, () -> {
+                started.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                throw new IOException("damaged PDF");
+            }));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            Future<String> second = uploads.submit(() -> cache.getOrConvert(pdf, () -> "not converted twice"));
+            for (int attempt = 0; attempt < 200 && requests("coalesced") < 1; attempt++) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+
+            for (Future<String> result : List.of(first, second)) {
+                ExecutionException failure = assertThrows(ExecutionException.class,
+                        () -> result.get(10, TimeUnit.SECONDS));
+                assertEquals("damaged PDF", failure.getCause().getMessage());
+            }
+        } finally {
+            uploads.shutdownNow();
+        }
+    }
+
+    @Test
+    void spoolingHashesTheUpload() throws Exception {
+        byte[] content = TestPdfs.create("hashed", 1, 1);
+        PdfLoader loader = new PdfLoader(PdfLoader.Mode.HEAP, 0, tempDir.toString());
+        ConversionCache cache = newCache(true, 0);
+
+        try (SpooledPdf pdf = loader.spool(new MockMultipartFile("file", "book.pdf", "application/pdf", content))) {
+            assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(content), pdf.getSha256());
+            assertArrayEquals(content, Files.readAllBytes(pdf.getFile().toPath()));
+            assertTrue(cache.keyOf(pdf.getSha256()).startsWith(HexFormat.of().formatHex(pdf.getSha256()) + "-"));
+        }
+    }
+
+    private ConversionCache newCache(boolean enabled, int maxDimension) {
+        ImageExporter exporter = new ImageExporter(registry, new CpuBudget(0), maxDimension);
+        return new ConversionCache(registry, exporter, store, enabled);
+    }
+
+    private SpooledPdf pdf(String content, int repeat) throws IOException {
+        byte[] bytes = content.repeat(repeat).getBytes(StandardCharsets.UTF_8);
+        return new PdfLoader(PdfLoader.Mode.HEAP, 0, tempDir.toString())
+                .spool(new MockMultipartFile("file", content + ".pdf", "application/pdf", bytes));
+    }
+
+    private String convert(AtomicInteger conversions, int size) throws IOException {
+        conversions.incrementAndGet();
+        Path epub = Files.createTempFile(tempDir, "book", ".epub");
+        Files.write(epub, new byte[size]);
+        return epub.toString();
+    }
+
+    private double requests(String result) {
+        return registry.get("epub.cache.requests").tag("result", result).counter().count();
+    }
+}
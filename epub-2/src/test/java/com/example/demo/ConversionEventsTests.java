@@ -0,0 +1,77 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Checks that a conversion under a flight recording emits one event for the
+ * conversion and its packaging, one per page and one per distinct image.
+ */
+class ConversionEventsTests {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void conversionEmitsStageEvents() throws Exception {
+        Path pdf = tempDir.resolve("book.pdf");
+        Files.write(pdf, TestPdfs.create("events", 3, 1));
+        Service11 service = newService();
+
+        Path recordingFile = tempDir.resolve("conversion.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(ConversionEvents.Conversion.class);
+            recording.enable(ConversionEvents.PageExtraction.class);
+            recording.enable(ConversionEvents.ImageEncode.class);
+            recording.enable(ConversionEvents.Packaging.class);
+            recording.start();
+            service.createEpubFromPdf(pdf.toFile(), ConversionProgressListener.NONE);
+            recording.stop();
+            recording.dump(recordingFile);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(recordingFile);
+        List<RecordedEvent> conversions = named(events, "com.example.demo.Conversion");
+        assertEquals(1, conversions.size());
+        RecordedEvent conversion = conversions.get(0);
+        assertEquals("direct", conversion.getString("mode"));
+        assertEquals(3, conversion.getInt("pages"));
+        assertEquals(Files.size(pdf), conversion.getLong("pdfBytes"));
+        assertTrue(conversion.getBoolean("succeeded"));
+        assertTrue(conversion.getLong("epubBytes") > 0);
+
+        List<RecordedEvent> pages = named(events, "com.example.demo.PageExtraction");
+        assertEquals(List.of(1, 2, 3), pages.stream().map(page -> page.getInt("page")).sorted().toList());
+        assertTrue(pages.stream().allMatch(page -> page.getInt("images") == 1));
+
+        List<RecordedEvent> images = named(events, "com.example.demo.ImageEncode");
+        assertEquals(3, images.size());
+        assertTrue(images.stream().allMatch(image -> image.getInt("width") == 32 && image.getLong("encodedBytes") > 0));
+
+        List<RecordedEvent> packaging = named(events, "com.example.demo.Packaging");
+        assertEquals(1, packaging.size());
+        assertEquals(3, packaging.get(0).getInt("images"));
+    }
+
+    private static List<RecordedEvent> named(List<RecordedEvent> events, String name) {
+        return events.stream()
+                .filter(event -> event.getEventType().getName().equals(name))
+                .collect(Collectors.toList());
+    }
+
+    private Service11 newService() throws Exception {
+        return new TestServices().service11(tempDir.resolve("results"));
+    }
+}
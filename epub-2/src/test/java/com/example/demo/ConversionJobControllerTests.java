@@ -0,0 +1,69 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.web.servlet.MockMvc;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+@SpringBootTest
+@AutoConfigureMockMvc
+class ConversionJobControllerTests {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ConversionJobService jobService;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void jobRunsInBackgroundAndReportsProgress() throws Exception {
+        // Unique text, so the result cache cannot answer for an earlier run
+        MockMultipartFile file = new MockMultipartFile("file", "book.pdf", "application/pdf",
+                TestPdfs.create("job " + UUID.randomUUID(), 4, 1));
+
+        String body = mockMvc.perform(multipart("/jobs").file(file))
+                .andExpect(status().isAccepted())
+                .andReturn().getResponse().getContentAsString();
+        String id = objectMapper.readTree(body).get("id").asText();
+
+        JsonNode job = null;
+        for (int attempt = 0; attempt < 100; attempt++) {
+            job = objectMapper.readTree(mockMvc.perform(get("/jobs/" + id))
+                    .andExpect(status().isOk())
+                    .andReturn().getResponse().getContentAsString());
+            String state = job.get("state").asText();
+            if (state.equals("COMPLETED") || state.equals("FAILED")) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+
+        assertEquals("COMPLETED", job.get("state").asText());
+        assertEquals(4, job.get("totalPages").asInt());
+        assertEquals(4, job.get("pagesDone").asInt());
+        assertTrue(job.get("downloadUrl").asText().startsWith("/download?path="));
+        Files.deleteIfExists(Paths.get(jobService.getJob(id).getEpubPath()));
+    }
+
+    @Test
+    void unknownJobIsNotFound() throws Exception {
+        mockMvc.perform(get("/jobs/does-not-exist")).andExpect(status().isNotFound());
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.mock.web.MockMultipartFile;
+
+/**
+ * Checks that every job passes through RUNNING and that finished jobs are
+ * dropped on schedule, without waiting for the next submission.
+ */
+@SpringBootTest(properties = {
+        "epub.jobs.retention-minutes=0",
+        "epub.jobs.eviction-interval-seconds=1"
+})
+class ConversionJobServiceTests {
+
+    @Autowired
+    private ConversionJobService jobService;
+
+    @Test
+    void cachedJobsRunAndFinishedJobsExpire() throws Exception {
+        byte[] pdf = TestPdfs.create("job " + UUID.randomUUID(), 2, 1);
+        ConversionJob first = jobService.submit(new MockMultipartFile("file", "book.pdf", "application/pdf", pdf));
+        awaitFinished(first);
+        // The same PDF again is answered by the cache
+        ConversionJob second = jobService.submit(new MockMultipartFile("file", "book.pdf", "application/pdf", pdf));
+        awaitFinished(second);
+
+        assertEquals(ConversionJob.State.COMPLETED, first.getState());
+        assertEquals(ConversionJob.State.COMPLETED, second.getState());
+        assertEquals(first.getEpubPath(), second.getEpubPath());
+
+        for (int attempt = 0; attempt < 50 && jobService.getJob(second.getId()) != null; attempt++) {
+            Thread.sleep(100);
+        }
+        assertNull(jobService.getJob(first.getId()));
+        assertNull(jobService.getJob(second.getId()));
+        Files.deleteIfExists(Paths.get(first.getEpubPath()));
+    }
+
+    private static void awaitFinished(ConversionJob job) throws InterruptedException {
+        for (int attempt = 0; attempt < 100 && job.getFinishedAt() == null; attempt++) {
+            Thread.sleep(100);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.observability.AutoConfigureObservability;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.web.servlet.MockMvc;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Checks that a conversion is counted and timed stage by stage, and that the
+ * meters can be scraped from the Prometheus endpoint.
+ */
+@SpringBootTest
+@AutoConfigureMockMvc
+@AutoConfigureObservability
+class ConversionMetricsTests {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    @Test
+    void conversionIsTimedPerStageAndScraped() throws Exception {
+        double pagesBefore = registry.get("epub.conversion.pages").counter().count();
+        long loadsBefore = stageCount(ConversionMetrics.Stage.LOAD);
+        long textBefore = stageCount(ConversionMetrics.Stage.TEXT);
+        // Unique text, so the result cache cannot answer for an earlier run
+        MockMultipartFile file = new MockMultipartFile("file", "book.pdf", "application/pdf",
+                TestPdfs.create("metrics " + UUID.randomUUID(), 3, 1));
+
+        mockMvc.perform(multipart("/convert").file(file)).andExpect(status().isOk());
+
+        assertEquals(pagesBefore + 3, registry.get("epub.conversion.pages").counter().count());
+        assertEquals(loadsBefore + 1, stageCount(ConversionMetrics.Stage.LOAD));
+        assertEquals(textBefore + 3, stageCount(ConversionMetrics.Stage.TEXT));
+        for (ConversionMetrics.Stage stage : ConversionMetrics.Stage.values()) {
+            assertTrue(stageCount(stage) > 0, stage.getTag());
+        }
+        assertTrue(registry.get("epub.conversion.bytes").tag("direction", "out").counter().count() > 0);
+        assertEquals(0.0, registry.get("epub.conversion.active").gauge().value());
+
+        String scrape = mockMvc.perform(get("/actuator/prometheus"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        assertTrue(scrape.contains("epub_conversion_stage_seconds_count{"), scrape);
+        assertTrue(scrape.contains("epub_conversion_duration_seconds_bucket{"), scrape);
+        assertTrue(scrape.contains("epub_conversion_pages_total"), scrape);
+    }
+
+    private long stageCount(ConversionMetrics.Stage stage) {
+        return registry.get("epub.conversion.stage").tag("stage", stage.getTag()).timer().count();
+    }
+}
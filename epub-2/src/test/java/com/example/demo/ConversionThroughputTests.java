@@ -0,0 +1,86 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipFile;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+
+/**
+ * Compares conversion throughput of one platform thread per request against
+ * virtual threads sharing a {@link CpuBudget}, and checks that the budget
+ * costs no more than {@link #TOLERANCE} of it. Run with
+ * {@code mvn test -Dtest=ConversionThroughputTests -Dperf=true}.
+ */
+@EnabledIfSystemProperty(named = "perf", matches = "true")
+class ConversionThroughputTests {
+
+    private static final int REQUESTS = 64;
+    private static final int PAGES = 40;
+    // Virtual threads may be this much slower before the test fails, to allow for noise
+    private static final double TOLERANCE = 0.2;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void compareThreadPerRequestWithVirtualThreads() throws Exception {
+        byte[] pdf = TestPdfs.create("throughput", PAGES, 3);
+
+        // Warm up PDFBox and the JIT before measuring
+        run(Executors.newFixedThreadPool(REQUESTS), Integer.MAX_VALUE, pdf, 8);
+
+        double platform = run(Executors.newFixedThreadPool(REQUESTS), Integer.MAX_VALUE, pdf, REQUESTS);
+        double virtual = run(Executors.newVirtualThreadPerTaskExecutor(), 0, pdf, REQUESTS);
+
+        assertTrue(virtual >= platform * (1 - TOLERANCE),
+                String.format("virtual threads + %d CPU permits: %.1f conversions/s, thread-per-request: %.1f",
+                        Runtime.getRuntime().availableProcessors(), virtual, platform));
+    }
+
+    private double run(ExecutorService executor, int cpuPermits, byte[] pdf, int requests) throws Exception {
+        TestServices services = new TestServices().cpuPermits(cpuPermits).directPackaging(false);
+        Service11 service = services.service11(tempDir.resolve("results"));
+        long start = System.nanoTime();
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < requests; i++) {
+                MockMultipartFile file = new MockMultipartFile("file", "book.pdf", "application/pdf", pdf);
+                results.add(executor.submit(() -> service.createEpubFromPdf(file)));
+            }
+            for (Future<String> result : results) {
+                Path epub = Paths.get(result.get());
+                assertReadableEpub(epub);
+                Files.deleteIfExists(epub);
+            }
+        } finally {
+            executor.shutdown();
+            services.stop();
+        }
+        return requests / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static void assertReadableEpub(Path epub) throws IOException {
+        try (ZipFile zip = new ZipFile(epub.toFile())) {
+            assertEquals(EpubArchive.MIMETYPE,
+                    new String(zip.getInputStream(zip.getEntry("mimetype")).readAllBytes(), StandardCharsets.US_ASCII),
+                    epub.toString());
+            assertNotNull(zip.getEntry("OEBPS/content.opf"), epub.toString());
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.demo;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * Times a whole conversion of a {@link SyntheticPdfGenerator} book, from
+ * the PDF on disk to the finished EPUB, for a short and a long document.
+ * The score is the time for the whole book; divide by {@code pages} for
+ * the cost per page.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CorpusConversionBenchmark {
+
+    @Param({"10", "200"})
+    public int pages;
+
+    private TestServices services;
+    private Service11 service;
+    private ResultStore resultStore;
+    private Path pdf;
+    private String epub;
+
+    @Setup(Level.Trial)
+    public void createFixtures() throws Exception {
+        services = new TestServices().extraction(0, 25).images(0, 64);
+        service = services.service11(Files.createTempDirectory("epub-bench"));
+        resultStore = services.getResultStore();
+
+        pdf = Files.createTempFile("corpus", ".pdf");
+        new SyntheticPdfGenerator().pages(pages).writeTo(pdf);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFixtures() throws Exception {
+        Files.deleteIfExists(pdf);
+        services.stop();
+        FileSystemUtils.deleteRecursively(resultStore.getRoot());
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteResult() {
+        if (epub != null) {
+            resultStore.deleteLater(Paths.get(epub));
+            epub = null;
+        }
+    }
+
+    @Benchmark
+    public String convertBook() throws Exception {
+        epub = service.createEpubFromPdf(pdf.toFile(), ConversionProgressListener.NONE);
+        return epub;
+    }
+}
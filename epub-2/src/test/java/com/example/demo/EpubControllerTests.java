@@ -0,0 +1,88 @@
+package com.example.demo;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.web.servlet.MockMvc;
+
+/**
+ * Checks that downloads are confined to the result store.
+ */
+@SpringBootTest
+@AutoConfigureMockMvc
+class EpubControllerTests {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ResultStore resultStore;
+
+    private Path stored;
+    private Path outside;
+
+    @BeforeEach
+    void storeResult() throws Exception {
+        String key = ResultStore.newKey();
+        Path epub = Files.createTempFile("book", ".epub");
+        Files.write(epub, new byte[100]);
+        stored = resultStore.put(key, epub);
+        // Next to the store, so ../ from the root reaches it
+        outside = Files.write(resultStore.getRoot().resolveSibling(key + ".epub"), new byte[100]);
+    }
+
+    @AfterEach
+    void deleteResult() throws Exception {
+        Files.deleteIfExists(stored);
+        Files.deleteIfExists(outside);
+    }
+
+    @Test
+    void downloadsStoredResult() throws Exception {
+        mockMvc.perform(get("/download").param("path", stored.toString()))
+                .andExpect(status().isOk());
+        mockMvc.perform(get("/download").param("path", resultStore.getRoot().relativize(stored).toString()))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    void pathsOutsideTheStoreAreNotFound() throws Exception {
+        mockMvc.perform(get("/download").param("path", outside.toString()))
+                .andExpect(status().isNotFound());
+        mockMvc.perform(get("/download").param("path", "../" + outside.getFileName()))
+                .andExpect(status().isNotFound());
+        mockMvc.perform(get("/download").param("path", stored.getParent() + "/../../" + outside.getFileName()))
+                .andExpect(status().isNotFound());
+        mockMvc.perform(get("/download").param("path", "/etc/passwd"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    void stagingFilesAreNotFound() throws Exception {
+        Path staging = resultStore.createStagingDirectory();
+        Path building = staging.resolveSibling(staging.getFileName() + ".epub");
+        try {
+            Files.write(building, new byte[100]);
+            Path xhtml = Files.write(staging.resolve("page1.xhtml"), new byte[100]);
+
+            mockMvc.perform(get("/download").param("path", building.toString()))
+                    .andExpect(status().isNotFound());
+            mockMvc.perform(get("/download").param("path", resultStore.getRoot().relativize(xhtml).toString()))
+                    .andExpect(status().isNotFound());
+            mockMvc.perform(get("/download").param("path", stored.resolveSibling("other.epub").toString()))
+                    .andExpect(status().isNotFound());
+        } finally {
+            Files.deleteIfExists(building);
+            resultStore.deleteLater(staging);
+        }
+    }
+}
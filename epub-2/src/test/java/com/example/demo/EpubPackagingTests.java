@@ -0,0 +1,202 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that writing entries straight into the EPUB, or into a stream,
+ * produces the same content as staging them in a directory tree first.
+ */
+class EpubPackagingTests {
+
+    @TempDir
+    Path tempDir;
+
+    private final List<TestServices> services = new ArrayList<>();
+
+    @AfterEach
+    void stopServices() {
+        services.forEach(TestServices::stop);
+    }
+
+    @Test
+    void directPackagingMatchesStagedPackaging() throws Exception {
+        Path pdf = Files.write(tempDir.resolve("book.pdf"), TestPdfs.createBook(20));
+        Map<String, byte[]> staged = entries(convert(pdf, false));
+        Map<String, byte[]> direct = entries(convert(pdf, true));
+
+        assertEquals(staged.keySet(), direct.keySet());
+        for (Map.Entry<String, byte[]> entry : staged.entrySet()) {
+            if (entry.getKey().equals("OEBPS/content.opf")) {
+                // The staged manifest lists images in directory listing order
+                assertEquals(sortedLines(entry.getValue()), sortedLines(direct.get(entry.getKey())));
+            } else {
+                assertArrayEquals(entry.getValue(), direct.get(entry.getKey()), entry.getKey());
+            }
+        }
+    }
+
+    @Test
+    void mimetypeComesFirstAndIsStored() throws Exception {
+        for (boolean direct : new boolean[] {false, true}) {
+            Path epub = convert(TestPdfs.create("mimetype", 2, 0), direct);
+            try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(epub))) {
+                ZipEntry first = zip.getNextEntry();
+                assertEquals("mimetype", first.getName());
+                assertEquals(ZipEntry.STORED, first.getMethod());
+                assertEquals(EpubArchive.MIMETYPE, new String(zip.readAllBytes(), StandardCharsets.US_ASCII));
+            }
+        }
+    }
+
+    @Test
+    void directPackagingLeavesNoStagingTree() throws Exception {
+        Path epub = convert(TestPdfs.create("cleanup", 2, 0), true);
+        Path baseDir = Paths.get(epub.toString().substring(0, epub.toString().length() - ".epub".length()));
+        // The staging tree is deleted in the background
+        for (int attempt = 0; attempt < 100 && Files.exists(baseDir); attempt++) {
+            Thread.sleep(50);
+        }
+        assertFalse(Files.exists(baseDir));
+    }
+
+    @Test
+    void manifestHasMediaTypeOfEachImage() throws Exception {
+        for (boolean direct : new boolean[] {false, true}) {
+            Map<String, byte[]> entries = entries(convert(createPdfWithTransparentImage(), direct));
+            assertTrue(entries.containsKey("OEBPS/images/pg1.jpg"));
+            assertTrue(entries.containsKey("OEBPS/images/pg1_1.png"));
+
+            String opf = new String(entries.get("OEBPS/content.opf"), StandardCharsets.UTF_8);
+            assertTrue(opf.contains("href=\"images/pg1.jpg\" media-type=\"image/jpeg\""), opf);
+            assertTrue(opf.contains("href=\"images/pg1_1.png\" media-type=\"image/png\""), opf);
+        }
+    }
+
+    @Test
+    void diagramsAreStoredAsPng() throws Exception {
+        Path pdf = tempDir.resolve("illustrated.pdf");
+        // A JPEG photograph on page 5 and a Flate-compressed diagram on page 7
+        new SyntheticPdfGenerator().pages(7).logo(false).photoEvery(5).diagramEvery(7).writeTo(pdf);
+        Map<String, byte[]> entries = entries(convert(pdf, true));
+        assertTrue(entries.containsKey("OEBPS/images/pg5.jpg"), entries.keySet().toString());
+        assertTrue(entries.containsKey("OEBPS/images/pg7.png"), entries.keySet().toString());
+
+        String opf = new String(entries.get("OEBPS/content.opf"), StandardCharsets.UTF_8);
+        assertTrue(opf.contains("href=\"images/pg7.png\" media-type=\"image/png\""), opf);
+    }
+
+    @Test
+    void streamedEpubMatchesEpubFile() throws Exception {
+        Path pdf = Files.write(tempDir.resolve("book.pdf"), TestPdfs.create("streamed", 6, 3));
+        Map<String, byte[]> direct = entries(convert(pdf, true));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        newService(true).writeEpubFromPdf(pdf.toFile(), out, ConversionProgressListener.NONE, false);
+        Path streamed = Files.write(tempDir.resolve("streamed.epub"), out.toByteArray());
+        Map<String, byte[]> entries = entries(streamed);
+
+        assertEquals(direct.keySet(), entries.keySet());
+        for (Map.Entry<String, byte[]> entry : direct.entrySet()) {
+            assertArrayEquals(entry.getValue(), entries.get(entry.getKey()), entry.getKey());
+        }
+    }
+
+    @Test
+    void failedStreamDoesNotEndLikeACompleteZip() throws Exception {
+        Path notPdf = Files.writeString(tempDir.resolve("broken.pdf"), "not a PDF");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Service11 service = newService(true);
+        assertThrows(Exception.class, () -> service.writeEpubFromPdf(notPdf.toFile(), out,
+                ConversionProgressListener.NONE, false));
+
+        // The end of central directory record starts with PK\5\6
+        byte[] written = out.toByteArray();
+        for (int i = 0; i + 3 < written.length; i++) {
+            assertFalse(written[i] == 'P' && written[i + 1] == 'K' && written[i + 2] == 5 && written[i + 3] == 6);
+        }
+    }
+
+    // One page with an opaque photo and a translucent overlay
+    private static byte[] createPdfWithTransparentImage() throws IOException {
+        try (PDDocument document = new PDDocument()) {
+            PDPage page = new PDPage();
+            document.addPage(page);
+            PDImageXObject photo = JPEGFactory.createFromImage(document,
+                    new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB));
+            PDImageXObject overlay = LosslessFactory.createFromImage(document,
+                    new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB));
+            try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                content.drawImage(photo, 72, 600);
+                content.drawImage(overlay, 72, 500);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            document.save(out);
+            return out.toByteArray();
+        }
+    }
+
+    private Path convert(byte[] pdf, boolean direct) throws Exception {
+        return convert(Files.write(Files.createTempFile(tempDir, "book", ".pdf"), pdf), direct);
+    }
+
+    private Path convert(Path pdf, boolean direct) throws Exception {
+        return Paths.get(newService(direct).createEpubFromPdf(pdf.toFile(), ConversionProgressListener.NONE));
+    }
+
+    private Service11 newService(boolean direct) throws IOException {
+        TestServices testServices = new TestServices().directPackaging(direct);
+        services.add(testServices);
+        return testServices.service11(tempDir.resolve("results"));
+    }
+
+    private static List<String> sortedLines(byte[] content) {
+        List<String> lines = new ArrayList<>(List.of(new String(content, StandardCharsets.UTF_8).split("\n")));
+        Collections.sort(lines);
+        return lines;
+    }
+
+    private static Map<String, byte[]> entries(Path epub) throws IOException {
+        Map<String, byte[]> entries = new TreeMap<>();
+        List<String> order = new ArrayList<>();
+        try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(epub))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                entries.put(entry.getName(), zip.readAllBytes());
+                order.add(entry.getName());
+            }
+        } finally {
+            Files.deleteIfExists(epub);
+        }
+        assertEquals(order.size(), entries.size(), "duplicate entries in " + order);
+        return entries;
+    }
+}
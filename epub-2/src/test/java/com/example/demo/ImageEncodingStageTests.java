@@ -0,0 +1,120 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Checks that the image stage encodes images off the calling thread, falls
+ * back to the caller when its queue is full, and reports failures.
+ */
+class ImageEncodingStageTests {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private ImageEncodingStage stage;
+
+    @AfterEach
+    void stopStage() {
+        if (stage != null) {
+            stage.stopExecutor();
+        }
+    }
+
+    @Test
+    void encodesOnWorkersAndWaitsForThem() throws Exception {
+        stage = newStage(2, 16);
+        try (PDDocument document = new PDDocument()) {
+            ImageEncodingStage.Batch batch = stage.newBatch();
+            Map<Integer, Thread> encodedOn = new ConcurrentHashMap<>();
+            for (int i = 0; i < 10; i++) {
+                int index = i;
+                batch.submit(document, image(document), ImageFormat.JPEG, jpegBytes -> {
+                    assertTrue(jpegBytes.length > 0);
+                    encodedOn.put(index, Thread.currentThread());
+                });
+            }
+            batch.awaitDocument(document);
+            batch.await();
+
+            assertEquals(10, encodedOn.size());
+            for (Thread thread : encodedOn.values()) {
+                assertTrue(thread.getName().startsWith("image-encoder-"), thread.getName());
+            }
+            assertEquals(10, registry.get("epub.images.encode").timer().count());
+        }
+    }
+
+    @Test
+    void encodesOnCallerWhenQueueIsFull() throws Exception {
+        stage = newStage(1, 1);
+        try (PDDocument document = new PDDocument()) {
+            ImageEncodingStage.Batch batch = stage.newBatch();
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch started = new CountDownLatch(1);
+            // Occupy the only worker, then fill the one queue slot
+            batch.submit(document, image(document), ImageFormat.JPEG, jpegBytes -> {
+                started.countDown();
+                awaitLatch(release);
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            batch.submit(document, image(document), ImageFormat.JPEG, jpegBytes -> {
+            });
+
+            Thread[] encodedOn = new Thread[1];
+            batch.submit(document, image(document), ImageFormat.JPEG, jpegBytes -> encodedOn[0] = Thread.currentThread());
+            assertSame(Thread.currentThread(), encodedOn[0]);
+            assertEquals(1.0, registry.get("epub.images.encoded.inline").counter().count());
+
+            release.countDown();
+            batch.await();
+        }
+    }
+
+    @Test
+    void awaitReportsFailures() throws Exception {
+        stage = newStage(1, 4);
+        try (PDDocument document = new PDDocument()) {
+            ImageEncodingStage.Batch batch = stage.newBatch();
+            batch.submit(document, image(document), ImageFormat.JPEG, jpegBytes -> {
+                throw new IOException("disk full");
+            });
+            batch.awaitDocument(document);
+
+            IOException failure = assertThrows(IOException.class, batch::await);
+            assertEquals("disk full", failure.getMessage());
+        }
+    }
+
+    private ImageEncodingStage newStage(int workers, int queueDepth) {
+        CpuBudget cpuBudget = new CpuBudget(0);
+        return new ImageEncodingStage(registry, new ImageExporter(registry, cpuBudget, 0), cpuBudget, workers, queueDepth);
+    }
+
+    private static PDImageXObject image(PDDocument document) throws IOException {
+        return LosslessFactory.createFromImage(document, new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB));
+    }
+
+    private static void awaitLatch(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
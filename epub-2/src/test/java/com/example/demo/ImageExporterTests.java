@@ -0,0 +1,201 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import javax.imageio.ImageIO;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Checks the image format policy, that JPEG images are copied byte for byte,
+ * and that every other image is decoded and encoded in its chosen format.
+ */
+class ImageExporterTests {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private ImageExporter exporter;
+    private BufferedImage picture;
+
+    @BeforeEach
+    void createExporter() {
+        exporter = new ImageExporter(registry, new CpuBudget(0), 0);
+        picture = new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = picture.createGraphics();
+        g.setColor(Color.ORANGE);
+        g.fillRect(0, 0, 40, 30);
+        g.setColor(Color.BLUE);
+        g.fillOval(5, 5, 20, 20);
+        g.dispose();
+    }
+
+    @Test
+    void copiesJpegStreamsUnchanged() throws Exception {
+        try (PDDocument document = new PDDocument()) {
+            PDImageXObject image = JPEGFactory.createFromImage(document, picture);
+            byte[] encoded;
+            try (InputStream in = image.getCOSObject().createRawInputStream()) {
+                encoded = in.readAllBytes();
+            }
+
+            assertArrayEquals(encoded, exporter.encode(image, ImageFormat.JPEG));
+            assertEquals(1, count("passthrough"));
+            assertEquals(0, count("reencoded"));
+        }
+    }
+
+    @Test
+    void reencodesFlateImages() throws Exception {
+        try (PDDocument document = new PDDocument()) {
+            PDImageXObject image = LosslessFactory.createFromImage(document, picture);
+
+            byte[] jpeg = exporter.encode(image, ImageFormat.JPEG);
+            BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(jpeg));
+            assertNotNull(decoded);
+            assertEquals(40, decoded.getWidth());
+            assertEquals(0, count("passthrough"));
+            assertEquals(1, count("reencoded"));
+        }
+    }
+
+    @Test
+    void reencodesJpegsWithInvertingDecodeArray() throws Exception {
+        try (PDDocument document = new PDDocument()) {
+            PDImageXObject image = JPEGFactory.createFromImage(document, picture);
+            assertTrue(exporter.isPassThroughJpeg(image));
+
+            COSArray inverted = new COSArray();
+            for (int i = 0; i < 3; i++) {
+                inverted.add(COSInteger.ONE);
+                inverted.add(COSInteger.ZERO);
+            }
+            image.getCOSObject().setItem(COSName.DECODE, inverted);
+            assertFalse(exporter.isPassThroughJpeg(image));
+        }
+    }
+
+    @Test
+    void scalesOversizedImagesDownToMaximumDimension() throws Exception {
+        ImageExporter limited = new ImageExporter(registry, new CpuBudget(0), 500);
+        BufferedImage scan = new BufferedImage(3000, 900, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scan.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 3000, 900);
+        g.setColor(Color.BLACK);
+        g.fillRect(1000, 300, 1000, 300);
+        g.dispose();
+
+        try (PDDocument document = new PDDocument()) {
+            for (PDImageXObject image : new PDImageXObject[] {
+                    LosslessFactory.createFromImage(document, scan), JPEGFactory.createFromImage(document, scan)}) {
+                BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(limited.encode(image, ImageFormat.JPEG)));
+                assertEquals(500, decoded.getWidth());
+                assertEquals(150, decoded.getHeight());
+                // The dark block stays in the middle
+                assertTrue((decoded.getRGB(250, 75) & 0xFF) < 64);
+                assertTrue((decoded.getRGB(20, 20) & 0xFF) > 192);
+            }
+            // An oversized JPEG is decoded like any other image
+            assertEquals(0, count("passthrough"));
+            assertEquals(2, count("reencoded"));
+            assertEquals(2, registry.get("epub.images.downscaled").counter().count());
+        }
+    }
+
+    @Test
+    void keepsImagesWithinMaximumDimension() throws Exception {
+        ImageExporter limited = new ImageExporter(registry, new CpuBudget(0), 40);
+        try (PDDocument document = new PDDocument()) {
+            PDImageXObject image = JPEGFactory.createFromImage(document, picture);
+            assertTrue(limited.isPassThroughJpeg(image));
+            limited.encode(image, ImageFormat.JPEG);
+            assertEquals(1, count("passthrough"));
+            assertEquals(0, registry.get("epub.images.downscaled").counter().count());
+        }
+    }
+
+    @Test
+    void choosesJpegOnlyForLossySources() throws Exception {
+        try (PDDocument document = new PDDocument()) {
+            assertEquals(ImageFormat.JPEG, exporter.chooseFormat(JPEGFactory.createFromImage(document, picture)));
+            PDImageXObject jpeg2000 = LosslessFactory.createFromImage(document, picture);
+            jpeg2000.getCOSObject().setItem(COSName.FILTER, COSName.JPX_DECODE);
+            assertEquals(ImageFormat.JPEG, exporter.chooseFormat(jpeg2000));
+
+            // 8-bit RGB stored losslessly is a diagram or screenshot, not a photograph
+            assertEquals(ImageFormat.PNG, exporter.chooseFormat(LosslessFactory.createFromImage(document, picture)));
+            PDImageXObject lzw = LosslessFactory.createFromImage(document, picture);
+            lzw.getCOSObject().setItem(COSName.FILTER, COSName.LZW_DECODE);
+            assertEquals(ImageFormat.PNG, exporter.chooseFormat(lzw));
+
+            BufferedImage lineArt = new BufferedImage(40, 30, BufferedImage.TYPE_BYTE_BINARY);
+            PDImageXObject bilevel = LosslessFactory.createFromImage(document, lineArt);
+            assertEquals(1, bilevel.getBitsPerComponent());
+            assertEquals(ImageFormat.PNG, exporter.chooseFormat(bilevel));
+
+            BufferedImage translucent = new BufferedImage(40, 30, BufferedImage.TYPE_INT_ARGB);
+            assertEquals(ImageFormat.PNG, exporter.chooseFormat(LosslessFactory.createFromImage(document, translucent)));
+
+            PDImageXObject fax = LosslessFactory.createFromImage(document, picture);
+            fax.getCOSObject().setItem(COSName.FILTER, COSName.CCITTFAX_DECODE);
+            assertEquals(ImageFormat.PNG, exporter.chooseFormat(fax));
+        }
+    }
+
+    @Test
+    void writesLineArtAsOneBitPng() throws Exception {
+        BufferedImage lineArt = new BufferedImage(64, 64, BufferedImage.TYPE_BYTE_BINARY);
+        Graphics2D g = lineArt.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 64, 64);
+        g.setColor(Color.BLACK);
+        g.drawLine(0, 0, 63, 63);
+        g.dispose();
+
+        try (PDDocument document = new PDDocument()) {
+            PDImageXObject image = LosslessFactory.createFromImage(document, lineArt);
+            byte[] png = exporter.encode(image, ImageFormat.PNG);
+
+            BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png));
+            assertEquals(1, decoded.getColorModel().getPixelSize());
+            assertEquals(Color.BLACK.getRGB(), decoded.getRGB(10, 10));
+            assertEquals(Color.WHITE.getRGB(), decoded.getRGB(10, 40));
+            assertEquals(1, registry.get("epub.images.exported").tag("format", "png").counter().count());
+        }
+    }
+
+    @Test
+    void placeholdersAreImagesOfTheirFormat() throws Exception {
+        BufferedImage jpeg = ImageIO.read(new ByteArrayInputStream(exporter.placeholder(ImageFormat.JPEG)));
+        assertEquals(1, jpeg.getWidth());
+        BufferedImage png = ImageIO.read(new ByteArrayInputStream(exporter.placeholder(ImageFormat.PNG)));
+        assertEquals(1, png.getWidth());
+        assertTrue(png.getColorModel().hasAlpha());
+        assertEquals(2, registry.get("epub.images.placeholders").counter().count());
+    }
+
+    private double count(String path) {
+        return registry.get("epub.images.exported").tag("path", path).counters().stream()
+                .mapToDouble(Counter::count).sum();
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.pdfbox.cos.COSObjectKey;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that an image used several times in a conversion is stored once and
+ * that every use refers to the same file.
+ */
+class ImageRegistryTests {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void storesSameReferenceOnce() throws Exception {
+        try (PDDocument first = new PDDocument(); PDDocument second = new PDDocument()) {
+            List<String> written = new ArrayList<>();
+            ImageRegistry registry = new ImageRegistry(
+                    (pageIndex, imageIndex, fileName, data) -> written.add(pageIndex + ":" + fileName));
+            AtomicInteger stores = new AtomicInteger();
+            COSObjectKey logo = new COSObjectKey(12, 0);
+
+            // The same object loaded by two shard documents is still one image, and the later
+            // shard getting to it first does not decide its name
+            registry.register(logo, image(second, Color.RED), 8, 0, "pg9.jpg", image -> store(stores, image));
+            registry.register(logo, image(first, Color.RED), 0, 0, "pg1.jpg", image -> store(stores, image));
+            assertEquals(1, stores.get());
+            assertEquals(1, registry.getStoredCount());
+            assertEquals(1, registry.getReusedCount());
+
+            assertEquals("pg1.jpg", registry.place("pg1.jpg"));
+            assertEquals("pg1.jpg", registry.place("pg9.jpg"));
+            assertEquals(List.of("0:pg1.jpg"), written);
+        }
+    }
+
+    @Test
+    void matchesSeparateCopiesByContent() throws Exception {
+        try (PDDocument document = new PDDocument()) {
+            ImageRegistry registry = new ImageRegistry((pageIndex, imageIndex, fileName, data) -> { });
+            AtomicInteger stores = new AtomicInteger();
+
+            registry.register(new COSObjectKey(5, 0), image(document, Color.RED), 0, 0, "pg1.jpg",
+                    image -> store(stores, image));
+            registry.register(new COSObjectKey(8, 0), image(document, Color.RED), 1, 0, "pg2.jpg",
+                    image -> store(stores, image));
+            registry.register(null, image(document, Color.RED), 2, 0, "pg3.jpg", image -> store(stores, image));
+            registry.register(new COSObjectKey(9, 0), image(document, Color.BLUE), 3, 0, "pg4.jpg",
+                    image -> store(stores, image));
+            assertEquals(2, stores.get());
+
+            assertEquals("pg1.jpg", registry.place("pg1.jpg"));
+            assertEquals("pg1.jpg", registry.place("pg2.jpg"));
+            assertEquals("pg1.jpg", registry.place("pg3.jpg"));
+            assertEquals("pg4.jpg", registry.place("pg4.jpg"));
+        }
+    }
+
+    @Test
+    void writesImageWhenBothNamedAndEncoded() throws Exception {
+        try (PDDocument document = new PDDocument()) {
+            List<String> written = new ArrayList<>();
+            ImageRegistry registry = new ImageRegistry(
+                    (pageIndex, imageIndex, fileName, data) -> written.add(fileName + ":" + data.length));
+            List<ImageRegistry.StoredImage> stored = new ArrayList<>();
+            registry.register(new COSObjectKey(3, 0), image(document, Color.RED), 0, 0, "pg1.jpg", stored::add);
+            registry.register(new COSObjectKey(4, 0), image(document, Color.BLUE), 0, 1, "pg1_1.jpg", stored::add);
+            registry.register(new COSObjectKey(5, 0), image(document, Color.GREEN), 1, 0, "pg2.jpg", stored::add);
+
+            // Encoded before it is named
+            stored.get(0).accept(new byte[10]);
+            assertEquals(List.of(), written);
+            assertEquals("pg1.jpg", registry.place("pg1.jpg"));
+            assertEquals(List.of("pg1.jpg:10"), written);
+
+            // Named before it is encoded
+            assertEquals("pg1_1.jpg", registry.place("pg1_1.jpg"));
+            stored.get(1).accept(new byte[20]);
+            assertEquals(List.of("pg1.jpg:10", "pg1_1.jpg:20"), written);
+
+            // Nothing is written for an image that cannot be encoded
+            stored.get(2).accept(null);
+            assertEquals("pg2.jpg", registry.place("pg2.jpg"));
+            assertEquals(2, written.size());
+        }
+    }
+
+    @Test
+    void repeatedLogoIsPackagedOnce() throws Exception {
+        Path pdf = Files.write(tempDir.resolve("logo.pdf"), createLogoPdf(12));
+        Path epub = convert(pdf, 3, 2);
+
+        List<String> images = new ArrayList<>();
+        String book = null;
+        try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(epub))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (entry.getName().startsWith("OEBPS/images/") && !entry.isDirectory()) {
+                    images.add(entry.getName());
+                } else if (entry.getName().equals("OEBPS/xhtml/output.xhtml")) {
+                    book = new String(zip.readAllBytes(), StandardCharsets.UTF_8);
+                }
+            }
+        }
+        // One logo shared by all pages plus one picture per page
+        assertEquals(13, images.size());
+
+        Matcher logoUses = Pattern.compile("src=\"\\.\\./images/([^\"]+)\"").matcher(book);
+        List<String> sources = new ArrayList<>();
+        while (logoUses.find()) {
+            sources.add(logoUses.group(1));
+        }
+        assertEquals(24, sources.size());
+        String logo = sources.get(0);
+        for (int page = 0; page < 12; page++) {
+            assertEquals(logo, sources.get(page * 2), "logo on page " + (page + 1));
+        }
+    }
+
+    private static void store(AtomicInteger stores, ImageRegistry.StoredImage image) throws IOException {
+        stores.incrementAndGet();
+        image.accept(new byte[1]);
+    }
+
+    private static PDImageXObject image(PDDocument document, Color color) throws IOException {
+        BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(color);
+        g.fillRect(0, 0, 16, 16);
+        g.dispose();
+        return LosslessFactory.createFromImage(document, image);
+    }
+
+    // Every page draws the same logo object first, then a picture of its own
+    private static byte[] createLogoPdf(int pages) throws IOException {
+        try (PDDocument document = new PDDocument()) {
+            PDImageXObject logo = image(document, Color.DARK_GRAY);
+            for (int pageNo = 0; pageNo < pages; pageNo++) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                PDImageXObject picture = image(document, new Color(pageNo * 20, 100, 200));
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.drawImage(logo, 72, 700);
+                    content.drawImage(picture, 72, 500);
+                }
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            document.save(out);
+            return out.toByteArray();
+        }
+    }
+
+    private Path convert(Path pdf, int workers, int shardPages) throws Exception {
+        TestServices services = new TestServices().extraction(workers, shardPages);
+        try {
+            Service11 service = services.service11(tempDir.resolve("results"));
+            return Paths.get(service.createEpubFromPdf(pdf.toFile(), ConversionProgressListener.NONE));
+        } finally {
+            services.stop();
+        }
+    }
+}
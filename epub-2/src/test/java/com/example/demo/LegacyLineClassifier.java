@@ -0,0 +1,101 @@
+package com.example.demo;
+
+/**
+ * The per-line rules as they were written in {@code Service11.extractContent}
+ * before {@link LineClassifier}: regex sanitizing, {@code String.matches}
+ * heading detection and the bullet symbol table. Kept as the reference for
+ * equivalence tests and as the baseline in benchmarks.
+ */
+final class LegacyLineClassifier {
+
+    private LegacyLineClassifier() {
+    }
+
+    static ClassifiedLine classify(String line) {
+        String trimmedLine = line.trim();
+
+        // Handle non-breaking characters and avoid invalid symbols
+        trimmedLine = trimmedLine.replace("\uFFFD", ""); // Remove replacement character
+        trimmedLine = trimmedLine.replaceAll("[^\\x20-\\x7E]+", ""); // Remove non-ASCII characters
+
+        ClassifiedLine heading = detectHeadingLevel(trimmedLine);
+        if (heading != null) {
+            return heading;
+        }
+        if (trimmedLine.startsWith("TABLE")) {
+            return new ClassifiedLine(ClassifiedLine.Kind.TABLE_START, trimmedLine, null, 0, null, false);
+        }
+
+        String[] bulletSymbols = {"•", "○", "▪", "❑", "✓", "–", "-", "*",
+                                  "1.", "2.", "3.", "4.", "5.", "6.", "7.", "8.", "9.", "10.",
+                                  "a.", "b.", "c.", "d.", "e.", "f.", "g.", "h.", "i.", "j.", "k.", "l.", "m.", "n.", "o.", "p.",
+                                  "A.", "B.", "C.", "D.", "E.", "F.", "G.", "H.", "I.", "J.", "K.", "L.", "M.", "N.", "O.", "P.",
+                                  "1,", "2,", "3,", "4,", "5,", "6,", "7,", "8,", "9,", "10,",
+                                  "a,", "b,", "c,", "d,", "e,", "f,", "g,", "h,", "i,", "j,", "k,", "l.", "m,", "n,", "o,", "p,",
+                                  "A,", "B,", "C,", "D,", "E,", "F,", "G,", "H,", "I,", "J,", "K,", "L,", "M,", "N.", "O.", "P."
+                                 };
+        for (String symbol : bulletSymbols) {
+            if (trimmedLine.startsWith(symbol + " ")) {
+                return new ClassifiedLine(ClassifiedLine.Kind.BULLET, trimmedLine,
+                        trimmedLine.substring(symbol.length()).trim(), 0, null, false);
+            }
+        }
+
+        if (trimmedLine.startsWith("[formula]") && trimmedLine.endsWith("[/formula]")) {
+            return new ClassifiedLine(ClassifiedLine.Kind.BLOCK_FORMULA, trimmedLine, null, 0, null, false);
+        }
+        if (trimmedLine.isEmpty()) {
+            return new ClassifiedLine(ClassifiedLine.Kind.EMPTY, trimmedLine, null, 0, null, false);
+        }
+        String formattedLine = trimmedLine.replaceAll("\\*(.*?)\\*", "<b>$1</b>");
+        formattedLine = formattedLine.replaceAll("_(.*?)_", "<i>$1</i>");
+        boolean endsParagraph = trimmedLine.endsWith(".") || trimmedLine.endsWith("!") || trimmedLine.endsWith("?");
+        return new ClassifiedLine(ClassifiedLine.Kind.TEXT, trimmedLine, insertInlineFormula(formattedLine), 0, null,
+                endsParagraph);
+    }
+
+    private static ClassifiedLine detectHeadingLevel(String line) {
+        if (line.matches("^[A-Z ]{5,}$") && !line.matches(".*[.!?].*")) {
+            return new ClassifiedLine(ClassifiedLine.Kind.HEADING, line, line, 1, "chapter-1", false);
+        }
+        if (line.matches("^\\d+\\.\\d+\\s+.*")) {
+            return new ClassifiedLine(ClassifiedLine.Kind.HEADING, line, line.replaceFirst("^\\d+\\.\\d+\\s+", ""), 2,
+                    "sec-" + line.split("\\s+")[0].replace(".", "-"), false);
+        }
+        if (line.matches("^\\d+\\.\\d+\\.\\d+\\s+.*")) {
+            return new ClassifiedLine(ClassifiedLine.Kind.HEADING, line,
+                    line.replaceFirst("^\\d+\\.\\d+\\.\\d+\\s+", ""), 3,
+                    "sec-" + line.split("\\s+")[0].replace(".", "-"), false);
+        }
+        if (line.matches("^\\d+\\.\\d+\\.\\d+\\.\\d+\\s+.*")) {
+            return new ClassifiedLine(ClassifiedLine.Kind.HEADING, line,
+                    line.replaceFirst("^\\d+\\.\\d+\\.\\d+\\.\\d+\\s+", ""), 4,
+                    "sec-" + line.split("\\s+")[0].replace(".", "-"), false);
+        }
+        return null;
+    }
+
+    private static String insertInlineFormula(String line) {
+        StringBuilder result = new StringBuilder();
+        int start = 0;
+        while (true) {
+            int dollarStart = line.indexOf('$', start);
+            if (dollarStart == -1) {
+                result.append(line.substring(start));
+                break;
+            }
+            int dollarEnd = line.indexOf('$', dollarStart + 1);
+            if (dollarEnd == -1) {
+                result.append(line.substring(start));
+                break;
+            }
+            result.append(line, start, dollarStart);
+            String formula = line.substring(dollarStart + 1, dollarEnd);
+            result.append("<math display='inline' xmlns='http://www.w3.org/1998/Math/MathML'>")
+                  .append(formula)
+                  .append("</math>");
+            start = dollarEnd + 1;
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.demo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares {@link LineClassifier} with the original per-line rules on a mix
+ * of lines typical for a book page. Run it with the GC profiler to see the
+ * allocations per line; {@link LineClassifierTests} does that with
+ * {@code -Dperf=true}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineClassifierBenchmark {
+
+    // Mostly paragraph text, as in a real book, with a few headings, bullets and formulas
+    static final String[] PAGE_LINES = {
+            "CHAPTER ONE",
+            "1.1 Background",
+            "The quick brown fox jumps over the lazy dog while the",
+            "committee reviews the proposal for the second time this",
+            "year, noting that the budget has not changed.",
+            "Results are summarised in the table below and discussed in",
+            "detail in the following section of this chapter.",
+            "- first point to consider",
+            "- second point, with *emphasis*",
+            "a. an alphabetic item",
+            "The energy is given by $E = mc^2$ for a body at rest.",
+            "[formula]T = sqrt(a + b)[/formula]",
+            "1.1.1 Measurements",
+            "Each sample was measured three times and the mean value",
+            "was recorded, as is usual in this kind of experiment.",
+            "   Indented line with trailing spaces   ",
+    };
+
+    @Benchmark
+    public void legacy(Blackhole blackhole) {
+        for (String line : PAGE_LINES) {
+            blackhole.consume(LegacyLineClassifier.classify(line));
+        }
+    }
+
+    @Benchmark
+    public void classifier(Blackhole blackhole) {
+        for (String line : PAGE_LINES) {
+            blackhole.consume(LineClassifier.classify(line));
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Checks that {@link LineClassifier} classifies lines exactly like the
+ * original per-line rules, quirks included.
+ *
+ * The allocation benchmark only runs with {@code -Dperf=true}.
+ */
+class LineClassifierTests {
+
+    static final String[] SAMPLE_LINES = {
+            "INTRODUCTION", "TABLE OF CONTENTS", "TABLE 1 Results", "ABC", "  CHAPTER ONE  ", "HELLO.",
+            "1.1 Overview", "1.1.1 Details", "1.1.1.1 Fine print", "1.1.1.1.1 Too deep", "2.10   Spaced", "1.1",
+            "12.34x 5", "1.2 3.4 Nested",
+            "- dash item", "* star item", "-no space", "1. first", "10. tenth", "10, tenth", "1, first",
+            "a. alpha", "l. ell", "l, ell", "p, pee", "q. cue", "M, em", "N, en", "N. en", "P, pee", "P. pee",
+            "• bullet", "• •", "– en dash item", "café au lait.", "bad \uFFFD char",
+            "[formula]x = y[/formula]", "[formula] open", "text with *bold* and _italic_.",
+            "inline $a+b$ and $c$ done!", "unclosed $dollar", "Is this a question?", "plain line", "",
+            "   ", "\t tabbed\tline \t", "- ", "1. ", "x"
+    };
+
+    @Test
+    void matchesOriginalRulesOnSamples() {
+        for (String line : SAMPLE_LINES) {
+            assertSameClassification(line);
+        }
+    }
+
+    @Test
+    void matchesOriginalRulesOnRandomLines() {
+        Random random = new Random(42);
+        String alphabet = "ABCDEFNOPTabclmpq0123456789 .,!?*_$-[]/\t•é\uFFFD";
+        for (int i = 0; i < 20_000; i++) {
+            StringBuilder line = new StringBuilder();
+            int length = random.nextInt(12);
+            for (int j = 0; j < length; j++) {
+                line.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            assertSameClassification(line.toString());
+        }
+    }
+
+    @Test
+    void sanitizeReturnsSameInstanceForCleanLines() {
+        String line = "Nothing to remove here.";
+        assertSame(line, LineClassifier.sanitize(line));
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "perf", matches = "true")
+    void allocatesSeveralTimesLessThanOriginalRules() throws Exception {
+        Collection<RunResult> results = new Runner(new OptionsBuilder()
+                .include(LineClassifierBenchmark.class.getName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+
+        double legacyBytes = 0;
+        double classifierBytes = 0;
+        for (RunResult result : results) {
+            String benchmark = result.getParams().getBenchmark();
+            double bytesPerPage = allocatedBytesPerOperation(result.getSecondaryResults());
+            System.out.printf("%s: %.1f ns/page, %.0f bytes/page%n", benchmark,
+                    result.getPrimaryResult().getScore(), bytesPerPage);
+            if (benchmark.endsWith(".legacy")) {
+                legacyBytes = bytesPerPage;
+            } else {
+                classifierBytes = bytesPerPage;
+            }
+        }
+        assertTrue(classifierBytes * 3 < legacyBytes,
+                "expected at least 3x fewer allocated bytes, got " + classifierBytes + " vs " + legacyBytes);
+    }
+
+    private static double allocatedBytesPerOperation(Map<String, Result> secondaryResults) {
+        for (Map.Entry<String, Result> entry : secondaryResults.entrySet()) {
+            if (entry.getKey().endsWith("gc.alloc.rate.norm")) {
+                return entry.getValue().getScore();
+            }
+        }
+        throw new IllegalStateException("GC profiler reported no allocation rate");
+    }
+
+    private static void assertSameClassification(String line) {
+        ClassifiedLine expected = LegacyLineClassifier.classify(line);
+        ClassifiedLine actual = LineClassifier.classify(line);
+        assertEquals(describe(expected), describe(actual), "for line \"" + line + "\"");
+    }
+
+    private static List<Object> describe(ClassifiedLine line) {
+        List<Object> fields = new ArrayList<>();
+        fields.add(line.getKind());
+        fields.add(line.getText());
+        fields.add(line.getContent());
+        fields.add(line.getHeadingLevel());
+        fields.add(line.getHeadingId());
+        fields.add(line.endsParagraph());
+        return fields;
+    }
+}
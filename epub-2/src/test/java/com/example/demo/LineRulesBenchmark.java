@@ -0,0 +1,80 @@
+package com.example.demo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Times the single rules of {@link LineClassifier} per line, on the lines of
+ * {@link LineClassifierBenchmark}: heading detection, bullet detection, the
+ * bold and italic markup, and inline formulas. The lines are sanitized up
+ * front, as {@link LineClassifier#classify(String)} does before applying the
+ * rules.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineRulesBenchmark {
+
+    // The number of lines in LineClassifierBenchmark.PAGE_LINES; scores are per line
+    static final int LINES = 16;
+
+    private String[] lines;
+
+    @Setup
+    public void sanitize() {
+        if (LineClassifierBenchmark.PAGE_LINES.length != LINES) {
+            throw new IllegalStateException("LINES must match the sample page");
+        }
+        lines = new String[LINES];
+        for (int i = 0; i < LINES; i++) {
+            lines[i] = LineClassifier.sanitize(LineClassifierBenchmark.PAGE_LINES[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void headingLevel(Blackhole blackhole) {
+        for (String line : lines) {
+            blackhole.consume(LineClassifier.classifyHeading(line));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void bulletMarker(Blackhole blackhole) {
+        for (String line : lines) {
+            blackhole.consume(LineClassifier.bulletMarkerLength(line));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void formatText(Blackhole blackhole) {
+        for (String line : lines) {
+            blackhole.consume(LineClassifier.formatText(line));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void insertInlineFormula(Blackhole blackhole) {
+        for (String line : lines) {
+            blackhole.consume(LineClassifier.insertInlineFormula(line));
+        }
+    }
+}
@@ -0,0 +1,467 @@
+package com.example.demo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Replays a mix of small, medium and huge {@link SyntheticPdfGenerator}
+ * books against {@code POST /convert} of a running server, downloads every
+ * EPUB it gets back from {@code /download}, and writes a JSON report with
+ * latency percentiles, throughput, error rates and the server's heap
+ * high-water mark, for comparing one build with the next.
+ *
+ * Start the application, then run {@code mvn -P load verify} with any of
+ * the {@code load.*} system properties of {@link Settings}, for example
+ * {@code -Dload.concurrency=16 -Dload.requests=400}.
+ *
+ * The driver is closed-loop: each of {@code concurrency} clients sends its
+ * next conversion as soon as the previous download is done, so raising the
+ * concurrency until errors or 429s appear shows where the server falls
+ * over. Each upload gets a different PDF comment after its end marker, so
+ * the result cache never answers for an earlier upload of the same book.
+ * The heap is read from {@code /actuator/metrics} every
+ * {@code heapSampleMillis}, so a short peak between two samples is missed.
+ */
+public final class LoadDriver {
+
+    private static final Pattern DOWNLOAD_LINK = Pattern.compile("href=\"(/download\\?path=[^\"]+)\"");
+    private static final String BOUNDARY = "epub-load-driver-boundary";
+
+    private final Settings settings;
+    private final HttpClient client;
+    private final ObjectMapper json = new ObjectMapper();
+
+    // Latencies of the measured requests, per operation and document size
+    private final Map<String, Samples> samples = new ConcurrentHashMap<>();
+    private final AtomicLong heapHighWater = new AtomicLong(-1);
+
+    LoadDriver(Settings settings) {
+        this.settings = settings;
+        this.client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Settings settings = Settings.fromSystemProperties();
+        Map<String, Object> report = new LoadDriver(settings).run();
+        System.out.println(new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(report));
+        System.out.println("Report written to " + settings.report.toAbsolutePath());
+    }
+
+    /**
+     * Generates the books, runs the warm-up and the measured requests and
+     * writes the report.
+     *
+     * @return The report, as written to {@link Settings#report}.
+     */
+    Map<String, Object> run() throws Exception {
+        Path corpus = Files.createTempDirectory("epub-load");
+        try {
+            Path[] books = new Path[Size.values().length];
+            for (Size size : Size.values()) {
+                books[size.ordinal()] = corpus.resolve(size.tag + ".pdf");
+                new SyntheticPdfGenerator().pages(settings.pages[size.ordinal()]).seed(settings.seed + size.ordinal())
+                        .writeTo(books[size.ordinal()]);
+            }
+            List<Size> plan = plan(settings.warmup + settings.requests);
+            AtomicInteger uploads = new AtomicInteger();
+
+            drive(books, plan.subList(0, settings.warmup), uploads);
+            samples.clear();
+
+            long maxHeap = readHeap("jvm.memory.max");
+            heapHighWater.set(readHeap("jvm.memory.used"));
+            ScheduledExecutorService heapSampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "load-heap-sampler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            heapSampler.scheduleAtFixedRate(
+                    () -> heapHighWater.accumulateAndGet(readHeap("jvm.memory.used"), Math::max),
+                    0, settings.heapSampleMillis, TimeUnit.MILLISECONDS);
+            Instant started = Instant.now();
+            long start = System.nanoTime();
+            try {
+                drive(books, plan.subList(settings.warmup, plan.size()), uploads);
+            } finally {
+                heapSampler.shutdownNow();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            Map<String, Object> report = report(started, seconds, maxHeap);
+            if (settings.report.getParent() != null) {
+                Files.createDirectories(settings.report.getParent());
+            }
+            json.writerWithDefaultPrettyPrinter().writeValue(settings.report.toFile(), report);
+            return report;
+        } finally {
+            try (var files = Files.list(corpus)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(corpus);
+        }
+    }
+
+    // The sizes in request order, drawn by weight from the seed so two runs send the same sequence
+    private List<Size> plan(int requests) {
+        int total = Arrays.stream(settings.mix).sum();
+        Random random = new Random(settings.seed);
+        List<Size> plan = new ArrayList<>(requests);
+        for (int i = 0; i < requests; i++) {
+            int pick = random.nextInt(total);
+            int size = 0;
+            while (pick >= settings.mix[size]) {
+                pick -= settings.mix[size];
+                size++;
+            }
+            plan.add(Size.values()[size]);
+        }
+        return plan;
+    }
+
+    private void drive(Path[] books, List<Size> plan, AtomicInteger uploads) throws Exception {
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService clients = Executors.newFixedThreadPool(settings.concurrency);
+        try {
+            List<Future<?>> running = new ArrayList<>();
+            for (int client = 0; client < settings.concurrency; client++) {
+                running.add(clients.submit(() -> {
+                    for (int i = next.getAndIncrement(); i < plan.size(); i = next.getAndIncrement()) {
+                        Size size = plan.get(i);
+                        String download = convert(size, books[size.ordinal()], uploads.incrementAndGet());
+                        if (download != null) {
+                            download(size, download);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> client : running) {
+                client.get();
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    /**
+     * @return The download link from the result page, or null if the
+     *         conversion failed.
+     */
+    private String convert(Size size, Path book, int upload) {
+        byte[] head = ("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"" + size.tag + ".pdf\"\r\n"
+                + "Content-Type: application/pdf\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        // Readers ignore anything after %%EOF, but it changes the hash the result cache goes by
+        String unique = settings.uniqueUploads ? "\n% load upload " + upload + "\n" : "";
+        byte[] tail = (unique + "\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        long start = System.nanoTime();
+        try {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(settings.baseUrl + "/convert"))
+                    .timeout(settings.timeout)
+                    .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                    .POST(HttpRequest.BodyPublishers.concat(
+                            HttpRequest.BodyPublishers.ofByteArray(head),
+                            HttpRequest.BodyPublishers.ofFile(book),
+                            HttpRequest.BodyPublishers.ofByteArray(tail)))
+                    .build();
+            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            long nanos = System.nanoTime() - start;
+            if (response.statusCode() == 429) {
+                samples("convert", size).rejected();
+                return null;
+            }
+            // Failed conversions come back as the upload form with a message, still with 200
+            Matcher link = DOWNLOAD_LINK.matcher(response.body());
+            if (response.statusCode() != 200 || !link.find()) {
+                samples("convert", size).failed();
+                return null;
+            }
+            samples("convert", size).succeeded(nanos, 0);
+            return link.group(1).replace("&amp;", "&");
+        } catch (IOException | InterruptedException e) {
+            samples("convert", size).failed();
+            return null;
+        }
+    }
+
+    private void download(Size size, String link) {
+        long start = System.nanoTime();
+        try {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(settings.baseUrl + link))
+                    .timeout(settings.timeout)
+                    .GET()
+                    .build();
+            HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            long bytes;
+            try (InputStream body = response.body()) {
+                bytes = body.transferTo(OutputStream.nullOutputStream());
+            }
+            long nanos = System.nanoTime() - start;
+            if (response.statusCode() != 200 || bytes == 0) {
+                samples("download", size).failed();
+            } else {
+                samples("download", size).succeeded(nanos, bytes);
+            }
+        } catch (IOException | InterruptedException e) {
+            samples("download", size).failed();
+        }
+    }
+
+    // One of the JVM heap meters, summed over all heap pools; -1 if the server does not answer
+    private long readHeap(String meter) {
+        try {
+            HttpRequest request = HttpRequest.newBuilder(
+                            URI.create(settings.baseUrl + "/actuator/metrics/" + meter + "?tag=area:heap"))
+                    .timeout(Duration.ofSeconds(5))
+                    .GET()
+                    .build();
+            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                return -1;
+            }
+            JsonNode measurements = json.readTree(response.body()).path("measurements");
+            return measurements.isEmpty() ? -1 : measurements.get(0).path("value").asLong(-1);
+        } catch (IOException e) {
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    private Samples samples(String operation, Size size) {
+        return samples.computeIfAbsent(operation + "/" + size.tag, key -> new Samples());
+    }
+
+    private Map<String, Object> report(Instant started, double seconds, long maxHeap) {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("startedAt", started.toString());
+        report.put("baseUrl", settings.baseUrl);
+        report.put("settings", settings.describe());
+        report.put("durationSeconds", round(seconds));
+
+        Map<String, Object> operations = new LinkedHashMap<>();
+        long conversions = 0;
+        long requests = 0;
+        for (String operation : List.of("convert", "download")) {
+            Samples all = new Samples();
+            Map<String, Object> bySize = new LinkedHashMap<>();
+            for (Size size : Size.values()) {
+                Samples sized = samples.get(operation + "/" + size.tag);
+                if (sized != null) {
+                    all.add(sized);
+                    bySize.put(size.tag, sized.summary(seconds));
+                }
+            }
+            Map<String, Object> summary = all.summary(seconds);
+            summary.put("bySize", bySize);
+            operations.put(operation, summary);
+            requests += all.count();
+            if (operation.equals("convert")) {
+                conversions = all.succeeded.size();
+            }
+        }
+        report.put("throughput", Map.of(
+                "conversionsPerMinute", round(conversions / seconds * 60),
+                "requestsPerSecond", round(requests / seconds)));
+        report.put("operations", operations);
+
+        Map<String, Object> heap = new LinkedHashMap<>();
+        heap.put("highWaterBytes", heapHighWater.get());
+        heap.put("maxBytes", maxHeap);
+        heap.put("sampleMillis", settings.heapSampleMillis);
+        report.put("serverHeap", heap);
+        return report;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+
+    enum Size {
+        SMALL("small"), MEDIUM("medium"), HUGE("huge");
+
+        final String tag;
+
+        Size(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    /**
+     * The latencies of one kind of request. Percentiles are taken over the
+     * requests that succeeded; the error rate counts failures and 429s.
+     */
+    private static class Samples {
+        private final List<Long> succeeded = new ArrayList<>();
+        private long failed;
+        private long rejected;
+        private long bytes;
+
+        synchronized void succeeded(long nanos, long responseBytes) {
+            succeeded.add(nanos);
+            bytes += responseBytes;
+        }
+
+        synchronized void failed() {
+            failed++;
+        }
+
+        synchronized void rejected() {
+            rejected++;
+        }
+
+        synchronized void add(Samples other) {
+            synchronized (other) {
+                succeeded.addAll(other.succeeded);
+                failed += other.failed;
+                rejected += other.rejected;
+                bytes += other.bytes;
+            }
+        }
+
+        synchronized long count() {
+            return succeeded.size() + failed + rejected;
+        }
+
+        synchronized Map<String, Object> summary(double seconds) {
+            long[] sorted = succeeded.stream().mapToLong(Long::longValue).sorted().toArray();
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("requests", count());
+            summary.put("succeeded", sorted.length);
+            summary.put("failed", failed);
+            summary.put("rejected", rejected);
+            summary.put("errorRate", count() == 0 ? 0.0 : (failed + rejected) / (double) count());
+            summary.put("perSecond", round(sorted.length / seconds));
+            Map<String, Object> latency = new LinkedHashMap<>();
+            if (sorted.length > 0) {
+                latency.put("p50", millis(percentile(sorted, 50)));
+                latency.put("p95", millis(percentile(sorted, 95)));
+                latency.put("p99", millis(percentile(sorted, 99)));
+                latency.put("max", millis(sorted[sorted.length - 1]));
+                latency.put("mean", millis((long) Arrays.stream(sorted).average().orElse(0)));
+            }
+            summary.put("latencyMillis", latency);
+            if (bytes > 0) {
+                summary.put("responseBytes", bytes);
+            }
+            return summary;
+        }
+
+        // Nearest rank
+        private static long percentile(long[] sorted, int percent) {
+            int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+            return sorted[Math.max(rank, 1) - 1];
+        }
+
+        private static double millis(long nanos) {
+            return round(nanos / 1e6);
+        }
+    }
+
+    /**
+     * What to send and where. Every setting can be given as a system
+     * property named {@code load.<setting>}.
+     */
+    static final class Settings {
+        String baseUrl = "http://localhost:8088";
+        int concurrency = 4;
+        // Measured requests, after warmup requests whose timings are thrown away
+        int requests = 100;
+        int warmup = 10;
+        // Pages of the small, medium and huge books, and how often each is sent
+        int[] pages = {10, 200, 2000};
+        int[] mix = {70, 25, 5};
+        long seed = 1;
+        boolean uniqueUploads = true;
+        Duration timeout = Duration.ofMinutes(10);
+        long heapSampleMillis = 250;
+        Path report = Paths.get("target", "load-report.json");
+
+        static Settings fromSystemProperties() {
+            Settings settings = new Settings();
+            settings.baseUrl = System.getProperty("load.baseUrl", settings.baseUrl);
+            settings.concurrency = Integer.getInteger("load.concurrency", settings.concurrency);
+            settings.requests = Integer.getInteger("load.requests", settings.requests);
+            settings.warmup = Integer.getInteger("load.warmup", settings.warmup);
+            settings.pages = ints(System.getProperty("load.pages"), settings.pages);
+            settings.mix = ints(System.getProperty("load.mix"), settings.mix);
+            settings.seed = Long.getLong("load.seed", settings.seed);
+            settings.uniqueUploads = Boolean.parseBoolean(
+                    System.getProperty("load.uniqueUploads", String.valueOf(settings.uniqueUploads)));
+            settings.timeout = Duration.ofSeconds(Long.getLong("load.timeoutSeconds", settings.timeout.getSeconds()));
+            settings.heapSampleMillis = Long.getLong("load.heapSampleMillis", settings.heapSampleMillis);
+            settings.report = Paths.get(System.getProperty("load.report", settings.report.toString()));
+            return settings.check();
+        }
+
+        Settings check() {
+            if (concurrency < 1 || requests < 1 || warmup < 0 || heapSampleMillis < 1) {
+                throw new IllegalArgumentException("concurrency, requests and heapSampleMillis must be positive");
+            }
+            if (pages.length != Size.values().length || mix.length != Size.values().length) {
+                throw new IllegalArgumentException("pages and mix need one value each for small, medium and huge");
+            }
+            if (Arrays.stream(mix).anyMatch(weight -> weight < 0) || Arrays.stream(mix).sum() == 0) {
+                throw new IllegalArgumentException("mix needs non-negative weights, at least one of them positive");
+            }
+            return this;
+        }
+
+        Map<String, Object> describe() {
+            Map<String, Object> described = new LinkedHashMap<>();
+            described.put("concurrency", concurrency);
+            described.put("requests", requests);
+            described.put("warmup", warmup);
+            Map<String, Object> sizes = new LinkedHashMap<>();
+            for (Size size : Size.values()) {
+                sizes.put(size.tag, Map.of("pages", pages[size.ordinal()], "weight", mix[size.ordinal()]));
+            }
+            described.put("sizes", sizes);
+            described.put("seed", seed);
+            described.put("uniqueUploads", uniqueUploads);
+            return described;
+        }
+
+        private static int[] ints(String value, int[] defaults) {
+            if (value == null || value.isBlank()) {
+                return defaults;
+            }
+            return Arrays.stream(value.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+        }
+    }
+}
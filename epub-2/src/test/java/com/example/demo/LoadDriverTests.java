@@ -0,0 +1,61 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Runs a few rounds of {@link LoadDriver} against the application on a
+ * random port and checks the report it writes.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class LoadDriverTests {
+
+    @LocalServerPort
+    private int port;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void reportsLatencyThroughputAndHeap() throws Exception {
+        LoadDriver.Settings settings = new LoadDriver.Settings();
+        settings.baseUrl = "http://localhost:" + port;
+        settings.concurrency = 2;
+        settings.warmup = 1;
+        settings.requests = 6;
+        settings.pages = new int[] {2, 3, 4};
+        settings.mix = new int[] {1, 1, 1};
+        settings.heapSampleMillis = 50;
+        settings.report = tempDir.resolve("load-report.json");
+
+        new LoadDriver(settings.check()).run();
+
+        JsonNode report = new ObjectMapper().readTree(settings.report.toFile());
+        JsonNode convert = report.path("operations").path("convert");
+        assertEquals(6, convert.path("requests").asInt());
+        assertEquals(6, convert.path("succeeded").asInt());
+        assertEquals(0.0, convert.path("errorRate").asDouble());
+        JsonNode latency = convert.path("latencyMillis");
+        assertTrue(latency.path("p50").asDouble() > 0);
+        assertTrue(latency.path("p50").asDouble() <= latency.path("p95").asDouble());
+        assertTrue(latency.path("p95").asDouble() <= latency.path("p99").asDouble());
+
+        JsonNode download = report.path("operations").path("download");
+        assertEquals(6, download.path("succeeded").asInt());
+        assertTrue(download.path("responseBytes").asLong() > 0);
+
+        assertTrue(report.path("throughput").path("conversionsPerMinute").asDouble() > 0);
+        assertTrue(report.path("serverHeap").path("highWaterBytes").asLong() > 0);
+        assertTrue(report.path("serverHeap").path("maxBytes").asLong() > 0);
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Checks that splitting a document into parallel shards produces exactly the
+ * same EPUB as extracting it sequentially, including paragraphs, lists and
+ * sections that continue across shard boundaries, and the names of images
+ * shared by pages in different shards.
+ */
+class ParallelTextExtractorTests {
+
+    @TempDir
+    Path tempDir;
+
+    private Path book;
+    private Path illustrated;
+
+    @BeforeEach
+    void createPdfs() throws IOException {
+        book = Files.write(tempDir.resolve("book.pdf"), TestPdfs.createBook(60));
+        // The logo is on every page, photos and diagrams on some
+        illustrated = tempDir.resolve("illustrated.pdf");
+        new SyntheticPdfGenerator().pages(40).seed(3).writeTo(illustrated);
+    }
+
+    @Test
+    void shardedOutputIsIdenticalToSequential() throws Exception {
+        assertShardedMatchesSequential(book);
+    }
+
+    @Test
+    void shardedImagesAreIdenticalToSequential() throws Exception {
+        // Whichever shard meets the logo first, it is named after the first page
+        assertShardedMatchesSequential(illustrated);
+    }
+
+    @Test
+    void failingSinkStopsWorkersWithinLookAhead() throws Exception {
+        ConversionMetrics metrics = new ConversionMetrics(new SimpleMeterRegistry());
+        PdfLoader pdfLoader = new PdfLoader(PdfLoader.Mode.MIXED, 64, "");
+        ParallelTextExtractor extractor = new ParallelTextExtractor(pdfLoader, new CpuBudget(0), metrics, 2, 3);
+        AtomicInteger extracted = new AtomicInteger();
+        AtomicInteger released = new AtomicInteger();
+        ParallelTextExtractor.ImageExtractor images = new ParallelTextExtractor.ImageExtractor() {
+            @Override
+            public List<String> extract(PDDocument document, int pageIndex) {
+                extracted.incrementAndGet();
+                return List.of();
+            }
+
+            @Override
+            public void release(PDDocument document) {
+                released.incrementAndGet();
+            }
+        };
+
+        try (PDDocument document = pdfLoader.load(book.toFile())) {
+            IOException e = assertThrows(IOException.class, () -> extractor.extract(document, book.toFile(), false,
+                    images, page -> {
+                        throw new IOException("sink failed");
+                    }));
+            assertEquals("sink failed", e.getMessage());
+        } finally {
+            extractor.stopExecutor();
+        }
+        // The workers are done when extract returns: two shards of 3 pages each at most, and their copies released
+        int pages = extracted.get();
+        assertTrue(pages <= 2 * 2 * 3, pages + " pages extracted");
+        assertTrue(released.get() >= 1 && released.get() <= 2, released.get() + " documents released");
+        Thread.sleep(100);
+        assertEquals(pages, extracted.get());
+    }
+
+    private void assertShardedMatchesSequential(Path pdf) throws Exception {
+        Map<String, byte[]> sequential = convert(pdf, 1, 25);
+        // Shards of 3 and 7 pages split paragraphs, lists and sections in different places
+        for (int shardPages : new int[] {3, 7}) {
+            Map<String, byte[]> sharded = convert(pdf, 4, shardPages);
+            assertEquals(sequential.keySet(), sharded.keySet());
+            for (Map.Entry<String, byte[]> entry : sequential.entrySet()) {
+                assertArrayEquals(entry.getValue(), sharded.get(entry.getKey()),
+                        entry.getKey() + " differs with " + shardPages + " pages per shard");
+            }
+        }
+    }
+
+    private Map<String, byte[]> convert(Path pdf, int workers, int shardPages) throws Exception {
+        TestServices services = new TestServices().extraction(workers, shardPages);
+        Service11 service = services.service11(tempDir.resolve("results"));
+
+        File pdfFile = pdf.toFile();
+        Path epub = Paths.get(service.createEpubFromPdf(pdfFile, ConversionProgressListener.NONE));
+        Map<String, byte[]> entries = new TreeMap<>();
+        try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(epub))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                entries.put(entry.getName(), zip.readAllBytes());
+            }
+        } finally {
+            Files.deleteIfExists(epub);
+            services.stop();
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Checks the layout of the result store, its quota, time to live and
+ * restart, and the cleanup of staging directories.
+ */
+class ResultStoreTests {
+
+    private static final int MB = 1024 * 1024;
+
+    @TempDir
+    Path tempDir;
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final List<ResultStore> stores = new ArrayList<>();
+
+    @AfterEach
+    void stopStores() {
+        stores.forEach(ResultStore::stopCleaner);
+    }
+
+    @Test
+    void storesResultsInShards() throws Exception {
+        ResultStore store = newStore(10, 0);
+        Path stored = store.put("ab12cd", epub(1000));
+
+        assertEquals(store.getRoot().resolve("ab").resolve("ab12cd.epub"), stored);
+        assertEquals(stored, store.get("ab12cd"));
+        assertNull(store.get("ab99ff"));
+        assertEquals(1000, store.getTotalBytes());
+        assertEquals(1000.0, registry.get("epub.results.size").gauge().value());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedResultsOverQuota() throws Exception {
+        ResultStore store = newStore(1, 0);
+        Path a = store.put("aa", epub(400 * 1024));
+        Path b = store.put("bb", epub(400 * 1024));
+        // Using a makes b the eldest result
+        store.get("aa");
+        store.put("cc", epub(400 * 1024));
+
+        assertTrue(Files.exists(a));
+        assertFalse(Files.exists(b));
+        assertEquals(2, store.getEntryCount());
+        assertEquals(1.0, registry.get("epub.results.evictions").tag("reason", "quota").counter().count());
+        assertTrue(store.getTotalBytes() <= MB);
+    }
+
+    @Test
+    void keepsNewResultLargerThanQuota() throws Exception {
+        ResultStore store = newStore(1, 0);
+        Path small = store.put("aa", epub(1000));
+        Path large = store.put("bb", epub(2 * MB));
+
+        assertFalse(Files.exists(small));
+        assertTrue(Files.exists(large));
+        assertEquals(1, store.getEntryCount());
+    }
+
+    @Test
+    void expiresResultsNotUsedWithinTimeToLive() throws Exception {
+        Path old = newStore(10, 60).put("aa", epub(100));
+        long now = System.currentTimeMillis();
+        // The last use survives a restart in the access time
+        Files.getFileAttributeView(old, BasicFileAttributeView.class)
+                .setTimes(null, FileTime.fromMillis(now - TimeUnit.MINUTES.toMillis(45)), null);
+
+        ResultStore store = newStore(10, 60);
+        Path recent = store.put("bb", epub(100));
+        store.sweep(now);
+        assertTrue(Files.exists(old));
+
+        store.sweep(now + TimeUnit.MINUTES.toMillis(30));
+        assertFalse(Files.exists(old));
+        assertTrue(Files.exists(recent));
+        assertEquals(1.0, registry.get("epub.results.evictions").tag("reason", "ttl").counter().count());
+    }
+
+    @Test
+    void reloadsIndexAtStartup() throws Exception {
+        ResultStore store = newStore(10, 0);
+        Path stored = store.put("ab12cd", epub(1000));
+        store.stopCleaner();
+
+        ResultStore restarted = newStore(10, 0);
+        assertEquals(1, restarted.getEntryCount());
+        assertEquals(1000, restarted.getTotalBytes());
+        assertEquals(stored, restarted.get("ab12cd"));
+    }
+
+    @Test
+    void deletesStagingDirectoriesInBackground() throws Exception {
+        ResultStore store = newStore(10, 0);
+        Path staging = store.createStagingDirectory();
+        assertTrue(staging.startsWith(store.getRoot().resolve("staging")));
+        Files.createDirectories(staging.resolve("OEBPS/images"));
+        Files.write(staging.resolve("OEBPS/images/pg1.jpg"), new byte[100]);
+
+        store.deleteLater(staging);
+        awaitDeleted(staging);
+        assertFalse(Files.exists(staging));
+    }
+
+    @Test
+    void deletesStagingLeftoversAtStartup() throws Exception {
+        Path leftover = tempDir.resolve("results/staging/epub123");
+        Files.createDirectories(leftover);
+        Files.write(leftover.resolve("content.opf"), new byte[10]);
+        Files.setLastModifiedTime(leftover, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+
+        newStore(10, 0);
+        awaitDeleted(leftover);
+        assertFalse(Files.exists(leftover));
+    }
+
+    @Test
+    void sweepKeepsStagingDirectoriesOfRunningConversions() throws Exception {
+        ResultStore store = newStore(10, 60);
+        Path running = store.createStagingDirectory();
+        Path epub = Files.write(running.resolveSibling(running.getFileName() + ".epub"), new byte[10]);
+        Path abandoned = Files.createDirectories(tempDir.resolve("results/staging/epub123"));
+
+        store.sweep(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(90));
+        assertTrue(Files.exists(running));
+        assertTrue(Files.exists(epub));
+        assertFalse(Files.exists(abandoned));
+
+        store.deleteLater(running);
+        awaitDeleted(running);
+        Path finished = store.createStagingDirectory();
+        store.sweep(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(90));
+        assertFalse(Files.exists(epub));
+        assertTrue(Files.exists(finished));
+    }
+
+    private ResultStore newStore(long maxSizeMb, long ttlMinutes) throws IOException {
+        ResultStore store = new ResultStore(registry, tempDir.resolve("results").toString(), maxSizeMb, ttlMinutes, 0);
+        stores.add(store);
+        return store;
+    }
+
+    private Path epub(int size) throws IOException {
+        Path epub = Files.createTempFile(tempDir, "book", ".epub");
+        Files.write(epub, new byte[size]);
+        return epub;
+    }
+
+    private static void awaitDeleted(Path path) throws InterruptedException {
+        for (int attempt = 0; attempt < 100 && Files.exists(path); attempt++) {
+            Thread.sleep(50);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+
+/**
+ * Runs many conversions through a single {@link Service11} instance at once and
+ * checks that every EPUB only contains its own document's text and images.
+ */
+class Service11ConcurrencyTests {
+
+    private static final int DOCUMENTS = 8;
+    private static final int ROUNDS = 3;
+    private static final int PAGES = 3;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void concurrentConversionsDoNotCrossContaminate() throws Exception {
+        // One page per shard, so every conversion also runs the parallel extraction path
+        TestServices services = new TestServices().extraction(2, 1);
+        Service11 service = services.service11(tempDir.resolve("results"));
+        List<byte[]> pdfs = new ArrayList<>();
+        for (int doc = 0; doc < DOCUMENTS; doc++) {
+            pdfs.add(TestPdfs.create(marker(doc), PAGES, doc));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(DOCUMENTS);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<String>> results = new ArrayList<>();
+                for (int doc = 0; doc < DOCUMENTS; doc++) {
+                    MockMultipartFile file = new MockMultipartFile("file", "doc" + doc + ".pdf",
+                            "application/pdf", pdfs.get(doc));
+                    results.add(executor.submit(() -> {
+                        start.await();
+                        return service.createEpubFromPdf(file);
+                    }));
+                }
+                start.countDown();
+
+                for (int doc = 0; doc < DOCUMENTS; doc++) {
+                    String epubPath = results.get(doc).get();
+                    try {
+                        assertOnlyContains(doc, epubPath);
+                    } finally {
+                        Files.deleteIfExists(Paths.get(epubPath));
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            services.stop();
+        }
+    }
+
+    private void assertOnlyContains(int doc, String epubPath) throws IOException {
+        String xhtml = null;
+        int images = 0;
+        try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(Paths.get(epubPath)))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (entry.getName().equals("OEBPS/xhtml/output.xhtml")) {
+                    xhtml = new String(zip.readAllBytes(), StandardCharsets.UTF_8);
+                } else if (entry.getName().startsWith("OEBPS/images/") && !entry.isDirectory()) {
+                    images++;
+                }
+            }
+        }
+
+        assertTrue(xhtml != null, "output.xhtml missing from " + epubPath);
+        for (int other = 0; other < DOCUMENTS; other++) {
+            String marker = marker(other);
+            if (other == doc) {
+                assertTrue(xhtml.contains(marker), "missing own marker " + marker);
+            } else {
+                assertFalse(xhtml.contains(marker), "found foreign marker " + marker + " in document " + doc);
+            }
+        }
+        assertEquals(PAGES, images, "unexpected image count for document " + doc);
+    }
+
+    private static String marker(int doc) {
+        return "marker" + doc + "x";
+    }
+}
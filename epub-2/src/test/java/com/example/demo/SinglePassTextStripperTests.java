@@ -0,0 +1,95 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+/**
+ * Checks that {@link SinglePassTextStripper} delivers the same lines as
+ * extracting every page on its own.
+ *
+ * The benchmark only runs with {@code -Dperf=true}.
+ */
+class SinglePassTextStripperTests {
+
+    @Test
+    void deliversSameLinesAsPerPageExtraction() throws Exception {
+        try (PDDocument document = PDDocument.load(TestPdfs.createBook(30))) {
+            assertEquals(perPageLines(document), singlePassLines(document));
+        }
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "perf", matches = "true")
+    void singlePassIsFasterOnLargeDocuments() throws Exception {
+        try (PDDocument document = PDDocument.load(TestPdfs.createBook(1000))) {
+            // Warm up both paths once
+            perPageLines(document);
+            singlePassLines(document);
+
+            long start = System.nanoTime();
+            List<List<String>> expected = perPageLines(document);
+            long perPageMillis = (System.nanoTime() - start) / 1_000_000;
+
+            start = System.nanoTime();
+            List<List<String>> actual = singlePassLines(document);
+            long singlePassMillis = (System.nanoTime() - start) / 1_000_000;
+
+            assertEquals(expected, actual);
+            assertTrue(singlePassMillis < perPageMillis,
+                    String.format("1000 pages: per-page getText %d ms, single pass %d ms",
+                            perPageMillis, singlePassMillis));
+        }
+    }
+
+    private static List<List<String>> perPageLines(PDDocument document) throws IOException {
+        PDFTextStripper textStripper = new PDFTextStripper();
+        textStripper.setSortByPosition(true);
+        List<List<String>> pages = new ArrayList<>();
+        for (int pageIndex = 0; pageIndex < document.getNumberOfPages(); pageIndex++) {
+            textStripper.setStartPage(pageIndex + 1);
+            textStripper.setEndPage(pageIndex + 1);
+            String pageText = textStripper.getText(document);
+            List<String> lines = new ArrayList<>(Arrays.asList(pageText.split("\\r?\\n")));
+            // "".split(...) yields one empty line for a page without text
+            if (lines.size() == 1 && lines.get(0).isEmpty()) {
+                lines.clear();
+            }
+            pages.add(lines);
+        }
+        return pages;
+    }
+
+    private static List<List<String>> singlePassLines(PDDocument document) throws IOException {
+        List<List<String>> pages = new ArrayList<>();
+        SinglePassTextStripper textStripper = new SinglePassTextStripper(new SinglePassTextStripper.PageListener() {
+            @Override
+            public void startPage(int pageNumber) {
+                assertEquals(pages.size() + 1, pageNumber);
+                pages.add(new ArrayList<>());
+            }
+
+            @Override
+            public void line(String line) {
+                pages.get(pages.size() - 1).add(line);
+            }
+
+            @Override
+            public void endPage(int pageNumber) {
+                assertEquals(pages.size(), pageNumber);
+            }
+        }, new CpuBudget(0));
+        textStripper.setSortByPosition(true);
+        textStripper.process(document);
+        return pages;
+    }
+}
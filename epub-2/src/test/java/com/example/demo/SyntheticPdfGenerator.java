@@ -0,0 +1,339 @@
+package com.example.demo;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+/**
+ * Generates book-like PDFs of any length for benchmarks, load tests and
+ * unit tests, so no real documents have to be checked in.
+ *
+ * The text uses every construct the converter recognises: chapter titles in
+ * capitals, numbered sections and subsections, paragraphs spread over
+ * several lines with bold, italic and inline formula markup, bullet lists
+ * with each kind of marker, {@code [formula]} lines and {@code TABLE}
+ * blocks. Every page carries the same logo, stored once in the PDF as
+ * production documents do; some pages add a JPEG photograph or a
+ * Flate-compressed diagram.
+ *
+ * The output depends only on the settings and the seed, byte for byte.
+ * Large documents are best written with {@link #writeTo(Path)}, which keeps
+ * PDFBox's scratch data in a temp file.
+ */
+final class SyntheticPdfGenerator {
+
+    private static final String[] WORDS = {
+            "the", "result", "of", "each", "sample", "was", "measured", "and", "compared", "with",
+            "previous", "values", "in", "this", "section", "we", "describe", "how", "a", "model",
+            "is", "built", "from", "data", "that", "were", "collected", "over", "several", "years",
+            "while", "committee", "reviewed", "proposal", "budget", "remained", "unchanged", "for",
+            "second", "time", "analysis", "shows", "clear", "trend", "towards", "higher", "output",
+            "under", "normal", "conditions", "experiment", "repeated", "three", "times", "mean", "recorded",
+    };
+    private static final String[] NUMBER_WORDS = {
+            "ONE", "TWO", "THREE", "FOUR", "FIVE", "SIX", "SEVEN", "EIGHT", "NINE", "TEN",
+    };
+    private static final String[] TITLE_WORDS = {
+            "Background", "Methods", "Results", "Discussion", "Measurements", "Design", "Limits", "Outlook",
+    };
+    private static final String[] BULLET_MARKERS = {"- ", "* ", "a. ", "1. "};
+
+    private static final float TOP = 700;
+    private static final float LEADING = 14;
+    private static final int LINES_PER_PAGE = 40;
+
+    private int pages = 10;
+    private long seed = 1;
+    private int photoEvery = 5;
+    private int diagramEvery = 7;
+    private boolean logo = true;
+
+    /**
+     * @param pages The number of pages, at least 1.
+     */
+    SyntheticPdfGenerator pages(int pages) {
+        if (pages < 1) {
+            throw new IllegalArgumentException("A PDF needs at least one page");
+        }
+        this.pages = pages;
+        return this;
+    }
+
+    SyntheticPdfGenerator seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * @param photoEvery Put a JPEG photograph on every n-th page; 0 for none.
+     */
+    SyntheticPdfGenerator photoEvery(int photoEvery) {
+        this.photoEvery = photoEvery;
+        return this;
+    }
+
+    /**
+     * @param diagramEvery Put a Flate-compressed diagram on every n-th page; 0 for none.
+     */
+    SyntheticPdfGenerator diagramEvery(int diagramEvery) {
+        this.diagramEvery = diagramEvery;
+        return this;
+    }
+
+    /**
+     * @param logo Whether every page carries the same logo image.
+     */
+    SyntheticPdfGenerator logo(boolean logo) {
+        this.logo = logo;
+        return this;
+    }
+
+    byte[] generate() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, MemoryUsageSetting.setupMainMemoryOnly());
+        return out.toByteArray();
+    }
+
+    void writeTo(Path file) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            write(out, MemoryUsageSetting.setupTempFileOnly());
+        }
+    }
+
+    private void write(OutputStream out, MemoryUsageSetting memoryUsage) throws IOException {
+        Random random = new Random(seed);
+        try (PDDocument document = new PDDocument(memoryUsage)) {
+            // One image object, referenced from every page
+            PDImageXObject logoImage = logo ? LosslessFactory.createFromImage(document, drawLogo()) : null;
+            TextSource text = new TextSource(random);
+            for (int pageNo = 1; pageNo <= pages; pageNo++) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    writeLines(content, text.nextPage());
+                    if (logoImage != null) {
+                        content.drawImage(logoImage, 480, 740, 64, 32);
+                    }
+                    if (photoEvery > 0 && pageNo % photoEvery == 0) {
+                        content.drawImage(JPEGFactory.createFromImage(document, drawPhoto(random), 0.8f), 72, 60, 160, 120);
+                    }
+                    if (diagramEvery > 0 && pageNo % diagramEvery == 0) {
+                        content.drawImage(LosslessFactory.createFromImage(document, drawDiagram(random)), 300, 60, 120, 90);
+                    }
+                }
+            }
+            // PDFBox would otherwise derive the file identifier from the current time
+            byte[] id = new byte[16];
+            new Random(seed).nextBytes(id);
+            COSArray documentId = new COSArray();
+            documentId.add(new COSString(id));
+            documentId.add(new COSString(id));
+            document.getDocument().setDocumentID(documentId);
+            document.save(out);
+        }
+    }
+
+    private static void writeLines(PDPageContentStream content, List<String> lines) throws IOException {
+        content.beginText();
+        content.setFont(PDType1Font.HELVETICA, 11);
+        content.setLeading(LEADING);
+        content.newLineAtOffset(72, TOP);
+        for (String line : lines) {
+            if (!line.isEmpty()) {
+                content.showText(line);
+            }
+            content.newLine();
+        }
+        content.endText();
+    }
+
+    private static BufferedImage drawLogo() {
+        BufferedImage image = new BufferedImage(64, 32, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 64, 32);
+        g.setColor(new Color(20, 60, 140));
+        g.fillOval(4, 4, 24, 24);
+        g.fillRect(34, 10, 26, 12);
+        g.dispose();
+        return image;
+    }
+
+    // Smooth gradients with noise, which is what JPEG is chosen for
+    private static BufferedImage drawPhoto(Random random) {
+        BufferedImage image = new BufferedImage(320, 240, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(random.nextInt(0xFFFFFF)),
+                320, 240, new Color(random.nextInt(0xFFFFFF))));
+        g.fillRect(0, 0, 320, 240);
+        g.dispose();
+        for (int i = 0; i < 2000; i++) {
+            image.setRGB(random.nextInt(320), random.nextInt(240), random.nextInt(0xFFFFFF));
+        }
+        return image;
+    }
+
+    // A few lines on white, which is what PNG is chosen for
+    private static BufferedImage drawDiagram(Random random) {
+        BufferedImage image = new BufferedImage(240, 180, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 240, 180);
+        g.setColor(Color.BLACK);
+        g.setStroke(new BasicStroke(2));
+        g.drawLine(20, 160, 220, 160);
+        g.drawLine(20, 160, 20, 20);
+        int x = 20;
+        int y = 160 - random.nextInt(140);
+        for (int step = 0; step < 8; step++) {
+            int nextX = x + 25;
+            int nextY = 160 - random.nextInt(140);
+            g.drawLine(x, y, nextX, nextY);
+            x = nextX;
+            y = nextY;
+        }
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * Produces the lines of the book in order, a page at a time. A table
+     * always ends its section, since the converter treats every line after
+     * TABLE as a row until the next heading.
+     */
+    private static class TextSource {
+        private final Random random;
+        private final List<String> pending = new ArrayList<>();
+        private int chapter;
+        private int section;
+        private int subsection;
+        private int table;
+        private int pagesSinceChapter;
+
+        TextSource(Random random) {
+            this.random = random;
+        }
+
+        List<String> nextPage() {
+            if (chapter == 0 || pagesSinceChapter >= 20 + random.nextInt(10)) {
+                // Chapters start on a new page
+                pending.clear();
+                startChapter();
+            }
+            pagesSinceChapter++;
+            while (pending.size() < LINES_PER_PAGE) {
+                addSection();
+            }
+            List<String> page = new ArrayList<>(pending.subList(0, LINES_PER_PAGE));
+            pending.subList(0, LINES_PER_PAGE).clear();
+            return page;
+        }
+
+        private void startChapter() {
+            chapter++;
+            section = 0;
+            pagesSinceChapter = 0;
+            pending.add("CHAPTER " + NUMBER_WORDS[(chapter - 1) % NUMBER_WORDS.length]
+                    + (chapter > NUMBER_WORDS.length ? " PART " + NUMBER_WORDS[(chapter - 1) / NUMBER_WORDS.length % NUMBER_WORDS.length] : ""));
+            pending.add("");
+        }
+
+        private void addSection() {
+            section++;
+            subsection = 0;
+            pending.add(chapter + "." + section + " " + title());
+            int blocks = 2 + random.nextInt(4);
+            for (int block = 0; block < blocks; block++) {
+                int kind = random.nextInt(10);
+                if (kind < 5) {
+                    addParagraph();
+                } else if (kind < 7) {
+                    addBullets();
+                } else if (kind < 8) {
+                    pending.add("[formula]" + word() + " = (" + word() + " + " + random.nextInt(100) + ") / 2[/formula]");
+                } else {
+                    subsection++;
+                    pending.add(chapter + "." + section + "." + subsection + " " + title());
+                    addParagraph();
+                }
+            }
+            if (random.nextInt(4) == 0) {
+                addTable();
+            }
+        }
+
+        private void addParagraph() {
+            int lines = 2 + random.nextInt(5);
+            for (int line = 0; line < lines; line++) {
+                StringBuilder text = new StringBuilder(word());
+                int words = 8 + random.nextInt(6);
+                for (int w = 1; w < words; w++) {
+                    text.append(' ');
+                    int markup = random.nextInt(40);
+                    if (markup == 0) {
+                        text.append('*').append(word()).append('*');
+                    } else if (markup == 1) {
+                        text.append('_').append(word()).append('_');
+                    } else if (markup == 2) {
+                        text.append("$x^").append(1 + random.nextInt(3)).append(" + y$");
+                    } else {
+                        text.append(word());
+                    }
+                }
+                if (line == lines - 1) {
+                    text.append('.');
+                }
+                pending.add(text.toString());
+            }
+            pending.add("");
+        }
+
+        private void addBullets() {
+            String marker = BULLET_MARKERS[random.nextInt(BULLET_MARKERS.length)];
+            int items = 2 + random.nextInt(4);
+            for (int item = 0; item < items; item++) {
+                pending.add(marker + word() + " " + word() + " " + word());
+            }
+            pending.add("");
+        }
+
+        private void addTable() {
+            table++;
+            pending.add("TABLE " + table);
+            int rows = 3 + random.nextInt(3);
+            for (int row = 0; row < rows; row++) {
+                pending.add("Sample" + (row + 1) + " " + random.nextInt(1000) / 10.0 + " "
+                        + random.nextInt(1000) / 10.0 + " " + random.nextInt(1000) / 10.0);
+            }
+        }
+
+        private String title() {
+            return TITLE_WORDS[random.nextInt(TITLE_WORDS.length)] + " of " + word();
+        }
+
+        private String word() {
+            return WORDS[random.nextInt(WORDS.length)];
+        }
+    }
+}
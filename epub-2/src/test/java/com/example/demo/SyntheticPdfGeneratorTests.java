@@ -0,0 +1,102 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that the generated PDFs are reproducible and contain every line
+ * kind and image kind the converter handles.
+ */
+class SyntheticPdfGeneratorTests {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void sameSeedGivesSameBytes() throws Exception {
+        byte[] first = new SyntheticPdfGenerator().pages(12).seed(7).generate();
+        byte[] second = new SyntheticPdfGenerator().pages(12).seed(7).generate();
+        byte[] otherSeed = new SyntheticPdfGenerator().pages(12).seed(8).generate();
+
+        assertArrayEquals(first, second);
+        assertFalse(Arrays.equals(first, otherSeed));
+
+        Path written = tempDir.resolve("book.pdf");
+        new SyntheticPdfGenerator().pages(12).seed(7).writeTo(written);
+        assertArrayEquals(first, Files.readAllBytes(written));
+    }
+
+    @Test
+    void containsEveryLineKind() throws Exception {
+        try (PDDocument document = PDDocument.load(new SyntheticPdfGenerator().pages(10).generate())) {
+            assertEquals(10, document.getNumberOfPages());
+
+            Set<ClassifiedLine.Kind> kinds = EnumSet.noneOf(ClassifiedLine.Kind.class);
+            Set<Integer> headingLevels = new HashSet<>();
+            boolean markup = false;
+            for (String line : new PDFTextStripper().getText(document).split("\\r?\\n")) {
+                ClassifiedLine classified = LineClassifier.classify(line);
+                kinds.add(classified.getKind());
+                if (classified.getKind() == ClassifiedLine.Kind.HEADING) {
+                    headingLevels.add(classified.getHeadingLevel());
+                }
+                markup |= classified.getKind() == ClassifiedLine.Kind.TEXT
+                        && !classified.getContent().equals(classified.getText());
+            }
+            // Text extraction drops blank lines, so there are no EMPTY lines to see
+            assertEquals(EnumSet.complementOf(EnumSet.of(ClassifiedLine.Kind.EMPTY)), kinds);
+            assertEquals(Set.of(1, 2, 3), headingLevels);
+            assertTrue(markup, "expected bold, italic or inline formula markup");
+        }
+    }
+
+    @Test
+    void sharesLogoAndMixesJpegAndFlateImages() throws Exception {
+        try (PDDocument document = PDDocument.load(new SyntheticPdfGenerator().pages(14).generate())) {
+            Set<Long> logoObjects = new HashSet<>();
+            int jpeg = 0;
+            int flate = 0;
+            for (PDPage page : document.getPages()) {
+                COSDictionary xobjects = (COSDictionary) page.getResources().getCOSObject()
+                        .getDictionaryObject(COSName.XOBJECT);
+                for (COSName name : xobjects.keySet()) {
+                    COSBase item = xobjects.getItem(name);
+                    PDImageXObject image = (PDImageXObject) page.getResources().getXObject(name);
+                    List<COSName> filters = image.getStream().getFilters();
+                    if (image.getWidth() == 64 && image.getHeight() == 32) {
+                        logoObjects.add(((COSObject) item).getObjectNumber());
+                    } else if (filters.contains(COSName.DCT_DECODE)) {
+                        jpeg++;
+                    } else if (filters.contains(COSName.FLATE_DECODE)) {
+                        flate++;
+                    }
+                }
+            }
+            assertEquals(1, logoObjects.size());
+            // Photographs on every fifth page, diagrams on every seventh
+            assertEquals(2, jpeg);
+            assertEquals(2, flate);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.demo;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+/**
+ * Builds small PDFs for tests: one line of text and one image per page, or
+ * several lines of book-like text per page.
+ */
+final class TestPdfs {
+
+    private TestPdfs() {
+    }
+
+    static byte[] create(String text, int pages, int seed) throws IOException {
+        try (PDDocument document = new PDDocument()) {
+            for (int pageNo = 0; pageNo < pages; pageNo++) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+
+                BufferedImage image = new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB);
+                Graphics2D g = image.createGraphics();
+                g.setColor(new Color((seed * 30) % 256, (pageNo * 60) % 256, 90));
+                g.fillRect(0, 0, 32, 32);
+                g.dispose();
+                PDImageXObject xObject = LosslessFactory.createFromImage(document, image);
+
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 12);
+                    content.newLineAtOffset(72, 700);
+                    content.showText("Body text " + text + " on page " + pageNo + ".");
+                    content.endText();
+                    content.drawImage(xObject, 72, 500);
+                }
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            document.save(out);
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Creates a document with headings, numbered sections, bullets and
+     * paragraphs spread over several lines. Every seventh page has no content
+     * stream at all, only an empty resource dictionary.
+     */
+    static byte[] createBook(int pages) throws IOException {
+        try (PDDocument document = new PDDocument()) {
+            for (int pageNo = 0; pageNo < pages; pageNo++) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                if (pageNo % 7 == 6) {
+                    page.setResources(new PDResources());
+                    continue;
+                }
+
+                String[] lines = {
+                        pageNo % 10 == 0 ? "CHAPTER " + toLetters(pageNo / 10) : (pageNo % 10) + ".1 Section on page " + pageNo,
+                        "This paragraph starts on page " + pageNo,
+                        "and continues on a second line.",
+                        "",
+                        "- first point",
+                        "- second point",
+                        "Text that runs on to the next page"
+                };
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 12);
+                    content.setLeading(14);
+                    content.newLineAtOffset(72, 700);
+                    for (String line : lines) {
+                        if (!line.isEmpty()) {
+                            content.showText(line);
+                        }
+                        content.newLine();
+                        if (line.isEmpty()) {
+                            content.newLine();
+                        }
+                    }
+                    content.endText();
+                }
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            document.save(out);
+            return out.toByteArray();
+        }
+    }
+
+    private static String toLetters(int number) {
+        StringBuilder letters = new StringBuilder();
+        do {
+            letters.append((char) ('A' + number % 26));
+            number /= 26;
+        } while (number > 0);
+        return letters.toString();
+    }
+}
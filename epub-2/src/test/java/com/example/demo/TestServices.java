@@ -0,0 +1,116 @@
+package com.example.demo;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Wires a {@link Service11} and the components it depends on by hand, for
+ * tests and benchmarks that run conversions without a Spring context.
+ *
+ * The settings default to the application's own, except that text is
+ * extracted sequentially and the image stage has two workers. Change them
+ * before calling {@link #service11(Path)}; the components built for the
+ * service stay available from the getters afterwards.
+ */
+final class TestServices {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private int cpuPermits;
+    private int extractionWorkers = 1;
+    private int shardPages = 25;
+    private int imageWorkers = 2;
+    private int imageQueueDepth = 8;
+    private boolean directPackaging = true;
+
+    private ImageEncodingStage imageStage;
+    private ParallelTextExtractor textExtractor;
+    private ResultStore resultStore;
+
+    /**
+     * @param cpuPermits The CPU permits shared by the conversion stages; 0 for one per core.
+     */
+    TestServices cpuPermits(int cpuPermits) {
+        this.cpuPermits = cpuPermits;
+        return this;
+    }
+
+    /**
+     * @param workers    The text extraction workers; 0 for one per CPU permit.
+     * @param shardPages The pages per extraction shard.
+     */
+    TestServices extraction(int workers, int shardPages) {
+        this.extractionWorkers = workers;
+        this.shardPages = shardPages;
+        return this;
+    }
+
+    /**
+     * @param workers    The image encoding workers; 0 for one per CPU permit.
+     * @param queueDepth The images that may wait for a worker.
+     */
+    TestServices images(int workers, int queueDepth) {
+        this.imageWorkers = workers;
+        this.imageQueueDepth = queueDepth;
+        return this;
+    }
+
+    TestServices directPackaging(boolean directPackaging) {
+        this.directPackaging = directPackaging;
+        return this;
+    }
+
+    /**
+     * Builds the service, with its result store in the given directory.
+     *
+     * @param resultsDir The root of the result store; created if missing.
+     * @return The wired service.
+     * @throws IOException If the result store cannot be created.
+     */
+    Service11 service11(Path resultsDir) throws IOException {
+        CpuBudget cpuBudget = new CpuBudget(cpuPermits);
+        PdfLoader pdfLoader = new PdfLoader(PdfLoader.Mode.MIXED, 64, "");
+        ConversionMetrics metrics = new ConversionMetrics(registry);
+        ImageExporter imageExporter = new ImageExporter(registry, cpuBudget, 0);
+        textExtractor = new ParallelTextExtractor(pdfLoader, cpuBudget, metrics, extractionWorkers, shardPages);
+        imageStage = new ImageEncodingStage(registry, imageExporter, cpuBudget, imageWorkers, imageQueueDepth);
+        resultStore = new ResultStore(registry, resultsDir.toString(), 0, 0, 0);
+
+        Service11 service = new Service11();
+        ReflectionTestUtils.setField(service, "pdfLoader", pdfLoader);
+        ReflectionTestUtils.setField(service, "textExtractor", textExtractor);
+        ReflectionTestUtils.setField(service, "imageExporter", imageExporter);
+        ReflectionTestUtils.setField(service, "imageStage", imageStage);
+        ReflectionTestUtils.setField(service, "resultStore", resultStore);
+        ReflectionTestUtils.setField(service, "metrics", metrics);
+        ReflectionTestUtils.setField(service, "directPackaging", directPackaging);
+        return service;
+    }
+
+    /**
+     * Stops the worker threads and waits for pending deletions.
+     */
+    void stop() {
+        if (imageStage != null) {
+            imageStage.stopExecutor();
+            textExtractor.stopExecutor();
+            resultStore.stopCleaner();
+        }
+    }
+
+    SimpleMeterRegistry getRegistry() {
+        return registry;
+    }
+
+    ImageEncodingStage getImageStage() {
+        return imageStage;
+    }
+
+    ResultStore getResultStore() {
+        return resultStore;
+    }
+}